@@ -0,0 +1,72 @@
+package org.grumpysoft.benchmarks;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end latency: the benchmark thread puts an update on the queue
+ * under test, an echo thread takes it and hands it straight back over a
+ * plain LinkedBlockingQueue. Sampled, so JMH reports the round trip's
+ * percentiles; with one update in flight there's nothing to coalesce,
+ * which is rather the point - this is the cost of the handoff itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandoffLatencyBenchmark {
+
+	@Param({ Queues.LINKED, Queues.ARRAY, Queues.IN_PLACE, Queues.LONG_KEYED, Queues.SPSC, Queues.MPSC })
+	public String queue;
+
+	private BlockingQueue<Update> there_;
+	private final BlockingQueue<Update> back_ = new LinkedBlockingQueue<Update>();
+	private final Update update_ = new Update(1, true, 0);
+	private Thread echo_;
+
+	@Setup
+	public void setUp() {
+		there_ = Queues.create(queue, 1024);
+		echo_ = new Thread("echo") {
+			public void run() {
+				try {
+					while (true)
+						back_.put(there_.take());
+				} catch (final InterruptedException e) {
+					// done
+				}
+			}
+		};
+		echo_.setDaemon(true);
+		echo_.start();
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		echo_.interrupt();
+		echo_.join();
+	}
+
+	@Benchmark
+	public Update roundTrip() throws InterruptedException {
+		there_.put(update_);
+		return back_.take();
+	}
+
+}
@@ -0,0 +1,123 @@
+package org.grumpysoft.benchmarks;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One consumer polling against 1, 2, 4 or 8 producers offering; JMH
+ * reports offer and poll throughput separately for each group. Neither
+ * side blocks, so a full or empty queue shows up as a cheap failed
+ * operation rather than a stall at the end of an iteration. Spsc is
+ * left out, being single producer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProducerConsumerBenchmark {
+
+	private static final int CAPACITY = 1 << 14;
+
+	@State(Scope.Group)
+	public static class SharedQueue {
+
+		@Param({ Queues.LINKED, Queues.ARRAY, Queues.IN_PLACE, Queues.LONG_KEYED, Queues.MPSC })
+		public String queue;
+
+		@Param({ "1", "100", "1000000" })
+		public int keys;
+
+		@Param({ "0.5", "1.0" })
+		public double coalescable;
+
+		BlockingQueue<Update> queue_;
+		Updates updates_;
+
+		@Setup
+		public void setUp() {
+			queue_ = Queues.create(queue, CAPACITY);
+			updates_ = new Updates(keys, coalescable, 42);
+		}
+	}
+
+	/**
+	 * Each producer walks the shared update stream from its own offset.
+	 */
+	@State(Scope.Thread)
+	public static class Producer {
+
+		private static final AtomicLong OFFSETS = new AtomicLong();
+
+		long next_;
+
+		@Setup
+		public void setUp() {
+			next_ = OFFSETS.getAndAdd(1 << 16);
+		}
+	}
+
+	private static boolean produce(final SharedQueue shared, final Producer producer) {
+		return shared.queue_.offer(shared.updates_.get(producer.next_++));
+	}
+
+	private static Update consume(final SharedQueue shared) {
+		return shared.queue_.poll();
+	}
+
+	@Benchmark @Group("producers1") @GroupThreads(1)
+	public boolean offer1(final SharedQueue shared, final Producer producer) {
+		return produce(shared, producer);
+	}
+
+	@Benchmark @Group("producers1") @GroupThreads(1)
+	public Update poll1(final SharedQueue shared) {
+		return consume(shared);
+	}
+
+	@Benchmark @Group("producers2") @GroupThreads(2)
+	public boolean offer2(final SharedQueue shared, final Producer producer) {
+		return produce(shared, producer);
+	}
+
+	@Benchmark @Group("producers2") @GroupThreads(1)
+	public Update poll2(final SharedQueue shared) {
+		return consume(shared);
+	}
+
+	@Benchmark @Group("producers4") @GroupThreads(4)
+	public boolean offer4(final SharedQueue shared, final Producer producer) {
+		return produce(shared, producer);
+	}
+
+	@Benchmark @Group("producers4") @GroupThreads(1)
+	public Update poll4(final SharedQueue shared) {
+		return consume(shared);
+	}
+
+	@Benchmark @Group("producers8") @GroupThreads(8)
+	public boolean offer8(final SharedQueue shared, final Producer producer) {
+		return produce(shared, producer);
+	}
+
+	@Benchmark @Group("producers8") @GroupThreads(1)
+	public Update poll8(final SharedQueue shared) {
+		return consume(shared);
+	}
+
+}
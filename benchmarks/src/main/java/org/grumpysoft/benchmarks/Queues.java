@@ -0,0 +1,69 @@
+package org.grumpysoft.benchmarks;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.grumpysoft.CoalescingBlockingQueue;
+import org.grumpysoft.CoalescingPolicy;
+import org.grumpysoft.InPlaceCoalescingBlockingQueue;
+import org.grumpysoft.LockSmith;
+import org.grumpysoft.LongKeyedCoalescingBlockingQueue;
+import org.grumpysoft.LongLockSmith;
+import org.grumpysoft.MpscCoalescingBlockingQueue;
+import org.grumpysoft.SpscCoalescingBlockingQueue;
+
+/**
+ * Builds each flavour of queue by the name the benchmarks use as a @Param.
+ */
+public final class Queues {
+
+	/** CoalescingBlockingQueue wrapping a LinkedBlockingQueue */
+	public static final String LINKED = "LinkedBlockingQueue";
+	/** CoalescingBlockingQueue wrapping an ArrayBlockingQueue */
+	public static final String ARRAY = "ArrayBlockingQueue";
+	public static final String IN_PLACE = "InPlace";
+	public static final String LONG_KEYED = "LongKeyed";
+	public static final String SPSC = "Spsc";
+	public static final String MPSC = "Mpsc";
+
+	static final CoalescingPolicy<Update> POLICY = new CoalescingPolicy<Update>() {
+		public boolean shouldCoalesce(final Update coalesceCandidate) {
+			return coalesceCandidate.coalescable_;
+		}
+	};
+
+	static final LockSmith<Update, Long> SMITH = new LockSmith<Update, Long>() {
+		public Long makeKey(final Update toGenerateFrom) {
+			return Long.valueOf(toGenerateFrom.key_);
+		}
+	};
+
+	static final LongLockSmith<Update> LONG_SMITH = new LongLockSmith<Update>() {
+		public long makeKey(final Update toGenerateFrom) {
+			return toGenerateFrom.key_;
+		}
+	};
+
+	private Queues() {
+	}
+
+	public static BlockingQueue<Update> create(final String kind, final int capacity) {
+		if (LINKED.equals(kind))
+			return new CoalescingBlockingQueue<Update, Long>(
+					new LinkedBlockingQueue<Update>(capacity), POLICY, SMITH);
+		if (ARRAY.equals(kind))
+			return new CoalescingBlockingQueue<Update, Long>(
+					new ArrayBlockingQueue<Update>(capacity), POLICY, SMITH);
+		if (IN_PLACE.equals(kind))
+			return new InPlaceCoalescingBlockingQueue<Update, Long>(capacity, POLICY, SMITH);
+		if (LONG_KEYED.equals(kind))
+			return new LongKeyedCoalescingBlockingQueue<Update>(capacity, POLICY, LONG_SMITH);
+		if (SPSC.equals(kind))
+			return new SpscCoalescingBlockingQueue<Update, Long>(capacity, POLICY, SMITH);
+		if (MPSC.equals(kind))
+			return new MpscCoalescingBlockingQueue<Update, Long>(capacity, POLICY, SMITH);
+		throw new IllegalArgumentException("no such queue: " + kind);
+	}
+
+}
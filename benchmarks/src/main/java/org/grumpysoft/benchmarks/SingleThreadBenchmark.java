@@ -0,0 +1,85 @@
+package org.grumpysoft.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the basic operations with nobody else about: each
+ * invocation offers a burst of updates and then consumes whatever
+ * survives coalescing. How much does survive depends on the key
+ * cardinality and the coalescable fraction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SingleThreadBenchmark {
+
+	private static final int BURST = 64;
+
+	@Param({ Queues.LINKED, Queues.ARRAY, Queues.IN_PLACE, Queues.LONG_KEYED, Queues.SPSC, Queues.MPSC })
+	public String queue;
+
+	@Param({ "1", "100", "1000000" })
+	public int keys;
+
+	@Param({ "0.0", "0.5", "1.0" })
+	public double coalescable;
+
+	private BlockingQueue<Update> queue_;
+	private Updates updates_;
+	private long next_;
+	private final ArrayList<Update> drainpipe_ = new ArrayList<Update>(BURST);
+
+	@Setup
+	public void setUp() {
+		queue_ = Queues.create(queue, 4 * BURST);
+		updates_ = new Updates(keys, coalescable, 42);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public void offerThenPoll(final Blackhole bh) {
+		for (int i = 0; i < BURST; ++i)
+			bh.consume(queue_.offer(updates_.get(next_++)));
+		Update polled;
+		while ((polled = queue_.poll()) != null)
+			bh.consume(polled);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public void putThenTake(final Blackhole bh) throws InterruptedException {
+		for (int i = 0; i < BURST; ++i)
+			queue_.put(updates_.get(next_++));
+		for (int live = queue_.size(); live > 0; --live)
+			bh.consume(queue_.take());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public void offerThenDrainTo(final Blackhole bh) {
+		for (int i = 0; i < BURST; ++i)
+			bh.consume(queue_.offer(updates_.get(next_++)));
+		bh.consume(queue_.drainTo(drainpipe_));
+		drainpipe_.clear();
+	}
+
+}
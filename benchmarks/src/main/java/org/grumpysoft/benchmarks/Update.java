@@ -0,0 +1,20 @@
+package org.grumpysoft.benchmarks;
+
+/**
+ * What the benchmarks push through the queues: a key, whether it may
+ * coalesce, and a value nobody much cares about. Identity equals, so
+ * the wrapping queue's equals check is as cheap as it can be.
+ */
+public final class Update {
+
+	final long key_;
+	final boolean coalescable_;
+	long value_;
+
+	Update(final long key, final boolean coalescable, final long value) {
+		key_ = key;
+		coalescable_ = coalescable;
+		value_ = value;
+	}
+
+}
@@ -0,0 +1,36 @@
+package org.grumpysoft.benchmarks;
+
+import java.util.Random;
+
+/**
+ * A pregenerated, repeatable stream of updates, so the benchmarks
+ * measure the queue rather than the allocator or the random number
+ * generator.
+ */
+public final class Updates {
+
+	private static final int STREAM_LENGTH = 1 << 20;
+
+	private final Update[] updates_;
+	private final int mask_;
+
+	/**
+	 * @param keys how many distinct keys to spread updates across
+	 * @param coalescableFraction how many of them may coalesce at all
+	 * @param seed so that producers can have streams of their own
+	 */
+	public Updates(final int keys, final double coalescableFraction, final long seed) {
+		final Random random = new Random(seed);
+		updates_ = new Update[STREAM_LENGTH];
+		mask_ = STREAM_LENGTH - 1;
+		for (int i = 0; i < STREAM_LENGTH; ++i) {
+			updates_[i] = new Update(random.nextInt(keys),
+					random.nextDouble() < coalescableFraction, i);
+		}
+	}
+
+	public Update get(final long index) {
+		return updates_[(int) index & mask_];
+	}
+
+}
@@ -0,0 +1,102 @@
+package org.grumpysoft.benchmarks;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.grumpysoft.CoalescingBlockingQueue;
+import org.grumpysoft.SpscCoalescingBlockingQueue;
+import org.grumpysoft.WaitStrategies;
+import org.grumpysoft.WaitStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The handoff round trip again, but with both legs built on the given
+ * wait strategy, so that the latency percentiles can be read against
+ * the CPU the strategy burns (run with -prof stack or watch top). On
+ * fewer cores than there are threads busy spinning is meaningless.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WaitStrategyBenchmark {
+
+	@Param({ "BusySpin", "SpinThenYield", "SpinThenPark", "Blocking" })
+	public String wait;
+
+	@Param({ Queues.SPSC, Queues.LINKED })
+	public String queue;
+
+	private BlockingQueue<Update> there_;
+	private BlockingQueue<Update> back_;
+	private final Update update_ = new Update(1, true, 0);
+	private Thread echo_;
+
+	@Setup
+	public void setUp() {
+		there_ = create();
+		back_ = create();
+		echo_ = new Thread("echo") {
+			public void run() {
+				try {
+					while (true)
+						back_.put(there_.take());
+				} catch (final InterruptedException e) {
+					// done
+				}
+			}
+		};
+		echo_.setDaemon(true);
+		echo_.start();
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		echo_.interrupt();
+		echo_.join();
+	}
+
+	@Benchmark
+	public Update roundTrip() throws InterruptedException {
+		there_.put(update_);
+		return back_.take();
+	}
+
+	private BlockingQueue<Update> create() {
+		final WaitStrategy strategy = strategy();
+		if (Queues.SPSC.equals(queue))
+			return new SpscCoalescingBlockingQueue<Update, Long>(
+					1024, Queues.POLICY, Queues.SMITH, strategy);
+		if (Queues.LINKED.equals(queue))
+			return new CoalescingBlockingQueue<Update, Long>(
+					new LinkedBlockingQueue<Update>(1024), Queues.POLICY, Queues.SMITH, strategy);
+		throw new IllegalArgumentException("no such queue: " + queue);
+	}
+
+	private WaitStrategy strategy() {
+		if ("BusySpin".equals(wait))
+			return WaitStrategies.busySpin();
+		if ("SpinThenYield".equals(wait))
+			return WaitStrategies.spinThenYield(100);
+		if ("SpinThenPark".equals(wait))
+			return WaitStrategies.spinThenPark();
+		if ("Blocking".equals(wait))
+			return WaitStrategies.blocking();
+		throw new IllegalArgumentException("no such wait strategy: " + wait);
+	}
+
+}
@@ -0,0 +1,279 @@
+package org.grumpysoft;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Wraps any of the queues here (or any BlockingQueue at all) so that it
+ * can be consumed without a thread sat in take(): takeAsync() hands back
+ * a future that completes with the next element, straight away if there
+ * is one, or else on the thread of whichever producer next offers. Each
+ * future is one element's worth of demand, so a consumer that only asks
+ * for the next element once it's done with the last gets backpressure
+ * for free.
+ *
+ * Producers must go through this queue rather than the wrapped one, or
+ * waiting futures won't hear about their elements. Anything chained on
+ * a future with thenApply and friends runs on the completing thread,
+ * usually a producer; use the Async variants to run it elsewhere.
+ *
+ * An element only leaves the wrapped queue once its future is sure to
+ * take it: the dispatcher claims the future first, and cancel() (or
+ * completing it some other way) only wins while it's unclaimed, waiting
+ * out a claim if need be. So a cancelled future never strands an
+ * element, and nothing is ever held anywhere but the wrapped queue.
+ *
+ * None of this takes a monitor, so virtual threads can use it (and the
+ * blocking methods, which go straight to the wrapped queue) freely.
+ *
+ * @author james
+ *
+ * @param <E> the underlying element that will be stored in the queue
+ */
+public class AsyncBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+	private final BlockingQueue<E> impl_;
+	private final ConcurrentLinkedQueue<Waiter<E>> waiters_ =
+		new ConcurrentLinkedQueue<Waiter<E>>();
+	private final AtomicInteger dispatches_ = new AtomicInteger();
+
+	/**
+	 * @param toWrap the queue that actually holds the elements
+	 */
+	public AsyncBlockingQueue(final BlockingQueue<E> toWrap) {
+		impl_ = toWrap;
+	}
+
+	/**
+	 * @return a future for the next element; cancel it to stop waiting
+	 */
+	public CompletableFuture<E> takeAsync() {
+		final Waiter<E> waiter = new Waiter<E>();
+		waiters_.offer(waiter);
+		dispatch();
+		return waiter;
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object)
+	 */
+	public boolean offer(final E o) {
+		if (!impl_.offer(o))
+			return false;
+		dispatch();
+		return true;
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
+	 */
+	public boolean offer(final E o, final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		if (!impl_.offer(o, timeout, unit))
+			return false;
+		dispatch();
+		return true;
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+	 */
+	public void put(final E o) throws InterruptedException {
+		impl_.put(o);
+		dispatch();
+	}
+
+	/**
+	 * @see java.util.Queue#poll()
+	 */
+	public E poll() {
+		return impl_.poll();
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#poll(long, java.util.concurrent.TimeUnit)
+	 */
+	public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		return impl_.poll(timeout, unit);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#take()
+	 */
+	public E take() throws InterruptedException {
+		return impl_.take();
+	}
+
+	/**
+	 * @see java.util.Queue#peek()
+	 */
+	public E peek() {
+		return impl_.peek();
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+	 */
+	public int drainTo(final Collection<? super E> c) {
+		return impl_.drainTo(c);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection, int)
+	 */
+	public int drainTo(final Collection<? super E> c, final int maxElements) {
+		return impl_.drainTo(c, maxElements);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+	 */
+	public int remainingCapacity() {
+		return impl_.remainingCapacity();
+	}
+
+	/**
+	 * @see java.util.Collection#size()
+	 */
+	public int size() {
+		return impl_.size();
+	}
+
+	/**
+	 * @see java.util.Collection#contains(java.lang.Object)
+	 */
+	public boolean contains(final Object o) {
+		return impl_.contains(o);
+	}
+
+	/**
+	 * @see java.util.Collection#remove(java.lang.Object)
+	 */
+	public boolean remove(final Object o) {
+		return impl_.remove(o);
+	}
+
+	/**
+	 * @see java.util.Collection#clear()
+	 */
+	public void clear() {
+		impl_.clear();
+	}
+
+	/**
+	 * @see java.util.Collection#iterator()
+	 */
+	public Iterator<E> iterator() {
+		return impl_.iterator();
+	}
+
+	/**
+	 * Pairs waiting futures with elements until it runs out of one or
+	 * the other. Only one thread dispatches at a time; anyone arriving
+	 * meanwhile just bumps the count, and the dispatcher goes round again.
+	 * A future is claimed before an element is polled for it, and let go
+	 * again if there isn't one.
+	 */
+	private void dispatch() {
+		if (dispatches_.getAndIncrement() != 0)
+			return;
+		int missed = 1;
+		do {
+			Waiter<E> waiter;
+			while ((waiter = waiters_.peek()) != null) {
+				if (!waiter.claim()) {
+					waiters_.poll();
+					continue;
+				}
+				E next = null;
+				try {
+					next = impl_.poll();
+				} finally {
+					waiter.release(next != null);
+				}
+				if (next == null)
+					break;
+				waiters_.poll();
+				waiter.deliver(next);
+			}
+			missed = dispatches_.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	/**
+	 * A future that can't be completed, by cancel() or anything else,
+	 * while the dispatcher has claimed it. A claim lasts as long as one
+	 * poll of the wrapped queue; from any other thread, completing waits
+	 * it out, and on the dispatching thread itself (from inside that
+	 * poll, say), it fails.
+	 */
+	private static final class Waiter<E> extends CompletableFuture<E> {
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<Waiter> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(Waiter.class, "state_");
+		private static final int WAITING = 0;
+		private static final int CLAIMED = 1;
+		// completed, or about to be
+		private static final int DONE = 2;
+
+		private volatile int state_;
+		private volatile Thread claimer_;
+
+		boolean claim() {
+			if (!STATE.compareAndSet(this, WAITING, CLAIMED))
+				return false;
+			claimer_ = Thread.currentThread();
+			return true;
+		}
+
+		/**
+		 * Ends the claim, leaving the future waiting, or for deliver()
+		 * to complete if the claimer found it an element.
+		 */
+		void release(final boolean delivering) {
+			state_ = delivering ? DONE : WAITING;
+			claimer_ = null;
+		}
+
+		void deliver(final E element) {
+			super.complete(element);
+		}
+
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			return finish() ? super.cancel(mayInterruptIfRunning) : isCancelled();
+		}
+
+		public boolean complete(final E value) {
+			return finish() && super.complete(value);
+		}
+
+		public boolean completeExceptionally(final Throwable ex) {
+			return finish() && super.completeExceptionally(ex);
+		}
+
+		/**
+		 * @return true if the caller may complete this future
+		 */
+		private boolean finish() {
+			while (true) {
+				final int state = state_;
+				if (state == WAITING) {
+					if (STATE.compareAndSet(this, WAITING, DONE))
+						return true;
+				} else if (state != CLAIMED || claimer_ == Thread.currentThread()) {
+					return false;
+				} else {
+					Thread.yield();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,21 @@
+package org.grumpysoft;
+
+/**
+ * A queue that can be consumed in batches without allocating anything;
+ * the caller owns the buffer, or does the work itself in a BatchHandler.
+ * As with drainTo, only live (not coalesced away) elements come out.
+ */
+public interface BatchDrainable<E> {
+	/**
+	 * Moves up to length elements into buffer, starting at offset.
+	 * @return how many were moved
+	 */
+	public int drainTo(final E[] buffer, final int offset, final int length);
+
+	/**
+	 * Hands up to maxElements elements to handler, then, if there were
+	 * any, tells it the batch is over.
+	 * @return how many were handed over
+	 */
+	public int drain(final BatchHandler<? super E> handler, final int maxElements);
+}
@@ -0,0 +1,12 @@
+package org.grumpysoft;
+
+/**
+ * Receives the elements of one batch drained from a queue, in order,
+ * followed by a call to say the batch is over - handy for flushing.
+ * onEndOfBatch is only called for batches with something in them.
+ */
+public interface BatchHandler<E> {
+	public void onElement(final E element);
+
+	public void onEndOfBatch(final int batchSize);
+}
@@ -0,0 +1,18 @@
+package org.grumpysoft;
+
+/**
+ * A queue that can take a whole batch from a producer at once: the
+ * batch is coalesced within itself first, so that duplicates never
+ * touch the queue's shared structures, and the survivors go in under
+ * one lock acquisition or one claim of the ring.
+ */
+public interface BatchOfferable<E> {
+	/**
+	 * Offers batch[offset] to batch[offset + length - 1], with the same
+	 * result as offering them one by one, except that it's all or
+	 * nothing: if there isn't room for the survivors that need a slot
+	 * of their own, none of the batch goes in.
+	 * @return true if the whole batch went in
+	 */
+	public boolean offerAll(final E[] batch, final int offset, final int length);
+}
@@ -0,0 +1,62 @@
+package org.grumpysoft;
+
+import java.util.Collection;
+import java.util.Queue;
+
+/**
+ * BatchDrainable done in terms of poll(), for queues with
+ * nothing cleverer to offer, and addAll done in terms of
+ * BatchOfferable, for queues with.
+ */
+final class Batches {
+
+	private Batches() {
+	}
+
+	static void checkBounds(final Object[] buffer, final int offset, final int length) {
+		if (offset < 0 || length < 0 || offset + length > buffer.length)
+			throw new IndexOutOfBoundsException("offset " + offset + ", length " + length
+					+ ", buffer length " + buffer.length);
+	}
+
+	static <E> int drainTo(final Queue<E> from, final E[] buffer, final int offset, final int length) {
+		checkBounds(buffer, offset, length);
+		int drained = 0;
+		E polled;
+		while (drained < length && (polled = from.poll()) != null)
+			buffer[offset + drained++] = polled;
+		return drained;
+	}
+
+	/**
+	 * Offers c as one batch, falling back to adding one element at a
+	 * time, with add()'s complaint when full, if it won't all fit.
+	 */
+	@SuppressWarnings("unchecked")
+	static <E, Q extends Queue<E> & BatchOfferable<E>> boolean addAll(final Q to,
+			final Collection<? extends E> c) {
+		if (c == to)
+			throw new IllegalArgumentException();
+		final E[] batch = (E[]) c.toArray();
+		if (batch.length == 0)
+			return false;
+		if (to.offerAll(batch, 0, batch.length))
+			return true;
+		for (final E o : batch)
+			to.add(o);
+		return true;
+	}
+
+	static <E> int drain(final Queue<E> from, final BatchHandler<? super E> handler, final int maxElements) {
+		int drained = 0;
+		E polled;
+		while (drained < maxElements && (polled = from.poll()) != null) {
+			handler.onElement(polled);
+			++drained;
+		}
+		if (drained > 0)
+			handler.onEndOfBatch(drained);
+		return drained;
+	}
+
+}
@@ -0,0 +1,59 @@
+package org.grumpysoft;
+
+import java.util.HashMap;
+
+/**
+ * A batch coalesced within itself, as the in place queues would coalesce
+ * it were it offered one element at a time: each key keeps the position
+ * of its first element and the value of its last (or the merge of them
+ * all). Keys are worked out once and kept alongside, null for elements
+ * that don't coalesce.
+ */
+final class CoalescedBatch<E, KeyType> {
+
+	private final Object[] elements_;
+	private final Object[] keys_;
+	private int size_;
+
+	CoalescedBatch(final E[] batch, final int offset, final int length,
+			final CoalescingPolicy<E> policy, final MergingPolicy<E> merger,
+			final LockSmith<E, KeyType> smith) {
+		Batches.checkBounds(batch, offset, length);
+		elements_ = new Object[length];
+		keys_ = new Object[length];
+		final HashMap<KeyType, Integer> positions = new HashMap<KeyType, Integer>();
+		for (int i = offset; i < offset + length; ++i) {
+			final E o = batch[i];
+			if (o == null)
+				throw new NullPointerException();
+			if (!policy.shouldCoalesce(o)) {
+				elements_[size_++] = o;
+				continue;
+			}
+			final KeyType key = smith.makeKey(o);
+			final Integer position = positions.get(key);
+			if (position == null) {
+				positions.put(key, Integer.valueOf(size_));
+				keys_[size_] = key;
+				elements_[size_++] = o;
+			} else {
+				elements_[position] = MergingPolicies.merge(merger, element(position), o);
+			}
+		}
+	}
+
+	int size() {
+		return size_;
+	}
+
+	@SuppressWarnings("unchecked")
+	E element(final int i) {
+		return (E) elements_[i];
+	}
+
+	@SuppressWarnings("unchecked")
+	KeyType key(final int i) {
+		return (KeyType) keys_[i];
+	}
+
+}
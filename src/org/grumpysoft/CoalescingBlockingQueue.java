@@ -1,12 +1,27 @@
 package org.grumpysoft;
 
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @author james
@@ -14,12 +29,42 @@ import java.util.concurrent.TimeUnit;
  * @param <E> the underlying element that will be stored in the queue
  * @param <KeyType> the type of key that will be used to work out whether to coalesce or not
  */
-public class CoalescingBlockingQueue<E, KeyType> implements BlockingQueue<E> {
+public class CoalescingBlockingQueue<E, KeyType> implements BlockingQueue<E>, BatchDrainable<E> {
 	
+	// what consuming an element comes to
+	private static final int LIVE = 0;
+	private static final int COALESCED = 1;
+	private static final int CLAIMED = 2;
+
 	private final BlockingQueue<E> impl_;
 	private final CoalescingPolicy<E> policy_;
 	private final LockSmith<E, KeyType> smith_;
-	private final ConcurrentHashMap<KeyType, E> latest_ = new ConcurrentHashMap<KeyType, E>();
+	// key to its latest element, each in its own Remembered so that
+	// removal and replacement compare by identity, as liveness does
+	private final ConcurrentMap<KeyType, Remembered<E>> latest_;
+	// whether keys can be evicted from latest_
+	private final boolean capped_;
+	// elements claimed by snapshotTo or removed, but still waiting in (or
+	// on their way into) impl_; only ever the latest for their key when
+	// claimed, so never one a consumer has already had
+	private final ConcurrentMap<KeyType, Remembered<E>> claimed_ =
+		new ConcurrentHashMap<KeyType, Remembered<E>>();
+	private final AtomicInteger uncoalescable_ = new AtomicInteger();
+	private final WaitStrategy waiter_;
+	private final BooleanSupplier hasElements_ = new BooleanSupplier() {
+		public boolean getAsBoolean() {
+			return !impl_.isEmpty();
+		}
+	};
+	private volatile CoalescingQueueMetrics metrics_;
+	private volatile Expiry<E, KeyType> expiry_;
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<CoalescingBlockingQueue, CoalescingQueueMetrics> METRICS =
+		AtomicReferenceFieldUpdater.newUpdater(CoalescingBlockingQueue.class, CoalescingQueueMetrics.class, "metrics_");
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<CoalescingBlockingQueue, Expiry> EXPIRY =
+		AtomicReferenceFieldUpdater.newUpdater(CoalescingBlockingQueue.class, Expiry.class, "expiry_");
 
 	/**
 	 * @param toWrap The *actual* implementation of a blocking
@@ -29,51 +74,83 @@ public class CoalescingBlockingQueue<E, KeyType> implements BlockingQueue<E> {
 	 */
 	public CoalescingBlockingQueue(final BlockingQueue<E> toWrap,
 			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones) {
+		this(toWrap, decider, jones, new ConcurrentHashMap<KeyType, Remembered<E>>(), null);
+	}
+
+	/**
+	 * As above, but take() and timed poll() poll the wrapped queue and
+	 * wait between goes as waiter says, rather than blocking in it.
+	 * Producers have to come through this queue for waiter to be
+	 * signalled.
+	 */
+	public CoalescingBlockingQueue(final BlockingQueue<E> toWrap,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones,
+			final WaitStrategy waiter) {
+		this(toWrap, decider, jones, new ConcurrentHashMap<KeyType, Remembered<E>>(), waiter);
+	}
+
+	/**
+	 * As above, but remembers the latest element for at most maxKeys
+	 * keys, forgetting the least recently touched when a new key arrives.
+	 * An element whose key has been forgotten is treated as live, so
+	 * eviction costs coalescing for that key, never delivery.
+	 * @param maxKeys the cap on the number of remembered keys
+	 */
+	public CoalescingBlockingQueue(final BlockingQueue<E> toWrap,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones,
+			final int maxKeys) {
+		this(toWrap, decider, jones, new LeastRecentlyUsedMap<KeyType, Remembered<E>>(maxKeys), null);
+	}
+
+	/**
+	 * Capped keys and a wait strategy, as the two above.
+	 */
+	public CoalescingBlockingQueue(final BlockingQueue<E> toWrap,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones,
+			final int maxKeys, final WaitStrategy waiter) {
+		this(toWrap, decider, jones, new LeastRecentlyUsedMap<KeyType, Remembered<E>>(maxKeys), waiter);
+	}
+
+	private CoalescingBlockingQueue(final BlockingQueue<E> toWrap,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones,
+			final ConcurrentMap<KeyType, Remembered<E>> latest, final WaitStrategy waiter) {
 		impl_ = toWrap;
 		policy_ = decider;
 		smith_ = jones;
+		latest_ = latest;
+		capped_ = latest instanceof LeastRecentlyUsedMap;
+		waiter_ = waiter;
 	}
 
 	/**
 	 * @see java.util.concurrent.BlockingQueue#add(java.lang.Object)
 	 */
 	public boolean add(E o) {
-		if (!policy_.shouldCoalesce(o))
-			return impl_.add(o);
-		if (impl_.add(o)) {
-			latest_.put(smith_.makeKey(o), o);
-			return true;
-		}
-		return false;
+		return add(o, keyFor(o));
 	}
 
-	private int drainWithCoalescing(final Collection<E> from,
-			final Collection<? super E> c, final Collection<E> latest) {
-		int drainCount = 0;
-		for (final E element : from) {
-			if (!policy_.shouldCoalesce(element)) {
-				c.add(element);
-				++drainCount;
-			} else {
-				if (latest.contains(element)) {
-					c.add(element);
-					++drainCount;
-				}
-			}
+	private boolean add(final E o, final KeyType key) {
+		final Remembered<E> remembered = remember(key, o);
+		boolean added = false;
+		try {
+			added = impl_.add(o);
+		} finally {
+			added = enqueued(key, remembered, added);
 		}
-		return drainCount;
+		return added;
 	}
-	
+
 	/**
 	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
 	 * In this implementation only elements that *would not* coalesce are
 	 * drained. Coalescing elements are forgotten.
 	 */
 	public int drainTo(Collection<? super E> c) {
-		final Collection<E> entries = latest_.values();
-		final ArrayList<E> queueContents = new ArrayList<E>();
-		impl_.drainTo(queueContents);
-		return drainWithCoalescing(queueContents, c, entries);
+		if (c == this)
+			throw new IllegalArgumentException();
+		final CoalescingSink sink = new CoalescingSink(c);
+		impl_.drainTo(sink);
+		return sink.passed_;
 	}
 
 	/**
@@ -82,41 +159,65 @@ public class CoalescingBlockingQueue<E, KeyType> implements BlockingQueue<E> {
 	 * that ought to coalesce.
 	 */
 	public int drainTo(Collection<? super E> c, int maxElements) {
-		final Collection<E> entries = latest_.values();
-		ArrayList<E> queueContents = new ArrayList<E>();
-		impl_.drainTo(queueContents, maxElements);
-		int drainCount = drainWithCoalescing(queueContents, c, entries);
-		if (drainCount == maxElements || queueContents.size() < maxElements)
-			return drainCount;
-		else
-			return drainCount + drainTo(c, maxElements - c.size());
+		if (c == this)
+			throw new IllegalArgumentException();
+		final CoalescingSink sink = new CoalescingSink(c);
+		while (sink.passed_ < maxElements) {
+			final int wanted = maxElements - sink.passed_;
+			final int seenBefore = sink.seen_;
+			impl_.drainTo(sink, wanted);
+			if (sink.seen_ - seenBefore < wanted)
+				break;
+		}
+		return sink.passed_;
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drainTo(java.lang.Object[], int, int)
+	 */
+	public int drainTo(final E[] buffer, final int offset, final int length) {
+		return Batches.drainTo(this, buffer, offset, length);
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drain(org.grumpysoft.BatchHandler, int)
+	 */
+	public int drain(final BatchHandler<? super E> handler, final int maxElements) {
+		return Batches.drain(this, handler, maxElements);
 	}
 
 	/**
 	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object)
 	 */
 	public boolean offer(final E o) {
-		if (!policy_.shouldCoalesce(o))
-			return impl_.offer(o);
-		if (impl_.offer(o)) {
-			latest_.put(smith_.makeKey(o), o);
-			return true;
+		final KeyType key = keyFor(o);
+		final Remembered<E> remembered = remember(key, o);
+		boolean offered = false;
+		try {
+			offered = impl_.offer(o);
+		} finally {
+			offered = enqueued(key, remembered, offered);
 		}
-		return false;
+		return offered;
 	}
 
 	/**
 	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
+	 * o is the latest for its key while this waits for room, but until
+	 * it's in, an older element for the key that reaches the head is
+	 * still handed out, so a timeout loses nothing.
 	 */
 	public boolean offer(final E o, final long timeout, final TimeUnit unit)
 			throws InterruptedException {
-		if (!policy_.shouldCoalesce(o))
-			return impl_.offer(o, timeout, unit);
-		if (impl_.offer(o, timeout, unit)) {
-			latest_.put(smith_.makeKey(o), o);
-			return true;
+		final KeyType key = keyFor(o);
+		final Remembered<E> remembered = remember(key, o);
+		boolean offered = false;
+		try {
+			offered = impl_.offer(o, timeout, unit);
+		} finally {
+			offered = enqueued(key, remembered, offered);
 		}
-		return false;
+		return offered;
 	}
 
 	/**
@@ -125,20 +226,35 @@ public class CoalescingBlockingQueue<E, KeyType> implements BlockingQueue<E> {
 	 * element is available at the end of that time.
 	 */
 	public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
-		E polled = impl_.poll(timeout, unit);
-		return loop_poll(polled);
+		if (waiter_ == null) {
+			E polled = impl_.poll(timeout, unit);
+			return loop_poll(polled);
+		}
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (int idles = 0; ; ++idles) {
+			final E polled = poll();
+			if (polled != null)
+				return polled;
+			final long left = deadline - System.nanoTime();
+			if (left <= 0)
+				return null;
+			waiter_.idle(idles, hasElements_, left);
+		}
 	}
 
 	/**
 	 * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
 	 */
 	public void put(final E o) throws InterruptedException {
-		if (!policy_.shouldCoalesce(o)) {
+		final KeyType key = keyFor(o);
+		final Remembered<E> remembered = remember(key, o);
+		boolean put = false;
+		try {
 			impl_.put(o);
-			return;
+			put = true;
+		} finally {
+			enqueued(key, remembered, put);
 		}
-		impl_.put(o);
-		latest_.put(smith_.makeKey(o), o);
 	}
 
 	/**
@@ -148,10 +264,425 @@ public class CoalescingBlockingQueue<E, KeyType> implements BlockingQueue<E> {
 		return impl_.remainingCapacity();
 	}
 	
+	/**
+	 * The cast can't be checked, so an o that isn't an E only fails,
+	 * with a ClassCastException, once the policy or lock smith uses it.
+	 */
+	@SuppressWarnings("unchecked")
+	private E asElement(final Object o) {
+		return (E) o;
+	}
+
+	/**
+	 * @return o's key, or null if o doesn't coalesce
+	 */
+	private KeyType keyFor(final E o) {
+		if (o == null)
+			throw new NullPointerException();
+		return policy_.shouldCoalesce(o) ? smith_.makeKey(o) : null;
+	}
+
+	/**
+	 * Makes o the latest for key *before* it goes into the wrapped
+	 * queue; the other way round, a consumer could take o in between,
+	 * find nothing remembered for key and deliver it, leaving o
+	 * remembered for good. Until enqueued() says o is in, it keeps
+	 * hold of what it superseded, which a consumer may still take.
+	 */
+	private Remembered<E> remember(final KeyType key, final E o) {
+		if (key == null)
+			return null;
+		Remembered<E> superseded;
+		Remembered<E> remembered;
+		do {
+			superseded = latest_.get(key);
+			remembered = new Remembered<E>(o, superseded);
+		} while (superseded == null
+				? latest_.putIfAbsent(key, remembered) != null
+				: !latest_.replace(key, superseded, remembered));
+		final Expiry<E, KeyType> expiry = expiry_;
+		if (expiry != null)
+			expiry.enqueued(key, o);
+		return remembered;
+	}
+
+	/**
+	 * Bookkeeping once we know whether o made it into the wrapped queue.
+	 * @param key o's key; null if o doesn't coalesce
+	 * @param remembered what remember() made of o
+	 * @return whether o counts as enqueued
+	 */
+	private boolean enqueued(final KeyType key, final Remembered<E> remembered,
+			final boolean published) {
+		if (!published)
+			return key != null && !forget(key, remembered);
+		if (remembered != null)
+			remembered.superseded_ = null;
+		final CoalescingQueueMetrics metrics = metrics_;
+		if (metrics != null)
+			metrics.offered();
+		if (key == null)
+			uncoalescable_.incrementAndGet();
+		if (waiter_ != null)
+			waiter_.signal();
+		return true;
+	}
+
+	/**
+	 * Undoes remember() for an element that didn't make it in after all,
+	 * putting back what it superseded unless a consumer has taken that
+	 * meanwhile. If it has since been superseded, or claimed by
+	 * snapshotTo or removeKey, it's too late to take it back, and as good
+	 * as if it had gone in; a newer element that's still on its way in
+	 * inherits what it superseded instead.
+	 * @return true if it was taken back
+	 */
+	private boolean forget(final KeyType key, final Remembered<E> remembered) {
+		final Remembered<E> superseded = remembered.takeSuperseded();
+		while (true) {
+			final Remembered<E> latest = latest_.get(key);
+			if (latest == remembered) {
+				if (superseded == null
+						? latest_.remove(key, remembered)
+						: latest_.replace(key, remembered, superseded))
+					return true;
+				continue;
+			}
+			final Remembered<E> above = latest == null ? null : latest.pendingAbove(remembered);
+			if (above == null)
+				break;
+			if (above.swapSuperseded(remembered, superseded))
+				return false;
+		}
+		claimed_.remove(key, remembered);
+		return false;
+	}
+
+	/**
+	 * An element is live if it is the very instance we last enqueued
+	 * for its key; a reference comparison, so no user equals() on the
+	 * hot path, and an equal but older update is correctly stale.
+	 * An element whose key we don't remember (never seen, already
+	 * consumed, or evicted) is assumed to be live.
+	 */
 	private final boolean wouldCoalesce(final E el) {
-		return policy_.shouldCoalesce(el)
-			&& !el.equals(latest_.get(smith_.makeKey(el)));
+		if (!policy_.shouldCoalesce(el))
+			return false;
+		final KeyType key = smith_.makeKey(el);
+		final Remembered<E> latest = latest_.get(key);
+		if (latest == null)
+			return claimed_.containsKey(key);
+		return el != latest.element_;
+	}
+
+	/**
+	 * Decides whether el, just removed from the wrapped queue, should
+	 * be handed to a consumer. If it's the latest for its key we can
+	 * stop remembering it; nothing behind it in the queue is older.
+	 * @return true if el is live
+	 */
+	private boolean consume(final E el) {
+		final int fate = fateOf(el);
+		final CoalescingQueueMetrics metrics = metrics_;
+		if (metrics != null) {
+			if (fate == LIVE)
+				metrics.delivered();
+			else if (fate == COALESCED)
+				metrics.coalesced();
+		}
+		return fate == LIVE;
 	}
+
+	/**
+	 * @return LIVE, COALESCED, or CLAIMED if el is the element a
+	 * snapshot, removal or expiry claimed, and so was counted then
+	 */
+	private int fateOf(final E el) {
+		if (!policy_.shouldCoalesce(el)) {
+			uncoalescable_.decrementAndGet();
+			return LIVE;
+		}
+		final KeyType key = smith_.makeKey(el);
+		final Remembered<E> latest = latest_.get(key);
+		if (latest != null && latest.element_ == el) {
+			// if this fails, either something newer has arrived or it was
+			// claimed or removed first; only the latter makes el stale
+			if (!latest_.remove(key, latest) && claimed_.remove(key, latest))
+				return CLAIMED;
+			return unlessExpired(key, el);
+		}
+		if (latest == null) {
+			final Remembered<E> claimed = claimed_.get(key);
+			if (claimed == null)
+				return unlessExpired(key, el);
+			return unclaim(key, claimed, el);
+		}
+		// superseded only by elements not in yet? then it's el's to take,
+		// lest they fail to go in and el be lost
+		final Remembered<E> above = latest.pendingAboveElement(el);
+		if (above != null) {
+			final Remembered<E> superseded = above.superseded_;
+			if (superseded != null && superseded.element_ == el
+					&& above.swapSuperseded(superseded, null))
+				return unlessExpired(key, el);
+			return fateOf(el);
+		}
+		if (claimed_.isEmpty())
+			return COALESCED;
+		final Remembered<E> claimed = claimed_.get(key);
+		return claimed == null ? COALESCED : unclaim(key, claimed, el);
+	}
+
+	private int unlessExpired(final KeyType key, final E el) {
+		return hasExpired(key, el) ? COALESCED : LIVE;
+	}
+
+	/**
+	 * Drops key's claim once its element reaches the head.
+	 */
+	private int unclaim(final KeyType key, final Remembered<E> claimed, final E el) {
+		if (claimed.element_ != el)
+			return COALESCED;
+		claimed_.remove(key, claimed);
+		return CLAIMED;
+	}
+
+	/**
+	 * Takes a snapshot of the latest element for every key, for a
+	 * consumer joining mid stream: each element put into the map is
+	 * claimed, just as if it had been taken, so take() and friends
+	 * carry on from exactly that point - anything newer for those keys
+	 * is still to come, nothing in the snapshot will come again, and
+	 * nothing is missed in between. Producers carry on regardless.
+	 * Uncoalescable elements have no key, so they stay in the stream.
+	 * @param into where the snapshot goes, key to latest element
+	 * @return how many elements were claimed
+	 */
+	public int snapshotTo(final Map<? super KeyType, ? super E> into) {
+		int claimed = 0;
+		for (final Map.Entry<KeyType, Remembered<E>> entry : latest_.entrySet()) {
+			if (retire(entry.getKey(), entry.getValue())) {
+				into.put(entry.getKey(), entry.getValue().element_);
+				++claimed;
+			}
+		}
+		final CoalescingQueueMetrics metrics = metrics_;
+		if (metrics != null)
+			metrics.delivered(claimed);
+		return claimed;
+	}
+
+	private boolean hasExpired(final KeyType key, final E el) {
+		final Expiry<E, KeyType> expiry = expiry_;
+		return expiry != null && expiry.hasExpired(key, el);
+	}
+
+	/**
+	 * Makes el, the latest for key, stale without touching the wrapped
+	 * queue; it's dropped when it reaches the head, as if superseded.
+	 * Producers remember an element before it goes into the wrapped
+	 * queue, and consumers forget it before handing it out, so el is
+	 * only claimed while it's still to come.
+	 * @return false if el wasn't the latest for key by the time we got there
+	 */
+	private boolean retire(final KeyType key, final Remembered<E> el) {
+		// claim first, so a consumer that finds the key gone knows why
+		final Remembered<E> earlier = claimed_.put(key, el);
+		if (latest_.remove(key, el))
+			return true;
+		// put back any older claim, or its element would look live
+		if (earlier == null)
+			claimed_.remove(key, el);
+		else
+			claimed_.replace(key, el, earlier);
+		return false;
+	}
+
+	/**
+	 * retire, for an expired element rather than what remember() made
+	 * of it, counting it as coalesced; does nothing unless el is still
+	 * the latest for key.
+	 */
+	private void retireIfLatest(final KeyType key, final E el) {
+		final Remembered<E> latest = latest_.get(key);
+		if (latest == null || latest.element_ != el || !retire(key, latest))
+			return;
+		final CoalescingQueueMetrics metrics = metrics_;
+		if (metrics != null)
+			metrics.coalesced();
+	}
+
+	/**
+	 * An element as remembered against its key. It keeps Object's
+	 * equals, so the maps' conditional remove and replace match this
+	 * very instance without a user equals() or a remapping function.
+	 */
+	private static final class Remembered<E> {
+		@SuppressWarnings("rawtypes")
+		private static final AtomicReferenceFieldUpdater<Remembered, Remembered> SUPERSEDED =
+			AtomicReferenceFieldUpdater.newUpdater(Remembered.class, Remembered.class, "superseded_");
+
+		final E element_;
+		// what this replaced as latest, until element_ is in the wrapped
+		// queue or a consumer takes it, whichever comes first
+		volatile Remembered<E> superseded_;
+
+		Remembered(final E element, final Remembered<E> superseded) {
+			element_ = element;
+			superseded_ = superseded;
+		}
+
+		boolean swapSuperseded(final Remembered<E> expected, final Remembered<E> replacement) {
+			return SUPERSEDED.compareAndSet(this, expected, replacement);
+		}
+
+		@SuppressWarnings("unchecked")
+		Remembered<E> takeSuperseded() {
+			return SUPERSEDED.getAndSet(this, null);
+		}
+
+		/**
+		 * @return the element on its way in that superseded r, walking
+		 * down from this one, or null if r isn't held by one
+		 */
+		Remembered<E> pendingAbove(final Remembered<E> r) {
+			Remembered<E> above = this;
+			Remembered<E> superseded;
+			while ((superseded = above.superseded_) != null) {
+				if (superseded == r)
+					return above;
+				above = superseded;
+			}
+			return null;
+		}
+
+		/**
+		 * pendingAbove, for whatever remembered el.
+		 */
+		Remembered<E> pendingAboveElement(final E el) {
+			Remembered<E> above = this;
+			Remembered<E> superseded;
+			while ((superseded = above.superseded_) != null) {
+				if (superseded.element_ == el)
+					return above;
+				above = superseded;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return how many keys we are currently remembering a latest element for
+	 */
+	int rememberedKeyCount() {
+		return latest_.size();
+	}
+
+	/**
+	 * Starts counting what this queue does; until then it counts nothing.
+	 * Residence time isn't available, since the elements wait in the
+	 * wrapped queue with no timestamp of their own; raw depth is the
+	 * wrapped queue's size, stale elements and all.
+	 * @return the metrics, to be read or registered with JMX
+	 */
+	public CoalescingQueueMetrics enableMetrics() {
+		if (metrics_ == null) {
+			METRICS.compareAndSet(this, null, new CoalescingQueueMetrics(new CoalescingQueueMetrics.Gauges() {
+				public int liveDepth() {
+					return size();
+				}
+
+				public int rawDepth() {
+					return impl_.size();
+				}
+
+				public int rememberedKeys() {
+					return latest_.size();
+				}
+			}, false));
+		}
+		return metrics_;
+	}
+
+	/**
+	 * Gives every coalescing element enqueued from now on the same time
+	 * to live. @see #enableExpiry(TimeToLive, long, TimeUnit, Ticker)
+	 * The wheel ticks at a sixty fourth of the time to live.
+	 */
+	public void enableExpiry(final long timeToLive, final TimeUnit unit, final Ticker ticker) {
+		final long nanos = unit.toNanos(timeToLive);
+		if (nanos <= 0)
+			throw new IllegalArgumentException("timeToLive must be positive, was " + timeToLive);
+		enableExpiry(new TimeToLive<E>() {
+			public long timeToLiveNanos(final E element) {
+				return nanos;
+			}
+		}, Math.max(1, nanos / 64), TimeUnit.NANOSECONDS, ticker);
+	}
+
+	/**
+	 * Gives each coalescing element enqueued from now on a time to live.
+	 * An element found to have expired when it reaches the head is
+	 * skipped, just like a superseded one. Expired keys are also
+	 * forgotten by a hashed timer wheel, so a stalled consumer doesn't
+	 * leave them reachable; the elements themselves go when the wrapped
+	 * queue gets round to them. The wheel holds one entry per key with
+	 * anything pending, never a superseded element, and costs a lock free
+	 * append the first time a key is enqueued; the wheel only decides how
+	 * soon an expired key is forgotten, not whether it's delivered, so
+	 * tick can be coarse (and a key whose time to live shrinks may be
+	 * forgotten as late as its old deadline).
+	 *
+	 * There's no thread of its own: the wheel turns only as producers
+	 * enqueue, or when expire() is called. If producers may go quiet,
+	 * use scheduleExpiry, or call expire() from a timer of your own.
+	 * Uncoalescable elements have no key and never expire.
+	 * @param ttl how long each element may live
+	 * @param tick how often the wheel turns
+	 * @param ticker the time, usually Ticker.SYSTEM
+	 * @throws IllegalStateException if expiry is already enabled
+	 */
+	public void enableExpiry(final TimeToLive<? super E> ttl, final long tick, final TimeUnit unit,
+			final Ticker ticker) {
+		if (!EXPIRY.compareAndSet(this, null, new Expiry<E, KeyType>(this, ttl, unit.toNanos(tick), ticker)))
+			throw new IllegalStateException("expiry is already enabled");
+	}
+
+	/**
+	 * Forgets keys whose latest element has expired, if expiry is
+	 * enabled; for a timer thread to call when producers are quiet.
+	 */
+	public void expire() {
+		final Expiry<E, KeyType> expiry = expiry_;
+		if (expiry != null)
+			expiry.wheel_.advance();
+	}
+
+	/**
+	 * Calls expire() on scheduler once a tick, so that expired keys
+	 * are forgotten even while producers are idle.
+	 * @return the scheduled task; cancel it to stop
+	 * @throws IllegalStateException if expiry isn't enabled
+	 */
+	public ScheduledFuture<?> scheduleExpiry(final ScheduledExecutorService scheduler) {
+		final Expiry<E, KeyType> expiry = expiry_;
+		if (expiry == null)
+			throw new IllegalStateException("expiry isn't enabled");
+		return scheduler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				expiry.wheel_.advance();
+			}
+		}, expiry.tickNanos_, expiry.tickNanos_, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return how many timeouts the expiry wheel holds
+	 */
+	int scheduledExpiryCount() {
+		final Expiry<E, KeyType> expiry = expiry_;
+		return expiry == null ? 0 : expiry.wheel_.size();
+	}
+
 	/**
 	 * Will return the first element that hasn't or
 	 * cannot coalesce. 
@@ -159,10 +690,15 @@ public class CoalescingBlockingQueue<E, KeyType> implements BlockingQueue<E> {
 	 * for more information.
 	 */
 	public E take() throws InterruptedException {
+		final CoalescingQueueMetrics metrics = metrics_;
+		final long start = metrics == null ? 0 : System.nanoTime();
 		while (true) {
-			E next = impl_.take();
-			if (!wouldCoalesce(next))
+			E next = waiter_ == null ? impl_.take() : awaitNext();
+			if (consume(next)) {
+				if (metrics != null)
+					metrics.tookAfter(System.nanoTime() - start);
 				return next;
+			}
 		}
 	}
 
@@ -180,11 +716,23 @@ public class CoalescingBlockingQueue<E, KeyType> implements BlockingQueue<E> {
 		return impl_.peek();
 	}
 	
+	/**
+	 * take() for a queue with a wait strategy.
+	 */
+	private E awaitNext() throws InterruptedException {
+		for (int idles = 0; ; ++idles) {
+			final E polled = impl_.poll();
+			if (polled != null)
+				return polled;
+			waiter_.idle(idles, hasElements_, Long.MAX_VALUE);
+		}
+	}
+
 	private E loop_poll(E original) {
 		while (true) {
 			if (original == null)
 				return original;
-			if (!wouldCoalesce(original))
+			if (consume(original))
 				return original;
 			original = impl_.poll();
 		}
@@ -216,14 +764,47 @@ public class CoalescingBlockingQueue<E, KeyType> implements BlockingQueue<E> {
 
 	/**
 	 * @see java.util.Collection#addAll(java.util.Collection)
+	 * An element followed in c by another for the same key never goes
+	 * near the wrapped queue, and is counted as offered and coalesced
+	 * only once that later element is in. So if the wrapped queue fills
+	 * part way through, nothing from there on was added, duplicates
+	 * included.
 	 */
 	public boolean addAll(final Collection<? extends E> c) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		// only the last element for a key would be live, so the
+		// earlier ones needn't go near the wrapped queue at all
+		final ArrayList<E> elements = new ArrayList<E>(c);
+		final ArrayList<KeyType> keys = new ArrayList<KeyType>(elements.size());
+		final HashMap<KeyType, Integer> last = new HashMap<KeyType, Integer>();
+		for (int i = 0; i < elements.size(); ++i) {
+			final KeyType key = keyFor(elements.get(i));
+			keys.add(key);
+			if (key != null)
+				last.put(key, i);
+		}
+		// how many elements each survivor stands for
+		final int[] standsFor = new int[elements.size()];
+		for (final KeyType key : keys) {
+			if (key != null)
+				++standsFor[last.get(key)];
+		}
+		final CoalescingQueueMetrics metrics = metrics_;
 		boolean collectionChanged = false;
-		for (final E element: c) {
-			if (add(element))
-				collectionChanged = true;
-			else
-				return collectionChanged;		
+		for (int i = 0; i < elements.size(); ++i) {
+			final KeyType key = keys.get(i);
+			if (key != null && last.get(key) != i)
+				continue;
+			if (!add(elements.get(i), key))
+				return collectionChanged;
+			collectionChanged = true;
+			if (metrics != null) {
+				for (int superseded = 1; superseded < standsFor[i]; ++superseded) {
+					metrics.offered();
+					metrics.coalesced();
+				}
+			}
 		}
 		return collectionChanged;
 	}
@@ -233,16 +814,30 @@ public class CoalescingBlockingQueue<E, KeyType> implements BlockingQueue<E> {
 	 */
 	public void clear() {
 		impl_.clear();
+		latest_.clear();
+		claimed_.clear();
+		final Expiry<E, KeyType> expiry = expiry_;
+		if (expiry != null)
+			expiry.clear();
+		uncoalescable_.set(0);
 	}
 
 	/**
 	 * @see java.util.Collection#contains(java.lang.Object)
 	 * @throws ClassCastException if o isn't an E.
-	 * @return true if o is a non coalescable member of the queue
+	 * @return true if o equals a non coalescable member of the queue;
+	 * for a key we remember, that's just the latest element, so there's
+	 * no need to search the wrapped queue at all.
 	 */
 	public boolean contains(final Object o) {
-		E o2 = (E) o;
-		return impl_.contains(o2) && !wouldCoalesce(o2);
+		final E o2 = asElement(o);
+		if (!policy_.shouldCoalesce(o2))
+			return impl_.contains(o2);
+		final KeyType key = smith_.makeKey(o2);
+		final Remembered<E> latest = latest_.get(key);
+		if (latest != null)
+			return o2.equals(latest.element_);
+		return !claimed_.containsKey(key) && impl_.contains(o2);
 	}
 
 	/**
@@ -259,102 +854,431 @@ public class CoalescingBlockingQueue<E, KeyType> implements BlockingQueue<E> {
 
 	/**
 	 * @see java.util.Collection#isEmpty()
-	 * @return true if underlying queue is empty
+	 * @return true if size() is zero, with the same caveats; with
+	 * capped keys, only if the wrapped queue is empty as well, since
+	 * size() doesn't count elements whose key was evicted
 	 */
 	public boolean isEmpty() {
-		return !iterator().hasNext();
+		return size() == 0 && (!capped_ || impl_.isEmpty());
 	}
 
 	/**
 	 * @see java.util.Collection#iterator()
-	 * Access from one thread only!
+	 * Walks the wrapped queue's own iterator, skipping stale elements, so
+	 * it's as weakly consistent as that one is (for the java.util.concurrent
+	 * queues, entirely safe to use while producers and consumers carry on)
+	 * and copies nothing. remove() works as remove(Object) does.
 	 */
 	public Iterator<E> iterator() {
 		return new CoalescingIterator();
 	}
 
-	public boolean remove(Object o) {
-		// TODO Auto-generated method stub
-		return false;
+	/**
+	 * @see java.util.Collection#spliterator()
+	 * As weakly consistent as iterator(), splitting wherever the wrapped
+	 * queue's spliterator does; never SIZED, since size() is an estimate.
+	 */
+	public Spliterator<E> spliterator() {
+		return new CoalescingSpliterator(impl_.spliterator());
 	}
 
-	public boolean removeAll(Collection<?> c) {
-		// TODO Auto-generated method stub
-		return false;
+	/**
+	 * @see java.util.Collection#stream()
+	 */
+	public Stream<E> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * @see java.util.Collection#parallelStream()
+	 */
+	public Stream<E> parallelStream() {
+		return StreamSupport.stream(spliterator(), true);
+	}
+
+	/**
+	 * @see java.util.Collection#remove(java.lang.Object)
+	 * @throws ClassCastException if o isn't an E.
+	 * If o coalesces, it's removed only if it equals the latest for its
+	 * key; that's found and retired through the key index in constant
+	 * time, the wrapped queue dropping it when it gets to the head.
+	 * Otherwise the wrapped queue is searched for it.
+	 */
+	public boolean remove(final Object o) {
+		final E o2 = asElement(o);
+		if (!policy_.shouldCoalesce(o2)) {
+			if (!impl_.remove(o2))
+				return false;
+			uncoalescable_.decrementAndGet();
+			return true;
+		}
+		final KeyType key = smith_.makeKey(o2);
+		final Remembered<E> latest = latest_.get(key);
+		return latest != null && o2.equals(latest.element_) && retire(key, latest);
 	}
 
-	public boolean retainAll(Collection<?> c) {
-		// TODO Auto-generated method stub
+	/**
+	 * Drops whatever is pending for key, in constant time: the latest
+	 * element is retired through the key index, and it and any older
+	 * elements for key are skipped when they reach the head.
+	 * @return true if there was something pending
+	 */
+	public boolean removeKey(final KeyType key) {
+		Remembered<E> latest;
+		while ((latest = latest_.get(key)) != null) {
+			if (retire(key, latest))
+				return true;
+		}
 		return false;
 	}
 
+	/**
+	 * removeKey for every pending key that matches; the cost is one
+	 * test per remembered key, not a search of the wrapped queue.
+	 * @return how many keys had something pending removed
+	 */
+	public int removeKeys(final Predicate<? super KeyType> matching) {
+		int removed = 0;
+		for (final KeyType key : latest_.keySet()) {
+			if (matching.test(key) && removeKey(key))
+				++removed;
+		}
+		return removed;
+	}
+
+	/**
+	 * @see java.util.Collection#removeAll(java.util.Collection)
+	 */
+	public boolean removeAll(final Collection<?> c) {
+		return removeIf(c, true);
+	}
+
+	/**
+	 * @see java.util.Collection#retainAll(java.util.Collection)
+	 */
+	public boolean retainAll(final Collection<?> c) {
+		return removeIf(c, false);
+	}
+
+	private boolean removeIf(final Collection<?> c, final boolean ifContained) {
+		boolean changed = false;
+		for (final Iterator<E> it = iterator(); it.hasNext(); ) {
+			if (c.contains(it.next()) == ifContained) {
+				it.remove();
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
 	/**
 	 * @see java.util.Collection#size()
-	 * Returns the number of non coalescing elements in this queue
+	 * Returns the number of non coalescing elements in this queue.
+	 * Since consuming the latest element for a key forgets that key,
+	 * this is just the number of keys we remember plus the number of
+	 * uncoalescable elements waiting, both of which are maintained as
+	 * we go. That makes it constant time but only weakly consistent:
+	 * an element is counted from just before it goes into the wrapped
+	 * queue until just before it's handed out, so size() can be off by
+	 * the elements in flight, and is zero once everything has been
+	 * consumed.
+	 *
+	 * Unlike the old size(), which walked the wrapped queue, this
+	 * deliberately knows nothing of changes made directly to the wrapped
+	 * queue. With capped keys it counts at most maxKeys coalescing
+	 * elements: one whose key was evicted is still delivered, but not
+	 * counted, so size() is a lower bound there.
 	 */
 	public int size() {
-		int result = 0;
-		for (@SuppressWarnings("unused") final E countWorthy: this) {
-			++result;
-		}
-		return result;
+		return Math.max(0, uncoalescable_.get() + latest_.size());
 	}
 
+	/**
+	 * @see java.util.Collection#toArray()
+	 * The live elements, as iterator() finds them.
+	 */
 	public Object[] toArray() {
-		// TODO Auto-generated method stub
-		return null;
+		return snapshot().toArray();
+	}
+
+	/**
+	 * @see java.util.Collection#toArray(java.lang.Object[])
+	 */
+	public <T> T[] toArray(final T[] a) {
+		return snapshot().toArray(a);
 	}
 
-	public <T> T[] toArray(T[] a) {
-		// TODO Auto-generated method stub
-		return null;
+	private ArrayList<E> snapshot() {
+		final ArrayList<E> snapshot = new ArrayList<E>();
+		for (final E el : this)
+			snapshot.add(el);
+		return snapshot;
 	}
 	
+	/**
+	 * When the latest element for each key expires. Elements carry no
+	 * timestamp of their own, so the deadline is kept by key: each key
+	 * has one Timer, put on the wheel once, and later elements for the
+	 * key just swap their deadline in. When the wheel gets to a timer it
+	 * retires the element if it's due, or puts the timer back on the
+	 * wheel if the deadline has moved on. So the wheel holds at most one
+	 * entry per key, and nothing older than the key's latest element.
+	 */
+	private static final class Expiry<E, KeyType> implements Consumer<Timer<E, KeyType>> {
+
+		private final CoalescingBlockingQueue<E, KeyType> queue_;
+		private final TimeToLive<? super E> ttl_;
+		private final Ticker ticker_;
+		private final long tickNanos_;
+		private final ConcurrentHashMap<KeyType, Timer<E, KeyType>> timers_ =
+			new ConcurrentHashMap<KeyType, Timer<E, KeyType>>();
+		private final TimerWheel<Timer<E, KeyType>> wheel_;
+
+		Expiry(final CoalescingBlockingQueue<E, KeyType> queue, final TimeToLive<? super E> ttl,
+				final long tickNanos, final Ticker ticker) {
+			queue_ = queue;
+			ttl_ = ttl;
+			ticker_ = ticker;
+			tickNanos_ = tickNanos;
+			wheel_ = new TimerWheel<Timer<E, KeyType>>(ticker, tickNanos, 256, this);
+		}
+
+		/**
+		 * o is now the latest for key.
+		 */
+		void enqueued(final KeyType key, final E o) {
+			final long ttl = ttl_.timeToLiveNanos(o);
+			while (true) {
+				final Timer<E, KeyType> timer = timers_.get(key);
+				if (timer == null) {
+					if (ttl == Long.MAX_VALUE)
+						break;
+					final Timer<E, KeyType> mine = new Timer<E, KeyType>(key,
+							new Deadline<E>(o, ticker_.nanoTime() + ttl));
+					if (timers_.putIfAbsent(key, mine) == null) {
+						wheel_.schedule(mine, mine.deadline_.at_);
+						break;
+					}
+					continue;
+				}
+				final Deadline<E> current = timer.deadline_;
+				if (current == null) {
+					// it has just fired for good; see it out
+					timers_.remove(key, timer);
+				} else if (timer.swap(current, ttl == Long.MAX_VALUE
+						? new Deadline<E>(null, current.at_)
+						: new Deadline<E>(o, ticker_.nanoTime() + ttl))) {
+					break;
+				}
+			}
+			wheel_.advance();
+		}
+
+		/**
+		 * el is leaving the wrapped queue.
+		 */
+		boolean hasExpired(final KeyType key, final E el) {
+			final Timer<E, KeyType> timer = timers_.get(key);
+			if (timer == null)
+				return false;
+			while (true) {
+				final Deadline<E> current = timer.deadline_;
+				if (current == null || current.element_ != el)
+					return false;
+				// the timer needn't hold on to el any more
+				if (timer.swap(current, new Deadline<E>(null, current.at_)))
+					return ticker_.nanoTime() - current.at_ >= 0;
+			}
+		}
+
+		/**
+		 * The wheel says timer is due: retire its element, so that nothing
+		 * keeps it reachable but the wrapped queue, unless a newer element
+		 * has moved the deadline on since.
+		 */
+		public void accept(final Timer<E, KeyType> timer) {
+			while (true) {
+				final Deadline<E> current = timer.deadline_;
+				if (current == null)
+					return;
+				if (ticker_.nanoTime() - current.at_ < 0) {
+					wheel_.schedule(timer, current.at_);
+					return;
+				}
+				if (timer.swap(current, null)) {
+					timers_.remove(timer.key_, timer);
+					if (current.element_ != null)
+						queue_.retireIfLatest(timer.key_, current.element_);
+					return;
+				}
+			}
+		}
+
+		void clear() {
+			for (final Timer<E, KeyType> timer : timers_.values())
+				timer.deadline_ = null;
+			timers_.clear();
+		}
+	}
+
+	private static final class Timer<E, KeyType> {
+		@SuppressWarnings("rawtypes")
+		private static final AtomicReferenceFieldUpdater<Timer, Deadline> DEADLINE =
+			AtomicReferenceFieldUpdater.newUpdater(Timer.class, Deadline.class, "deadline_");
+
+		final KeyType key_;
+		// null once the timer has fired for good
+		volatile Deadline<E> deadline_;
+
+		Timer(final KeyType key, final Deadline<E> deadline) {
+			key_ = key;
+			deadline_ = deadline;
+		}
+
+		boolean swap(final Deadline<E> expected, final Deadline<E> replacement) {
+			return DEADLINE.compareAndSet(this, expected, replacement);
+		}
+	}
+
+	/**
+	 * When element expires; a null element means
+	 * there's nothing pending for the key.
+	 */
+	private static final class Deadline<E> {
+		final E element_;
+		final long at_;
+
+		Deadline(final E element, final long at) {
+			element_ = element;
+			at_ = at;
+		}
+	}
+
+	/**
+	 * Sits between the wrapped queue's drainTo and the caller's
+	 * collection, passing on only live elements, so we needn't
+	 * copy the queue's contents somewhere first.
+	 */
+	private class CoalescingSink extends AbstractCollection<E> {
+
+		private final Collection<? super E> target_;
+		private int seen_;
+		private int passed_;
+
+		CoalescingSink(final Collection<? super E> target) {
+			target_ = target;
+		}
+
+		public boolean add(final E element) {
+			++seen_;
+			if (!consume(element))
+				return false;
+			target_.add(element);
+			++passed_;
+			return true;
+		}
+
+		public Iterator<E> iterator() {
+			return Collections.<E>emptyList().iterator();
+		}
+
+		public int size() {
+			return 0;
+		}
+	}
+
 	private class CoalescingIterator implements Iterator<E> {
 
 		private final Iterator<E> it_impl_;
 		private E precached_;
-		
-		public CoalescingIterator() {
+		private E lastReturned_;
+
+		CoalescingIterator() {
 			it_impl_ = impl_.iterator();
 		}
-		
+
 		/**
-		 * We assume this will be called in tandem with next(),
-		 * so we precache the next non coalescing element in an
-		 * attempt to match the behaviour of the two functions
-		 * @return true if a none coalescable element is retrievable
+		 * Precaches the next live element, so that hasNext() and
+		 * next() agree however they're interleaved.
 		 */
 		public boolean hasNext() {
-			if (precached_ != null)
-				return true;
-			while (it_impl_.hasNext()) {
-				precached_ = it_impl_.next();
-				if (!wouldCoalesce(precached_))
-					return true;
+			while (precached_ == null && it_impl_.hasNext()) {
+				final E candidate = it_impl_.next();
+				if (!wouldCoalesce(candidate))
+					precached_ = candidate;
 			}
-			precached_ = null;
-			return false;
+			return precached_ != null;
 		}
 
 		public E next() {
-			E result = null;
-			if (precached_ != null)
-				result = precached_;
-			if (hasNext())
-				result = precached_;
-			if (result != null) {
-				precached_ = null;
-				return result;
-			}
-			throw new NoSuchElementException();
+			if (!hasNext())
+				throw new NoSuchElementException();
+			lastReturned_ = precached_;
+			precached_ = null;
+			return lastReturned_;
 		}
 
 		public void remove() {
-			// TODO Auto-generated method stub
-			
+			if (lastReturned_ == null)
+				throw new IllegalStateException();
+			CoalescingBlockingQueue.this.remove(lastReturned_);
+			lastReturned_ = null;
+		}
+
+	}
+
+	/**
+	 * Filters the wrapped queue's spliterator down to live elements.
+	 */
+	private class CoalescingSpliterator implements Spliterator<E>, Consumer<E> {
+
+		private final Spliterator<E> raw_;
+		private E advanced_;
+
+		CoalescingSpliterator(final Spliterator<E> raw) {
+			raw_ = raw;
+		}
+
+		public void accept(final E el) {
+			advanced_ = el;
+		}
+
+		public boolean tryAdvance(final Consumer<? super E> action) {
+			while (raw_.tryAdvance(this)) {
+				final E el = advanced_;
+				advanced_ = null;
+				if (!wouldCoalesce(el)) {
+					action.accept(el);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public void forEachRemaining(final Consumer<? super E> action) {
+			raw_.forEachRemaining(new Consumer<E>() {
+				public void accept(final E el) {
+					if (!wouldCoalesce(el))
+						action.accept(el);
+				}
+			});
+		}
+
+		public Spliterator<E> trySplit() {
+			final Spliterator<E> split = raw_.trySplit();
+			return split == null ? null : new CoalescingSpliterator(split);
+		}
+
+		/**
+		 * Stale elements included, so an upper bound.
+		 */
+		public long estimateSize() {
+			return raw_.estimateSize();
+		}
+
+		public int characteristics() {
+			return raw_.characteristics() & (ORDERED | NONNULL | CONCURRENT);
 		}
-		
 	}
 
 }
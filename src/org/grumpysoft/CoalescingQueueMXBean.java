@@ -0,0 +1,36 @@
+package org.grumpysoft;
+
+/**
+ * What a coalescing queue's metrics look like over JMX.
+ * Durations are in nanoseconds.
+ */
+public interface CoalescingQueueMXBean {
+	public long getOffered();
+
+	public long getCoalesced();
+
+	public long getDelivered();
+
+	/**
+	 * @return coalesced / offered, or zero before anything is offered
+	 */
+	public double getCoalescingRatio();
+
+	public int getLiveDepth();
+
+	public int getRawDepth();
+
+	public int getRememberedKeys();
+
+	public long getTakes();
+
+	public long getTakeWaitNanos();
+
+	public long getResidenceNanosP50();
+
+	public long getResidenceNanosP99();
+
+	public long getResidenceNanosP999();
+
+	public long getResidenceNanosMax();
+}
@@ -0,0 +1,149 @@
+package org.grumpysoft;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters, gauges and (optionally) residence time for one queue.
+ * Queues only create one of these when asked to, so an uninstrumented
+ * queue pays a null check and nothing more. The counters are striped
+ * LongAdders, so producers and consumers don't fight over a cache line.
+ *
+ * Residence time is how long a live slot waited between its key (or
+ * uncoalescable element) arriving and a consumer taking it; only queues
+ * that own their slots can record it.
+ *
+ * @author james
+ */
+public final class CoalescingQueueMetrics implements CoalescingQueueMXBean {
+
+	/**
+	 * The numbers a metrics object has to ask its queue for.
+	 */
+	interface Gauges {
+		int liveDepth();
+
+		int rawDepth();
+
+		int rememberedKeys();
+	}
+
+	private final Gauges gauges_;
+	private final LongAdder offered_ = new LongAdder();
+	private final LongAdder coalesced_ = new LongAdder();
+	private final LongAdder delivered_ = new LongAdder();
+	private final LongAdder takes_ = new LongAdder();
+	private final LongAdder takeWaitNanos_ = new LongAdder();
+	private final LatencyHistogram residence_;
+
+	CoalescingQueueMetrics(final Gauges gauges, final boolean recordResidence) {
+		gauges_ = gauges;
+		residence_ = recordResidence ? new LatencyHistogram() : null;
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server as
+	 * org.grumpysoft:type=CoalescingQueue,name=<name>.
+	 * @return the name registered under, for unregistering later
+	 */
+	public ObjectName registerMBean(final String name) throws JMException {
+		final ObjectName objectName = new ObjectName(
+				"org.grumpysoft:type=CoalescingQueue,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	void offered() {
+		offered_.increment();
+	}
+
+	void coalesced() {
+		coalesced_.increment();
+	}
+
+	void delivered() {
+		delivered_.increment();
+	}
+
+	void delivered(final int count) {
+		delivered_.add(count);
+	}
+
+	void tookAfter(final long waitNanos) {
+		takes_.increment();
+		takeWaitNanos_.add(waitNanos);
+	}
+
+	boolean recordsResidence() {
+		return residence_ != null;
+	}
+
+	void resided(final long nanos) {
+		if (residence_ != null)
+			residence_.record(nanos);
+	}
+
+	/**
+	 * @return the residence time histogram, or null if it isn't being recorded
+	 */
+	public LatencyHistogram residence() {
+		return residence_;
+	}
+
+	public long getOffered() {
+		return offered_.sum();
+	}
+
+	public long getCoalesced() {
+		return coalesced_.sum();
+	}
+
+	public long getDelivered() {
+		return delivered_.sum();
+	}
+
+	public double getCoalescingRatio() {
+		final long offered = getOffered();
+		return offered == 0 ? 0.0 : (double) getCoalesced() / offered;
+	}
+
+	public int getLiveDepth() {
+		return gauges_.liveDepth();
+	}
+
+	public int getRawDepth() {
+		return gauges_.rawDepth();
+	}
+
+	public int getRememberedKeys() {
+		return gauges_.rememberedKeys();
+	}
+
+	public long getTakes() {
+		return takes_.sum();
+	}
+
+	public long getTakeWaitNanos() {
+		return takeWaitNanos_.sum();
+	}
+
+	public long getResidenceNanosP50() {
+		return residence_ == null ? 0 : residence_.percentile(50);
+	}
+
+	public long getResidenceNanosP99() {
+		return residence_ == null ? 0 : residence_.percentile(99);
+	}
+
+	public long getResidenceNanosP999() {
+		return residence_ == null ? 0 : residence_.percentile(99.9);
+	}
+
+	public long getResidenceNanosMax() {
+		return residence_ == null ? 0 : residence_.max();
+	}
+
+}
@@ -0,0 +1,531 @@
+package org.grumpysoft;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A coalescing queue that throttles: the first update for a key opens a
+ * conflation window, every further update in the window is coalesced
+ * into it (merged, with a MergingPolicy), and only once the window has
+ * closed can a consumer take the result. So a consumer sees each key at
+ * most once per interval, however fast the updates come.
+ *
+ * Every window is the same length, so windows close in the order they
+ * opened; pending windows sit in one FIFO and closing them is a matter of
+ * moving the expired prefix over to the ready FIFO. That's a timer wheel
+ * with a single spoke: no per element timers, no sorting, O(1) all round.
+ * Once a window has closed, further updates still land in it until it's
+ * taken; the next update after that opens a new window.
+ *
+ * Elements the policy says shouldn't coalesce aren't throttled; they're
+ * ready as soon as they arrive. As with DelayQueue, size() counts open
+ * windows as well as closed ones, while peek, poll and drainTo only ever
+ * see closed ones.
+ *
+ * @author james
+ *
+ * @param <E> the underlying element that will be stored in the queue
+ * @param <KeyType> the type of key that will be used to work out whether to coalesce or not
+ */
+public class ConflatingBlockingQueue<E, KeyType> extends AbstractQueue<E>
+		implements BlockingQueue<E>, BatchDrainable<E> {
+
+	private final int capacity_;
+	private final long intervalNanos_;
+	private final CoalescingPolicy<E> policy_;
+	private final MergingPolicy<E> merger_;
+	private final LockSmith<E, KeyType> smith_;
+	private final Ticker ticker_;
+	private final HashMap<KeyType, Window<E, KeyType>> windows_ = new HashMap<KeyType, Window<E, KeyType>>();
+	private final ReentrantLock lock_ = new ReentrantLock();
+	private final Condition notEmpty_ = lock_.newCondition();
+	private final Condition notFull_ = lock_.newCondition();
+
+	// open windows, in the order they close
+	private Window<E, KeyType> openHead_;
+	private Window<E, KeyType> openTail_;
+	// closed windows and uncoalescables, ready to take
+	private Window<E, KeyType> readyHead_;
+	private Window<E, KeyType> readyTail_;
+	private int count_;
+
+	/**
+	 * @param capacity the maximum number of pending keys (and uncoalescables)
+	 * @param interval how long a window stays open
+	 * @param decider @see org.grumpysoft.CoalescingPolicy; if it's a
+	 * MergingPolicy, updates in a window are merged rather than replaced
+	 * @param jones Generates keys for queue objects that may coalesce
+	 * @param ticker the time, usually Ticker.SYSTEM
+	 */
+	public ConflatingBlockingQueue(final int capacity, final long interval, final TimeUnit unit,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones, final Ticker ticker) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive, was " + capacity);
+		if (interval < 0)
+			throw new IllegalArgumentException("interval mustn't be negative, was " + interval);
+		capacity_ = capacity;
+		intervalNanos_ = unit.toNanos(interval);
+		policy_ = decider;
+		merger_ = MergingPolicies.mergerFor(decider);
+		smith_ = jones;
+		ticker_ = ticker;
+	}
+
+	/**
+	 * An unbounded (well, Integer.MAX_VALUE) queue on the system clock.
+	 */
+	public ConflatingBlockingQueue(final long interval, final TimeUnit unit,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones) {
+		this(Integer.MAX_VALUE, interval, unit, decider, jones, Ticker.SYSTEM);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object)
+	 * Always succeeds if o's key has a window pending.
+	 */
+	public boolean offer(final E o) {
+		final KeyType key = keyFor(o);
+		lock_.lock();
+		try {
+			if (conflate(key, o))
+				return true;
+			if (count_ == capacity_)
+				return false;
+			enqueue(key, o);
+			return true;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
+	 */
+	public boolean offer(final E o, final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		final KeyType key = keyFor(o);
+		long nanos = unit.toNanos(timeout);
+		lock_.lockInterruptibly();
+		try {
+			while (true) {
+				if (conflate(key, o))
+					return true;
+				if (count_ < capacity_) {
+					enqueue(key, o);
+					return true;
+				}
+				if (nanos <= 0)
+					return false;
+				nanos = notFull_.awaitNanos(nanos);
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+	 * Never blocks if o's key has a window pending.
+	 */
+	public void put(final E o) throws InterruptedException {
+		final KeyType key = keyFor(o);
+		lock_.lockInterruptibly();
+		try {
+			while (true) {
+				if (conflate(key, o))
+					return;
+				if (count_ < capacity_) {
+					enqueue(key, o);
+					return;
+				}
+				notFull_.await();
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Queue#poll()
+	 * @return the oldest closed window, or null if none has closed yet
+	 */
+	public E poll() {
+		lock_.lock();
+		try {
+			close(ticker_.nanoTime());
+			return readyHead_ == null ? null : dequeue();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#poll(long, java.util.concurrent.TimeUnit)
+	 */
+	public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock_.lockInterruptibly();
+		try {
+			while (true) {
+				final long wait = untilReady();
+				if (wait == 0)
+					return dequeue();
+				if (nanos <= 0)
+					return null;
+				final long waited = Math.min(nanos, wait);
+				nanos -= waited - notEmpty_.awaitNanos(waited);
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#take()
+	 * Waits for the next window to close.
+	 */
+	public E take() throws InterruptedException {
+		lock_.lockInterruptibly();
+		try {
+			while (true) {
+				final long wait = untilReady();
+				if (wait == 0)
+					return dequeue();
+				if (wait == Long.MAX_VALUE)
+					notEmpty_.await();
+				else
+					notEmpty_.awaitNanos(wait);
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Queue#peek()
+	 * @return the oldest closed window, or null if none has closed yet
+	 */
+	public E peek() {
+		lock_.lock();
+		try {
+			close(ticker_.nanoTime());
+			return readyHead_ == null ? null : readyHead_.item_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+	 */
+	public int drainTo(final Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection, int)
+	 * Drains closed windows only.
+	 */
+	public int drainTo(final Collection<? super E> c, final int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		lock_.lock();
+		try {
+			close(ticker_.nanoTime());
+			int drained = 0;
+			while (drained < maxElements && readyHead_ != null) {
+				c.add(dequeue());
+				++drained;
+			}
+			return drained;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drainTo(java.lang.Object[], int, int)
+	 * Takes the lock once for the whole batch.
+	 */
+	public int drainTo(final E[] buffer, final int offset, final int length) {
+		Batches.checkBounds(buffer, offset, length);
+		lock_.lock();
+		try {
+			close(ticker_.nanoTime());
+			int drained = 0;
+			while (drained < length && readyHead_ != null)
+				buffer[offset + drained++] = dequeue();
+			return drained;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drain(org.grumpysoft.BatchHandler, int)
+	 * The handler is called without the lock held.
+	 */
+	public int drain(final BatchHandler<? super E> handler, final int maxElements) {
+		return Batches.drain(this, handler, maxElements);
+	}
+
+	/**
+	 * @see java.util.Collection#size()
+	 * Counts open windows as well as closed.
+	 */
+	public int size() {
+		lock_.lock();
+		try {
+			return count_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+	 */
+	public int remainingCapacity() {
+		lock_.lock();
+		try {
+			return capacity_ - count_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Collection#remove(java.lang.Object)
+	 * Removes the first window, closed or open, whose value equals o;
+	 * the key's next update opens a new window.
+	 */
+	public boolean remove(final Object o) {
+		if (o == null)
+			return false;
+		lock_.lock();
+		try {
+			return unlink(o, false);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Collection#clear()
+	 */
+	public void clear() {
+		lock_.lock();
+		try {
+			openHead_ = openTail_ = readyHead_ = readyTail_ = null;
+			windows_.clear();
+			count_ = 0;
+			notFull_.signalAll();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Collection#iterator()
+	 * Iterates over a snapshot of closed windows, then open ones;
+	 * remove() takes out the window if it still holds that value.
+	 */
+	public Iterator<E> iterator() {
+		final List<E> snapshot = new ArrayList<E>();
+		lock_.lock();
+		try {
+			close(ticker_.nanoTime());
+			for (Window<E, KeyType> w = readyHead_; w != null; w = w.next_)
+				snapshot.add(w.item_);
+			for (Window<E, KeyType> w = openHead_; w != null; w = w.next_)
+				snapshot.add(w.item_);
+		} finally {
+			lock_.unlock();
+		}
+		final Iterator<E> it = snapshot.iterator();
+		return new Iterator<E>() {
+			private E last_;
+
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public E next() {
+				last_ = it.next();
+				return last_;
+			}
+
+			public void remove() {
+				if (last_ == null)
+					throw new IllegalStateException();
+				lock_.lock();
+				try {
+					unlink(last_, true);
+				} finally {
+					lock_.unlock();
+					last_ = null;
+				}
+			}
+		};
+	}
+
+	private KeyType keyFor(final E o) {
+		if (o == null)
+			throw new NullPointerException();
+		return policy_.shouldCoalesce(o) ? smith_.makeKey(o) : null;
+	}
+
+	/**
+	 * Lock must be held.
+	 * @return true if key had a window pending for o to go in
+	 */
+	private boolean conflate(final KeyType key, final E o) {
+		if (key == null)
+			return false;
+		final Window<E, KeyType> pending = windows_.get(key);
+		if (pending == null)
+			return false;
+		pending.item_ = MergingPolicies.merge(merger_, pending.item_, o);
+		return true;
+	}
+
+	/**
+	 * Lock must be held, and there must be room. Opens a window for
+	 * key, or makes an uncoalescable ready straight away.
+	 */
+	private void enqueue(final KeyType key, final E o) {
+		final Window<E, KeyType> window = new Window<E, KeyType>(key, o);
+		if (key == null) {
+			appendReady(window);
+		} else {
+			window.closesAt_ = ticker_.nanoTime() + intervalNanos_;
+			windows_.put(key, window);
+			if (openTail_ == null) {
+				openHead_ = openTail_ = window;
+				// a consumer may be waiting with no deadline
+				notEmpty_.signal();
+			} else {
+				openTail_ = openTail_.next_ = window;
+			}
+		}
+		++count_;
+	}
+
+	/**
+	 * Lock must be held. Moves every window that has closed by now
+	 * over to the ready list.
+	 */
+	private void close(final long now) {
+		while (openHead_ != null && now - openHead_.closesAt_ >= 0) {
+			final Window<E, KeyType> closed = openHead_;
+			openHead_ = closed.next_;
+			if (openHead_ == null)
+				openTail_ = null;
+			closed.next_ = null;
+			appendReady(closed);
+		}
+	}
+
+	/**
+	 * Lock must be held.
+	 * @return 0 if there's a closed window to take, else how long until
+	 * the next one closes, or Long.MAX_VALUE if there's nothing open
+	 */
+	private long untilReady() {
+		final long now = ticker_.nanoTime();
+		close(now);
+		if (readyHead_ != null)
+			return 0;
+		return openHead_ == null ? Long.MAX_VALUE : Math.max(1, openHead_.closesAt_ - now);
+	}
+
+	/**
+	 * Lock must be held. Takes out the first window, closed ones first,
+	 * holding o itself if same, else a value equal to it.
+	 * @return true if there was one
+	 */
+	private boolean unlink(final Object o, final boolean same) {
+		close(ticker_.nanoTime());
+		Window<E, KeyType> previous = null;
+		for (Window<E, KeyType> w = readyHead_; w != null; previous = w, w = w.next_) {
+			if (same ? w.item_ == o : o.equals(w.item_)) {
+				if (previous == null)
+					readyHead_ = w.next_;
+				else
+					previous.next_ = w.next_;
+				if (readyTail_ == w)
+					readyTail_ = previous;
+				forget(w);
+				return true;
+			}
+		}
+		previous = null;
+		for (Window<E, KeyType> w = openHead_; w != null; previous = w, w = w.next_) {
+			if (same ? w.item_ == o : o.equals(w.item_)) {
+				if (previous == null)
+					openHead_ = w.next_;
+				else
+					previous.next_ = w.next_;
+				if (openTail_ == w)
+					openTail_ = previous;
+				forget(w);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void forget(final Window<E, KeyType> window) {
+		if (window.key_ != null)
+			windows_.remove(window.key_);
+		--count_;
+		notFull_.signal();
+	}
+
+	private void appendReady(final Window<E, KeyType> window) {
+		if (readyTail_ == null) {
+			readyHead_ = readyTail_ = window;
+			notEmpty_.signal();
+		} else {
+			readyTail_ = readyTail_.next_ = window;
+		}
+	}
+
+	/**
+	 * Lock must be held, and there must be a closed window.
+	 */
+	private E dequeue() {
+		final Window<E, KeyType> window = readyHead_;
+		readyHead_ = window.next_;
+		if (readyHead_ == null)
+			readyTail_ = null;
+		if (window.key_ != null)
+			windows_.remove(window.key_);
+		--count_;
+		notFull_.signal();
+		if (readyHead_ != null || openHead_ != null)
+			notEmpty_.signal();
+		return window.item_;
+	}
+
+	private static final class Window<E, KeyType> {
+		private final KeyType key_;
+		private E item_;
+		private long closesAt_;
+		private Window<E, KeyType> next_;
+
+		Window(final KeyType key, final E item) {
+			key_ = key;
+			item_ = item;
+		}
+	}
+
+}
@@ -0,0 +1,24 @@
+package org.grumpysoft;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns elements into bytes and back for the queues that keep their
+ * elements outside the heap.
+ *
+ * Both methods work on the queue's own buffer, positioned at the start of
+ * the element's bytes; neither may hang on to it once they've returned.
+ */
+public interface ElementSerializer<E> {
+	/**
+	 * Writes element from buffer's position, advancing it. Running past
+	 * the limit (a BufferOverflowException) means the element is too big.
+	 */
+	public void write(final E element, final ByteBuffer buffer);
+
+	/**
+	 * Reads an element from buffer's position up to its limit, which
+	 * is where write left off.
+	 */
+	public E read(final ByteBuffer buffer);
+}
@@ -0,0 +1,554 @@
+package org.grumpysoft;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded blocking queue that coalesces in place rather than on the
+ * way out. Every key gets exactly one slot, positioned by the order in
+ * which that key first arrived; offering a newer element for a key that is
+ * still pending simply overwrites the value in its slot. Elements that the
+ * policy says should not coalesce get a slot of their own.
+ *
+ * Unlike CoalescingBlockingQueue this is not a wrapper, so superseded
+ * elements never take up room: size() and remainingCapacity() reflect
+ * live slots, and a producer re-offering a pending key never blocks.
+ *
+ * @author james
+ *
+ * @param <E> the underlying element that will be stored in the queue
+ * @param <KeyType> the type of key that will be used to work out whether to coalesce or not
+ */
+public class InPlaceCoalescingBlockingQueue<E, KeyType> extends AbstractQueue<E>
+		implements BlockingQueue<E>, BatchDrainable<E>, BatchOfferable<E> {
+
+	private final int capacity_;
+	private final CoalescingPolicy<E> policy_;
+	private final MergingPolicy<E> merger_;
+	private final LockSmith<E, KeyType> smith_;
+	private final HashMap<KeyType, Slot<E, KeyType>> slots_ = new HashMap<KeyType, Slot<E, KeyType>>();
+	private final ReentrantLock lock_ = new ReentrantLock();
+	private final Condition notEmpty_ = lock_.newCondition();
+	private final Condition notFull_ = lock_.newCondition();
+
+	private volatile CoalescingQueueMetrics metrics_;
+
+	private Slot<E, KeyType> head_;
+	private Slot<E, KeyType> tail_;
+	private int count_;
+
+	/**
+	 * @param capacity the maximum number of live slots
+	 * @param decider @see org.grumpysoft.CoalescingPolicy; if it's a
+	 * MergingPolicy, pending elements are merged rather than replaced
+	 * @param jones Generates keys for queue objects that may coalesce
+	 */
+	public InPlaceCoalescingBlockingQueue(final int capacity,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive, was " + capacity);
+		capacity_ = capacity;
+		policy_ = decider;
+		merger_ = MergingPolicies.mergerFor(decider);
+		smith_ = jones;
+	}
+
+	/**
+	 * An unbounded (well, Integer.MAX_VALUE) queue.
+	 */
+	public InPlaceCoalescingBlockingQueue(final CoalescingPolicy<E> decider,
+			final LockSmith<E, KeyType> jones) {
+		this(Integer.MAX_VALUE, decider, jones);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object)
+	 * Always succeeds if o supersedes a pending element.
+	 */
+	public boolean offer(final E o) {
+		final KeyType key = keyFor(o);
+		lock_.lock();
+		try {
+			if (overwrite(key, o))
+				return true;
+			if (count_ == capacity_)
+				return false;
+			enqueue(key, o);
+			return true;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchOfferable#offerAll(java.lang.Object[], int, int)
+	 * Takes the lock once for the whole batch.
+	 */
+	public boolean offerAll(final E[] batch, final int offset, final int length) {
+		final CoalescedBatch<E, KeyType> survivors =
+			new CoalescedBatch<E, KeyType>(batch, offset, length, policy_, merger_, smith_);
+		lock_.lock();
+		try {
+			int needed = 0;
+			for (int i = 0; i < survivors.size(); ++i) {
+				final KeyType key = survivors.key(i);
+				if (key == null || !slots_.containsKey(key))
+					++needed;
+			}
+			if (needed > capacity_ - count_)
+				return false;
+			for (int i = 0; i < survivors.size(); ++i) {
+				final KeyType key = survivors.key(i);
+				if (!overwrite(key, survivors.element(i)))
+					enqueue(key, survivors.element(i));
+			}
+			return true;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Collection#addAll(java.util.Collection)
+	 * One offerAll, if the whole collection fits.
+	 */
+	public boolean addAll(final Collection<? extends E> c) {
+		return Batches.addAll(this, c);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
+	 */
+	public boolean offer(final E o, final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		final KeyType key = keyFor(o);
+		long nanos = unit.toNanos(timeout);
+		lock_.lockInterruptibly();
+		try {
+			while (true) {
+				if (overwrite(key, o))
+					return true;
+				if (count_ < capacity_) {
+					enqueue(key, o);
+					return true;
+				}
+				if (nanos <= 0)
+					return false;
+				nanos = notFull_.awaitNanos(nanos);
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+	 * Never blocks if o supersedes a pending element.
+	 */
+	public void put(final E o) throws InterruptedException {
+		final KeyType key = keyFor(o);
+		lock_.lockInterruptibly();
+		try {
+			while (true) {
+				if (overwrite(key, o))
+					return;
+				if (count_ < capacity_) {
+					enqueue(key, o);
+					return;
+				}
+				notFull_.await();
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Queue#poll()
+	 */
+	public E poll() {
+		lock_.lock();
+		try {
+			return count_ == 0 ? null : dequeue();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#poll(long, java.util.concurrent.TimeUnit)
+	 */
+	public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock_.lockInterruptibly();
+		try {
+			while (count_ == 0) {
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty_.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#take()
+	 */
+	public E take() throws InterruptedException {
+		final CoalescingQueueMetrics metrics = metrics_;
+		final long start = metrics == null ? 0 : System.nanoTime();
+		final E taken;
+		lock_.lockInterruptibly();
+		try {
+			while (count_ == 0)
+				notEmpty_.await();
+			taken = dequeue();
+		} finally {
+			lock_.unlock();
+		}
+		if (metrics != null)
+			metrics.tookAfter(System.nanoTime() - start);
+		return taken;
+	}
+
+	/**
+	 * @see java.util.Queue#peek()
+	 * Unlike the wrapping queue, this *does* coalesce; you'll
+	 * see the latest value for the key at the head.
+	 */
+	public E peek() {
+		lock_.lock();
+		try {
+			return head_ == null ? null : head_.item_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+	 */
+	public int drainTo(final Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection, int)
+	 */
+	public int drainTo(final Collection<? super E> c, final int maxElements) {
+		if (c == null)
+			throw new NullPointerException();
+		if (c == this)
+			throw new IllegalArgumentException();
+		lock_.lock();
+		try {
+			int drained = 0;
+			while (drained < maxElements && count_ > 0) {
+				c.add(dequeue());
+				++drained;
+			}
+			return drained;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drainTo(java.lang.Object[], int, int)
+	 * Takes the lock once for the whole batch.
+	 */
+	public int drainTo(final E[] buffer, final int offset, final int length) {
+		Batches.checkBounds(buffer, offset, length);
+		lock_.lock();
+		try {
+			int drained = 0;
+			while (drained < length && count_ > 0)
+				buffer[offset + drained++] = dequeue();
+			return drained;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drain(org.grumpysoft.BatchHandler, int)
+	 * The handler is called without the lock held, so it may take its
+	 * time without holding up producers.
+	 */
+	public int drain(final BatchHandler<? super E> handler, final int maxElements) {
+		return Batches.drain(this, handler, maxElements);
+	}
+
+	/**
+	 * @see java.util.Collection#size()
+	 * Returns the number of live slots.
+	 */
+	public int size() {
+		lock_.lock();
+		try {
+			return count_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+	 */
+	public int remainingCapacity() {
+		lock_.lock();
+		try {
+			return capacity_ - count_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Collection#contains(java.lang.Object)
+	 * @return true if o is the current value of a live slot
+	 */
+	public boolean contains(final Object o) {
+		if (o == null)
+			return false;
+		lock_.lock();
+		try {
+			for (Slot<E, KeyType> s = head_; s != null; s = s.next_) {
+				if (o.equals(s.item_))
+					return true;
+			}
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Collection#remove(java.lang.Object)
+	 * Removes the first live slot whose current value equals o.
+	 */
+	public boolean remove(final Object o) {
+		if (o == null)
+			return false;
+		lock_.lock();
+		try {
+			Slot<E, KeyType> previous = null;
+			for (Slot<E, KeyType> s = head_; s != null; previous = s, s = s.next_) {
+				if (o.equals(s.item_)) {
+					unlink(previous, s);
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Collection#clear()
+	 */
+	public void clear() {
+		lock_.lock();
+		try {
+			head_ = tail_ = null;
+			count_ = 0;
+			slots_.clear();
+			notFull_.signalAll();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Collection#iterator()
+	 * Iterates over a snapshot of the live values taken at creation;
+	 * remove() takes out the live slot if it still holds that value.
+	 */
+	public Iterator<E> iterator() {
+		final ArrayList<E> snapshot = new ArrayList<E>();
+		lock_.lock();
+		try {
+			for (Slot<E, KeyType> s = head_; s != null; s = s.next_)
+				snapshot.add(s.item_);
+		} finally {
+			lock_.unlock();
+		}
+		return new SnapshotIterator(snapshot.iterator());
+	}
+
+	/**
+	 * Starts counting what this queue does; until then it counts nothing.
+	 * Residence time, if asked for, is measured from a key's first
+	 * arrival to its slot being taken, so it includes any time spent
+	 * being overwritten. Raw and live depth are the same thing here.
+	 * @return the metrics, to be read or registered with JMX
+	 */
+	public CoalescingQueueMetrics enableMetrics(final boolean recordResidence) {
+		lock_.lock();
+		try {
+			if (metrics_ == null) {
+				metrics_ = new CoalescingQueueMetrics(new CoalescingQueueMetrics.Gauges() {
+					public int liveDepth() {
+						return size();
+					}
+
+					public int rawDepth() {
+						return size();
+					}
+
+					public int rememberedKeys() {
+						lock_.lock();
+						try {
+							return slots_.size();
+						} finally {
+							lock_.unlock();
+						}
+					}
+				}, recordResidence);
+			}
+			return metrics_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	private KeyType keyFor(final E o) {
+		if (o == null)
+			throw new NullPointerException();
+		return policy_.shouldCoalesce(o) ? smith_.makeKey(o) : null;
+	}
+
+	/**
+	 * Lock must be held.
+	 * @return true if there was a pending slot for key to take o.
+	 */
+	private boolean overwrite(final KeyType key, final E o) {
+		if (key == null)
+			return false;
+		final Slot<E, KeyType> pending = slots_.get(key);
+		if (pending == null)
+			return false;
+		pending.item_ = MergingPolicies.merge(merger_, pending.item_, o);
+		final CoalescingQueueMetrics metrics = metrics_;
+		if (metrics != null) {
+			metrics.offered();
+			metrics.coalesced();
+		}
+		return true;
+	}
+
+	/**
+	 * Lock must be held, and there must be room.
+	 */
+	private void enqueue(final KeyType key, final E o) {
+		final Slot<E, KeyType> slot = new Slot<E, KeyType>(key, o);
+		final CoalescingQueueMetrics metrics = metrics_;
+		if (metrics != null) {
+			metrics.offered();
+			if (metrics.recordsResidence())
+				slot.arrivedAt_ = System.nanoTime();
+		}
+		if (key != null)
+			slots_.put(key, slot);
+		if (tail_ == null)
+			head_ = slot;
+		else
+			tail_.next_ = slot;
+		tail_ = slot;
+		++count_;
+		notEmpty_.signal();
+	}
+
+	/**
+	 * Lock must be held, and the queue must not be empty.
+	 */
+	private E dequeue() {
+		final Slot<E, KeyType> slot = head_;
+		unlink(null, slot);
+		final CoalescingQueueMetrics metrics = metrics_;
+		if (metrics != null) {
+			metrics.delivered();
+			if (metrics.recordsResidence())
+				metrics.resided(System.nanoTime() - slot.arrivedAt_);
+		}
+		return slot.item_;
+	}
+
+	/**
+	 * Lock must be held.
+	 */
+	private void unlink(final Slot<E, KeyType> previous, final Slot<E, KeyType> slot) {
+		if (previous == null)
+			head_ = slot.next_;
+		else
+			previous.next_ = slot.next_;
+		if (tail_ == slot)
+			tail_ = previous;
+		slot.next_ = null;
+		if (slot.key_ != null)
+			slots_.remove(slot.key_);
+		--count_;
+		notFull_.signal();
+	}
+
+	private static final class Slot<E, KeyType> {
+		private final KeyType key_;
+		private E item_;
+		private Slot<E, KeyType> next_;
+		private long arrivedAt_;
+
+		Slot(final KeyType key, final E item) {
+			key_ = key;
+			item_ = item;
+		}
+	}
+
+	private class SnapshotIterator implements Iterator<E> {
+
+		private final Iterator<E> it_snapshot_;
+		private E last_;
+
+		SnapshotIterator(final Iterator<E> snapshot) {
+			it_snapshot_ = snapshot;
+		}
+
+		public boolean hasNext() {
+			return it_snapshot_.hasNext();
+		}
+
+		public E next() {
+			last_ = it_snapshot_.next();
+			return last_;
+		}
+
+		public void remove() {
+			if (last_ == null)
+				throw new IllegalStateException();
+			lock_.lock();
+			try {
+				Slot<E, KeyType> previous = null;
+				for (Slot<E, KeyType> s = head_; s != null; previous = s, s = s.next_) {
+					if (s.item_ == last_) {
+						unlink(previous, s);
+						break;
+					}
+				}
+			} finally {
+				lock_.unlock();
+				last_ = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,9 @@
+package org.grumpysoft;
+
+/**
+ * A LockSmith for keys that are really just an int, so
+ * nobody has to box them.
+ */
+public interface IntLockSmith<KeySource> {
+	public int makeKey(final KeySource toGenerateFrom);
+}
@@ -0,0 +1,160 @@
+package org.grumpysoft;
+
+/**
+ * An open addressed map from key to the (non negative) sequence number
+ * of the slot that key currently occupies. Linear probing, with
+ * backward shift on removal so there are never any tombstones.
+ *
+ * Not thread safe - it belongs to whichever thread enqueues, or to
+ * whoever holds the lock around it - and allocation free as long as it
+ * never has to grow past the size it was built for, which is rather
+ * the point.
+ *
+ * @author james
+ */
+final class KeySequenceIndex<K> {
+
+	static final long ABSENT = -1L;
+
+	private Object[] keys_;
+	private long[] sequences_;
+	private int mask_;
+	private int size_;
+
+	/**
+	 * @param maxKeys the most keys we expect to hold at once; the table
+	 * is sized to keep the load factor at or below a half, and doubles
+	 * should that turn out to be optimistic.
+	 */
+	KeySequenceIndex(final int maxKeys) {
+		final int cells = powerOfTwoAtLeast(2 * maxKeys);
+		keys_ = new Object[cells];
+		sequences_ = new long[cells];
+		mask_ = cells - 1;
+	}
+
+	/**
+	 * @return the sequence for key, or ABSENT
+	 */
+	long get(final K key) {
+		for (int cell = homeOf(key); keys_[cell] != null; cell = (cell + 1) & mask_) {
+			if (keys_[cell].equals(key))
+				return sequences_[cell];
+		}
+		return ABSENT;
+	}
+
+	void put(final K key, final long sequence) {
+		int cell = homeOf(key);
+		while (keys_[cell] != null) {
+			if (keys_[cell].equals(key)) {
+				sequences_[cell] = sequence;
+				return;
+			}
+			cell = (cell + 1) & mask_;
+		}
+		if (2 * (size_ + 1) > keys_.length) {
+			grow();
+			put(key, sequence);
+			return;
+		}
+		keys_[cell] = key;
+		sequences_[cell] = sequence;
+		++size_;
+	}
+
+	/**
+	 * Removes key, but only if it still maps to sequence.
+	 * @return true if anything was removed
+	 */
+	boolean remove(final K key, final long sequence) {
+		int cell = homeOf(key);
+		while (keys_[cell] != null) {
+			if (keys_[cell].equals(key)) {
+				if (sequences_[cell] != sequence)
+					return false;
+				shiftBackFrom(cell);
+				--size_;
+				return true;
+			}
+			cell = (cell + 1) & mask_;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes every key whose sequence is below the given one, which for
+	 * a queue means every key whose slot has been consumed.
+	 * @return how many keys were removed
+	 */
+	int removeBelow(final long sequence) {
+		int removed = 0;
+		int cell = 0;
+		while (cell <= mask_) {
+			// a shift can pull an unvisited entry into this cell, so look again
+			if (keys_[cell] != null && sequences_[cell] < sequence) {
+				shiftBackFrom(cell);
+				++removed;
+			} else {
+				++cell;
+			}
+		}
+		size_ -= removed;
+		return removed;
+	}
+
+	int size() {
+		return size_;
+	}
+
+	void clear() {
+		for (int cell = 0; cell <= mask_; ++cell)
+			keys_[cell] = null;
+		size_ = 0;
+	}
+
+	/**
+	 * Empties hole by pulling back any later entry in the same probe run
+	 * that would otherwise become unreachable.
+	 */
+	private void shiftBackFrom(int hole) {
+		int cell = (hole + 1) & mask_;
+		while (keys_[cell] != null) {
+			final int home = homeOf(keys_[cell]);
+			if (((cell - home) & mask_) >= ((cell - hole) & mask_)) {
+				keys_[hole] = keys_[cell];
+				sequences_[hole] = sequences_[cell];
+				hole = cell;
+			}
+			cell = (cell + 1) & mask_;
+		}
+		keys_[hole] = null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void grow() {
+		final Object[] oldKeys = keys_;
+		final long[] oldSequences = sequences_;
+		keys_ = new Object[oldKeys.length * 2];
+		sequences_ = new long[oldKeys.length * 2];
+		mask_ = keys_.length - 1;
+		size_ = 0;
+		for (int cell = 0; cell < oldKeys.length; ++cell) {
+			if (oldKeys[cell] != null)
+				put((K) oldKeys[cell], oldSequences[cell]);
+		}
+	}
+
+	private int homeOf(final Object key) {
+		final int h = key.hashCode();
+		return (h ^ (h >>> 16)) & mask_;
+	}
+
+	static int powerOfTwoAtLeast(final int n) {
+		int result = 1;
+		while (result < n)
+			result <<= 1;
+		return result;
+	}
+
+}
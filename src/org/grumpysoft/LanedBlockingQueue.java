@@ -0,0 +1,239 @@
+package org.grumpysoft;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A queue made of several queues ("lanes"), each with its own locking or
+ * lack of it; subclasses decide which lane an element goes in and which
+ * lane a consumer polls first. Everything else is a view over the lanes,
+ * in lane order. There's no one lock to wait on, so the blocking
+ * consumer methods poll round the lanes and then wait as the
+ * WaitStrategy says; by default they sleep on a condition that this
+ * queue's producer methods signal. Elements put straight into a lane
+ * signal nobody, so a sleeping consumer also looks round every
+ * millisecond in case. Pass WaitStrategies.spinThenPark() for lower
+ * latency at the cost of a core per idle consumer.
+ *
+ * @author james
+ *
+ * @param <E> the underlying element that will be stored in the queue
+ */
+abstract class LanedBlockingQueue<E> extends AbstractQueue<E>
+		implements BlockingQueue<E>, BatchDrainable<E> {
+
+	private static final long LANE_RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	final List<BlockingQueue<E>> lanes_;
+	private final WaitStrategy waiter_;
+	private final BooleanSupplier hasElements_ = new BooleanSupplier() {
+		public boolean getAsBoolean() {
+			return !isEmpty();
+		}
+	};
+
+	LanedBlockingQueue(final List<? extends BlockingQueue<E>> lanes, final WaitStrategy waiter) {
+		if (lanes.isEmpty())
+			throw new IllegalArgumentException("need at least one lane");
+		lanes_ = new ArrayList<BlockingQueue<E>>(lanes);
+		waiter_ = waiter;
+	}
+
+	/**
+	 * @return the lane o belongs in
+	 */
+	abstract BlockingQueue<E> route(final E o);
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object)
+	 */
+	public boolean offer(final E o) {
+		if (!route(o).offer(o))
+			return false;
+		waiter_.signal();
+		return true;
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
+	 */
+	public boolean offer(final E o, final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		if (!route(o).offer(o, timeout, unit))
+			return false;
+		waiter_.signal();
+		return true;
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+	 */
+	public void put(final E o) throws InterruptedException {
+		route(o).put(o);
+		waiter_.signal();
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#poll(long, java.util.concurrent.TimeUnit)
+	 */
+	public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (int idles = 0; ; ++idles) {
+			final E polled = poll();
+			if (polled != null)
+				return polled;
+			final long left = deadline - System.nanoTime();
+			if (left <= 0)
+				return null;
+			waiter_.idle(idles, hasElements_, Math.min(left, LANE_RECHECK_NANOS));
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#take()
+	 */
+	public E take() throws InterruptedException {
+		for (int idles = 0; ; ++idles) {
+			final E polled = poll();
+			if (polled != null)
+				return polled;
+			waiter_.idle(idles, hasElements_, LANE_RECHECK_NANOS);
+		}
+	}
+
+	/**
+	 * @see java.util.Queue#peek()
+	 * The head of the first non empty lane.
+	 */
+	public E peek() {
+		for (final BlockingQueue<E> lane : lanes_) {
+			final E peeked = lane.peek();
+			if (peeked != null)
+				return peeked;
+		}
+		return null;
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+	 */
+	public int drainTo(final Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection, int)
+	 * Drains lane by lane.
+	 */
+	public int drainTo(final Collection<? super E> c, final int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		int drained = 0;
+		for (int i = 0; i < lanes_.size() && drained < maxElements; ++i)
+			drained += lanes_.get(i).drainTo(c, maxElements - drained);
+		return drained;
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drainTo(java.lang.Object[], int, int)
+	 */
+	public int drainTo(final E[] buffer, final int offset, final int length) {
+		return Batches.drainTo(this, buffer, offset, length);
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drain(org.grumpysoft.BatchHandler, int)
+	 */
+	public int drain(final BatchHandler<? super E> handler, final int maxElements) {
+		return Batches.drain(this, handler, maxElements);
+	}
+
+	/**
+	 * @see java.util.Collection#size()
+	 * The sum over the lanes; not a snapshot.
+	 */
+	public int size() {
+		long size = 0;
+		for (final BlockingQueue<E> lane : lanes_)
+			size += lane.size();
+		return (int) Math.min(Integer.MAX_VALUE, size);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+	 * The sum over the lanes, though any one element can only use
+	 * the room in its own lane.
+	 */
+	public int remainingCapacity() {
+		long remaining = 0;
+		for (final BlockingQueue<E> lane : lanes_)
+			remaining += lane.remainingCapacity();
+		return (int) Math.min(Integer.MAX_VALUE, remaining);
+	}
+
+	/**
+	 * @see java.util.Collection#remove(java.lang.Object)
+	 * Asks each lane in turn, so o goes from the first lane that
+	 * has it.
+	 */
+	public boolean remove(final Object o) {
+		for (final BlockingQueue<E> lane : lanes_) {
+			if (lane.remove(o))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @see java.util.Collection#clear()
+	 */
+	public void clear() {
+		for (final BlockingQueue<E> lane : lanes_)
+			lane.clear();
+	}
+
+	/**
+	 * @see java.util.Collection#iterator()
+	 * Walks each lane's iterator in turn, so it's as consistent
+	 * as they are; remove() goes through the iterator of the lane
+	 * the last element came from.
+	 */
+	public Iterator<E> iterator() {
+		return new LaneIterator();
+	}
+
+	private class LaneIterator implements Iterator<E> {
+
+		private int lane_;
+		private Iterator<E> current_ = lanes_.get(0).iterator();
+		private Iterator<E> last_;
+
+		public boolean hasNext() {
+			while (!current_.hasNext() && lane_ + 1 < lanes_.size())
+				current_ = lanes_.get(++lane_).iterator();
+			return current_.hasNext();
+		}
+
+		public E next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			last_ = current_;
+			return current_.next();
+		}
+
+		public void remove() {
+			if (last_ == null)
+				throw new IllegalStateException();
+			last_.remove();
+			last_ = null;
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package org.grumpysoft;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, log linear histogram of nanosecond durations in the
+ * spirit of HdrHistogram: every power of two is split into sixteen
+ * buckets, so any recorded value is reported to within about 6%.
+ * Recording is a couple of shifts and an atomic increment, and
+ * never allocates; reading is a walk over the buckets.
+ *
+ * @author james
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts_ = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max_ = new AtomicLong();
+
+	/**
+	 * @param nanos negative values are counted as zero
+	 */
+	public void record(final long nanos) {
+		final long value = Math.max(0, nanos);
+		counts_.incrementAndGet(bucketOf(value));
+		long max = max_.get();
+		while (value > max && !max_.compareAndSet(max, value))
+			max = max_.get();
+	}
+
+	public long count() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; ++i)
+			count += counts_.get(i);
+		return count;
+	}
+
+	public long max() {
+		return max_.get();
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the upper bound of the bucket holding that percentile,
+	 * or zero if nothing has been recorded
+	 */
+	public long percentile(final double percentile) {
+		final long count = count();
+		if (count == 0)
+			return 0;
+		final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += counts_.get(i);
+			if (seen >= rank)
+				return Math.min(upperBoundOf(i), max());
+		}
+		return max();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; ++i)
+			counts_.set(i, 0);
+		max_.set(0);
+	}
+
+	static int bucketOf(final long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		final int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBoundOf(final int bucket) {
+		final int magnitude = bucket / SUB_BUCKETS;
+		final long sub = bucket % SUB_BUCKETS;
+		if (magnitude == 0)
+			return sub;
+		final long lower = (SUB_BUCKETS + sub) << (magnitude - 1);
+		return lower + (1L << (magnitude - 1)) - 1;
+	}
+
+}
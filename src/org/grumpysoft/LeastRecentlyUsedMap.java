@@ -0,0 +1,152 @@
+package org.grumpysoft;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A ConcurrentMap that holds at most maxKeys entries, evicting the
+ * least recently touched key to make room for a new one. Every
+ * operation takes the one lock, so this is a memory bound first and
+ * a concurrent map second; entrySet() hands back a snapshot. It's a
+ * ReentrantLock rather than a monitor so that virtual threads queueing
+ * for it don't pin their carriers.
+ *
+ * @author james
+ */
+class LeastRecentlyUsedMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+	private final LinkedHashMap<K, V> impl_;
+	private final ReentrantLock lock_ = new ReentrantLock();
+
+	LeastRecentlyUsedMap(final int maxKeys) {
+		if (maxKeys <= 0)
+			throw new IllegalArgumentException("maxKeys must be positive, was " + maxKeys);
+		impl_ = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+				return size() > maxKeys;
+			}
+		};
+	}
+
+	public V get(final Object key) {
+		lock_.lock();
+		try {
+			return impl_.get(key);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public boolean containsKey(final Object key) {
+		lock_.lock();
+		try {
+			return impl_.containsKey(key);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public V put(final K key, final V value) {
+		lock_.lock();
+		try {
+			return impl_.put(key, value);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public V remove(final Object key) {
+		lock_.lock();
+		try {
+			return impl_.remove(key);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public int size() {
+		lock_.lock();
+		try {
+			return impl_.size();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public void clear() {
+		lock_.lock();
+		try {
+			impl_.clear();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public V putIfAbsent(final K key, final V value) {
+		lock_.lock();
+		try {
+			final V existing = impl_.get(key);
+			if (existing == null)
+				impl_.put(key, value);
+			return existing;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public boolean remove(final Object key, final Object value) {
+		lock_.lock();
+		try {
+			final V existing = impl_.get(key);
+			if (existing == null || (existing != value && !existing.equals(value)))
+				return false;
+			impl_.remove(key);
+			return true;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public boolean replace(final K key, final V oldValue, final V newValue) {
+		lock_.lock();
+		try {
+			final V existing = impl_.get(key);
+			if (existing == null || !existing.equals(oldValue))
+				return false;
+			impl_.put(key, newValue);
+			return true;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public V replace(final K key, final V value) {
+		lock_.lock();
+		try {
+			return impl_.containsKey(key) ? impl_.put(key, value) : null;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @return a snapshot of the current entries; changes to it
+	 * don't write through.
+	 */
+	public Set<Map.Entry<K, V>> entrySet() {
+		lock_.lock();
+		try {
+			return new HashMap<K, V>(impl_).entrySet();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+}
@@ -0,0 +1,433 @@
+package org.grumpysoft;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * InPlaceCoalescingBlockingQueue for keys that are primitive longs (or
+ * ints). The slots live in preallocated ring arrays and the key index is
+ * a LongSequenceIndex, so once built, enqueueing and dequeueing allocate
+ * nothing at all - no key boxes, no nodes, no map entries.
+ *
+ * @author james
+ *
+ * @param <E> the underlying element that will be stored in the queue
+ */
+public class LongKeyedCoalescingBlockingQueue<E> extends AbstractQueue<E>
+		implements BlockingQueue<E>, BatchDrainable<E> {
+
+	private final int capacity_;
+	private final int mask_;
+	private final CoalescingPolicy<E> policy_;
+	private final MergingPolicy<E> merger_;
+	private final LongLockSmith<E> smith_;
+	private final Object[] items_;
+	private final long[] keys_;
+	private final boolean[] coalescing_;
+	private final LongSequenceIndex index_;
+	private final ReentrantLock lock_ = new ReentrantLock();
+	private final Condition notEmpty_ = lock_.newCondition();
+	private final Condition notFull_ = lock_.newCondition();
+
+	private long head_;
+	private long tail_;
+
+	/**
+	 * @param capacity the maximum number of live slots, rounded
+	 * up to the next power of two
+	 * @param decider @see org.grumpysoft.CoalescingPolicy; if it's a
+	 * MergingPolicy, pending elements are merged rather than replaced
+	 * @param jones Generates keys for queue objects that may coalesce
+	 */
+	public LongKeyedCoalescingBlockingQueue(final int capacity,
+			final CoalescingPolicy<E> decider, final LongLockSmith<E> jones) {
+		if (capacity <= 0 || capacity > (1 << 30))
+			throw new IllegalArgumentException("capacity must be in (0, 2^30], was " + capacity);
+		capacity_ = KeySequenceIndex.powerOfTwoAtLeast(capacity);
+		mask_ = capacity_ - 1;
+		policy_ = decider;
+		merger_ = MergingPolicies.mergerFor(decider);
+		smith_ = jones;
+		items_ = new Object[capacity_];
+		keys_ = new long[capacity_];
+		coalescing_ = new boolean[capacity_];
+		index_ = new LongSequenceIndex(capacity_);
+	}
+
+	/**
+	 * As above, for int keys.
+	 */
+	public LongKeyedCoalescingBlockingQueue(final int capacity,
+			final CoalescingPolicy<E> decider, final IntLockSmith<E> jones) {
+		this(capacity, decider, new LongLockSmith<E>() {
+			public long makeKey(final E toGenerateFrom) {
+				return jones.makeKey(toGenerateFrom);
+			}
+		});
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object)
+	 * Always succeeds if o supersedes a pending element.
+	 */
+	public boolean offer(final E o) {
+		final boolean coalescing = coalesces(o);
+		final long key = coalescing ? smith_.makeKey(o) : 0L;
+		lock_.lock();
+		try {
+			if (coalescing && overwrite(key, o))
+				return true;
+			if (tail_ - head_ == capacity_)
+				return false;
+			enqueue(coalescing, key, o);
+			return true;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
+	 */
+	public boolean offer(final E o, final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		final boolean coalescing = coalesces(o);
+		final long key = coalescing ? smith_.makeKey(o) : 0L;
+		long nanos = unit.toNanos(timeout);
+		lock_.lockInterruptibly();
+		try {
+			while (true) {
+				if (coalescing && overwrite(key, o))
+					return true;
+				if (tail_ - head_ < capacity_) {
+					enqueue(coalescing, key, o);
+					return true;
+				}
+				if (nanos <= 0)
+					return false;
+				nanos = notFull_.awaitNanos(nanos);
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+	 * Never blocks if o supersedes a pending element.
+	 */
+	public void put(final E o) throws InterruptedException {
+		final boolean coalescing = coalesces(o);
+		final long key = coalescing ? smith_.makeKey(o) : 0L;
+		lock_.lockInterruptibly();
+		try {
+			while (true) {
+				if (coalescing && overwrite(key, o))
+					return;
+				if (tail_ - head_ < capacity_) {
+					enqueue(coalescing, key, o);
+					return;
+				}
+				notFull_.await();
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Queue#poll()
+	 */
+	public E poll() {
+		lock_.lock();
+		try {
+			return head_ == tail_ ? null : dequeue();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#poll(long, java.util.concurrent.TimeUnit)
+	 */
+	public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock_.lockInterruptibly();
+		try {
+			while (head_ == tail_) {
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty_.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#take()
+	 */
+	public E take() throws InterruptedException {
+		lock_.lockInterruptibly();
+		try {
+			while (head_ == tail_)
+				notEmpty_.await();
+			return dequeue();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Queue#peek()
+	 */
+	@SuppressWarnings("unchecked")
+	public E peek() {
+		lock_.lock();
+		try {
+			return head_ == tail_ ? null : (E) items_[(int) head_ & mask_];
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+	 */
+	public int drainTo(final Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection, int)
+	 */
+	public int drainTo(final Collection<? super E> c, final int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		lock_.lock();
+		try {
+			int drained = 0;
+			while (drained < maxElements && head_ != tail_) {
+				c.add(dequeue());
+				++drained;
+			}
+			return drained;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drainTo(java.lang.Object[], int, int)
+	 * Takes the lock once for the whole batch.
+	 */
+	public int drainTo(final E[] buffer, final int offset, final int length) {
+		Batches.checkBounds(buffer, offset, length);
+		lock_.lock();
+		try {
+			int drained = 0;
+			while (drained < length && head_ != tail_)
+				buffer[offset + drained++] = dequeue();
+			return drained;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drain(org.grumpysoft.BatchHandler, int)
+	 * The handler is called without the lock held.
+	 */
+	public int drain(final BatchHandler<? super E> handler, final int maxElements) {
+		return Batches.drain(this, handler, maxElements);
+	}
+
+	/**
+	 * @see java.util.Collection#size()
+	 * Returns the number of live slots.
+	 */
+	public int size() {
+		lock_.lock();
+		try {
+			return (int) (tail_ - head_);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+	 */
+	public int remainingCapacity() {
+		return capacity_ - size();
+	}
+
+	/**
+	 * @see java.util.Collection#remove(java.lang.Object)
+	 * Removes the first live slot whose value equals o.
+	 */
+	public boolean remove(final Object o) {
+		if (o == null)
+			return false;
+		lock_.lock();
+		try {
+			for (long sequence = head_; sequence != tail_; ++sequence) {
+				if (o.equals(items_[(int) sequence & mask_])) {
+					removeAt(sequence);
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Collection#clear()
+	 */
+	public void clear() {
+		lock_.lock();
+		try {
+			while (head_ != tail_)
+				items_[(int) head_++ & mask_] = null;
+			index_.clear();
+			notFull_.signalAll();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Collection#iterator()
+	 * Iterates over a snapshot of the live values taken at creation;
+	 * remove() takes out the live slot if it still holds that value.
+	 */
+	@SuppressWarnings("unchecked")
+	public Iterator<E> iterator() {
+		final ArrayList<E> snapshot = new ArrayList<E>();
+		lock_.lock();
+		try {
+			for (long sequence = head_; sequence != tail_; ++sequence)
+				snapshot.add((E) items_[(int) sequence & mask_]);
+		} finally {
+			lock_.unlock();
+		}
+		return new SnapshotIterator(snapshot.iterator());
+	}
+
+	private boolean coalesces(final E o) {
+		if (o == null)
+			throw new NullPointerException();
+		return policy_.shouldCoalesce(o);
+	}
+
+	/**
+	 * Lock must be held.
+	 * @return true if there was a pending slot for key to take o.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean overwrite(final long key, final E o) {
+		final long sequence = index_.get(key);
+		if (sequence == LongSequenceIndex.ABSENT)
+			return false;
+		final int slot = (int) sequence & mask_;
+		items_[slot] = MergingPolicies.merge(merger_, (E) items_[slot], o);
+		return true;
+	}
+
+	/**
+	 * Lock must be held, and there must be room.
+	 */
+	private void enqueue(final boolean coalescing, final long key, final E o) {
+		final int slot = (int) tail_ & mask_;
+		items_[slot] = o;
+		keys_[slot] = key;
+		coalescing_[slot] = coalescing;
+		if (coalescing)
+			index_.put(key, tail_);
+		++tail_;
+		notEmpty_.signal();
+	}
+
+	/**
+	 * Lock must be held. Closes the gap by moving every later slot
+	 * down one, and points each moved key at its new sequence.
+	 */
+	private void removeAt(final long sequence) {
+		int hole = (int) sequence & mask_;
+		if (coalescing_[hole])
+			index_.remove(keys_[hole]);
+		for (long later = sequence + 1; later != tail_; ++later) {
+			final int slot = (int) later & mask_;
+			items_[hole] = items_[slot];
+			keys_[hole] = keys_[slot];
+			coalescing_[hole] = coalescing_[slot];
+			if (coalescing_[hole])
+				index_.put(keys_[hole], later - 1);
+			hole = slot;
+		}
+		items_[hole] = null;
+		--tail_;
+		notFull_.signal();
+	}
+
+	/**
+	 * Lock must be held, and the queue must not be empty.
+	 */
+	@SuppressWarnings("unchecked")
+	private E dequeue() {
+		final int slot = (int) head_ & mask_;
+		final E result = (E) items_[slot];
+		items_[slot] = null;
+		if (coalescing_[slot])
+			index_.remove(keys_[slot]);
+		++head_;
+		notFull_.signal();
+		return result;
+	}
+
+	private class SnapshotIterator implements Iterator<E> {
+
+		private final Iterator<E> it_snapshot_;
+		private E last_;
+
+		SnapshotIterator(final Iterator<E> snapshot) {
+			it_snapshot_ = snapshot;
+		}
+
+		public boolean hasNext() {
+			return it_snapshot_.hasNext();
+		}
+
+		public E next() {
+			last_ = it_snapshot_.next();
+			return last_;
+		}
+
+		public void remove() {
+			if (last_ == null)
+				throw new IllegalStateException();
+			lock_.lock();
+			try {
+				for (long sequence = head_; sequence != tail_; ++sequence) {
+					if (items_[(int) sequence & mask_] == last_) {
+						removeAt(sequence);
+						break;
+					}
+				}
+			} finally {
+				lock_.unlock();
+				last_ = null;
+			}
+		}
+	}
+
+}
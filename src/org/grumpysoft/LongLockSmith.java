@@ -0,0 +1,9 @@
+package org.grumpysoft;
+
+/**
+ * A LockSmith for keys that are really just a long, so
+ * nobody has to box them.
+ */
+public interface LongLockSmith<KeySource> {
+	public long makeKey(final KeySource toGenerateFrom);
+}
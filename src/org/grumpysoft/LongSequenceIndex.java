@@ -0,0 +1,120 @@
+package org.grumpysoft;
+
+import java.util.Arrays;
+
+/**
+ * KeySequenceIndex for primitive long keys: an open addressed map from
+ * key to sequence with linear probing and backward shift removal, and
+ * no boxing anywhere. A sequence of ABSENT marks an empty cell.
+ *
+ * Not thread safe, and allocation free unless it has to grow.
+ *
+ * @author james
+ */
+final class LongSequenceIndex {
+
+	static final long ABSENT = KeySequenceIndex.ABSENT;
+
+	private long[] keys_;
+	private long[] sequences_;
+	private int mask_;
+	private int size_;
+
+	/**
+	 * @param maxKeys the most keys we expect to hold at once
+	 */
+	LongSequenceIndex(final int maxKeys) {
+		allocate(KeySequenceIndex.powerOfTwoAtLeast(2 * maxKeys));
+	}
+
+	/**
+	 * @return the sequence for key, or ABSENT
+	 */
+	long get(final long key) {
+		for (int cell = homeOf(key); sequences_[cell] != ABSENT; cell = (cell + 1) & mask_) {
+			if (keys_[cell] == key)
+				return sequences_[cell];
+		}
+		return ABSENT;
+	}
+
+	void put(final long key, final long sequence) {
+		int cell = homeOf(key);
+		while (sequences_[cell] != ABSENT) {
+			if (keys_[cell] == key) {
+				sequences_[cell] = sequence;
+				return;
+			}
+			cell = (cell + 1) & mask_;
+		}
+		if (2 * (size_ + 1) > keys_.length) {
+			grow();
+			put(key, sequence);
+			return;
+		}
+		keys_[cell] = key;
+		sequences_[cell] = sequence;
+		++size_;
+	}
+
+	/**
+	 * @return the sequence key mapped to, or ABSENT
+	 */
+	long remove(final long key) {
+		for (int cell = homeOf(key); sequences_[cell] != ABSENT; cell = (cell + 1) & mask_) {
+			if (keys_[cell] == key) {
+				final long sequence = sequences_[cell];
+				shiftBackFrom(cell);
+				--size_;
+				return sequence;
+			}
+		}
+		return ABSENT;
+	}
+
+	int size() {
+		return size_;
+	}
+
+	void clear() {
+		Arrays.fill(sequences_, ABSENT);
+		size_ = 0;
+	}
+
+	private void shiftBackFrom(int hole) {
+		int cell = (hole + 1) & mask_;
+		while (sequences_[cell] != ABSENT) {
+			final int home = homeOf(keys_[cell]);
+			if (((cell - home) & mask_) >= ((cell - hole) & mask_)) {
+				keys_[hole] = keys_[cell];
+				sequences_[hole] = sequences_[cell];
+				hole = cell;
+			}
+			cell = (cell + 1) & mask_;
+		}
+		sequences_[hole] = ABSENT;
+	}
+
+	private void grow() {
+		final long[] oldKeys = keys_;
+		final long[] oldSequences = sequences_;
+		allocate(oldKeys.length * 2);
+		for (int cell = 0; cell < oldKeys.length; ++cell) {
+			if (oldSequences[cell] != ABSENT)
+				put(oldKeys[cell], oldSequences[cell]);
+		}
+	}
+
+	private void allocate(final int cells) {
+		keys_ = new long[cells];
+		sequences_ = new long[cells];
+		mask_ = cells - 1;
+		clear();
+	}
+
+	private int homeOf(final long key) {
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & mask_;
+	}
+
+}
@@ -0,0 +1,28 @@
+package org.grumpysoft;
+
+/**
+ * The in place queues take a plain CoalescingPolicy and merge only
+ * if it turns out to be a MergingPolicy; these save them repeating
+ * the check.
+ */
+final class MergingPolicies {
+
+	private MergingPolicies() {
+	}
+
+	/**
+	 * @return decider as a MergingPolicy, or null if it isn't one
+	 */
+	@SuppressWarnings("unchecked")
+	static <E> MergingPolicy<E> mergerFor(final CoalescingPolicy<E> decider) {
+		return decider instanceof MergingPolicy<?> ? (MergingPolicy<E>) decider : null;
+	}
+
+	/**
+	 * @return what a pending slot should hold once newer arrives
+	 */
+	static <E> E merge(final MergingPolicy<E> merger, final E pending, final E newer) {
+		return merger == null ? newer : merger.merge(pending, newer);
+	}
+
+}
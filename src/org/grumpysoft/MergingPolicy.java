@@ -0,0 +1,21 @@
+package org.grumpysoft;
+
+/**
+ * A CoalescingPolicy that combines elements rather than letting the
+ * newer simply replace the older; summing volumes, or/ing field masks,
+ * keeping the max sequence and so on.
+ *
+ * Pass one as the decider to any of the in place queues and, when a
+ * coalescable element arrives for a key that's still pending, the slot
+ * ends up holding merge(pending, newer) instead of newer.
+ *
+ * Not every queue keeps the result. The lock free rings, and the
+ * multi consumer queue's compare and set retries, may call merge and
+ * then throw the result away, having lost a race with a producer or a
+ * consumer; a value merged into may also be put back as it was if the
+ * newer element doesn't get in. So merge must leave both arguments
+ * alone and hand back a new element (or one of the two untouched).
+ */
+public interface MergingPolicy<T> extends CoalescingPolicy<T> {
+	public T merge(final T pending, final T newer);
+}
@@ -0,0 +1,572 @@
+package org.grumpysoft;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A lock free (on the slots, at least) coalescing queue for any number of
+ * producer threads and exactly one consumer thread.
+ *
+ * Producers claim ring slots by CASing the tail. Coalescing goes through
+ * a key index split into stripes, each a KeySequenceIndex behind its own
+ * small lock, so producers only contend when their keys share a stripe;
+ * nobody ever takes a lock that covers the whole queue. A producer that
+ * finds its key pending swaps the new value into that slot with a CAS,
+ * exactly as in SpscCoalescingBlockingQueue.
+ *
+ * Calling a consumer method from more than one thread will end in tears.
+ *
+ * @author james
+ *
+ * @param <E> the underlying element that will be stored in the queue
+ * @param <KeyType> the type of key that will be used to work out whether to coalesce or not
+ */
+public class MpscCoalescingBlockingQueue<E, KeyType> extends AbstractQueue<E>
+		implements BlockingQueue<E>, BatchDrainable<E>, BatchOfferable<E> {
+
+	private final int capacity_;
+	private final int mask_;
+	private final CoalescingPolicy<E> policy_;
+	private final MergingPolicy<E> merger_;
+	private final LockSmith<E, KeyType> smith_;
+	private final AtomicReferenceArray<E> items_;
+	private final AtomicLongArray slotSequences_;
+	private final AtomicLong head_ = new AtomicLong();
+	private final AtomicLong tail_ = new AtomicLong();
+	private final Stripe<KeyType>[] stripes_;
+	private final int stripeMask_;
+	private final WaitStrategy waiter_;
+	private final BooleanSupplier hasElements_ = new BooleanSupplier() {
+		public boolean getAsBoolean() {
+			return peek() != null;
+		}
+	};
+	private final BooleanSupplier hasRoom_ = new BooleanSupplier() {
+		public boolean getAsBoolean() {
+			return tail_.get() - head_.get() < capacity_;
+		}
+	};
+
+	// consumer's own
+	private long consumed_;
+
+	/**
+	 * @param capacity rounded up to the next power of two
+	 * @param stripes how many ways to split the key index; rounded up
+	 * to the next power of two
+	 * @param decider @see org.grumpysoft.CoalescingPolicy; if it's a
+	 * MergingPolicy, pending elements are merged rather than replaced
+	 * @param jones Generates keys for queue objects that may coalesce
+	 */
+	public MpscCoalescingBlockingQueue(final int capacity, final int stripes,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones) {
+		this(capacity, stripes, decider, jones, WaitStrategies.spinThenPark());
+	}
+
+	/**
+	 * As above, waiting as waiter says.
+	 */
+	public MpscCoalescingBlockingQueue(final int capacity, final int stripes,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones,
+			final WaitStrategy waiter) {
+		if (capacity <= 0 || capacity > (1 << 30))
+			throw new IllegalArgumentException("capacity must be in (0, 2^30], was " + capacity);
+		if (stripes <= 0 || stripes > (1 << 16))
+			throw new IllegalArgumentException("stripes must be in (0, 2^16], was " + stripes);
+		capacity_ = KeySequenceIndex.powerOfTwoAtLeast(capacity);
+		mask_ = capacity_ - 1;
+		policy_ = decider;
+		merger_ = MergingPolicies.mergerFor(decider);
+		smith_ = jones;
+		items_ = new AtomicReferenceArray<E>(capacity_);
+		slotSequences_ = new AtomicLongArray(capacity_);
+		final int stripeCount = KeySequenceIndex.powerOfTwoAtLeast(stripes);
+		stripeMask_ = stripeCount - 1;
+		@SuppressWarnings({"rawtypes", "unchecked"})
+		final Stripe<KeyType>[] stripeArray = new Stripe[stripeCount];
+		stripes_ = stripeArray;
+		for (int i = 0; i < stripeCount; ++i)
+			stripes_[i] = new Stripe<KeyType>(Math.max(16, capacity_ / stripeCount));
+		waiter_ = waiter;
+	}
+
+	/**
+	 * Stripes the key index four ways per available processor.
+	 */
+	public MpscCoalescingBlockingQueue(final int capacity,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones) {
+		this(capacity, 4 * Runtime.getRuntime().availableProcessors(), decider, jones);
+	}
+
+	/**
+	 * Any thread.
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object)
+	 */
+	public boolean offer(final E o) {
+		if (o == null)
+			throw new NullPointerException();
+		if (!policy_.shouldCoalesce(o))
+			return append(o) != KeySequenceIndex.ABSENT;
+		final KeyType key = smith_.makeKey(o);
+		final Stripe<KeyType> stripe = stripeFor(key);
+		stripe.lock_.lock();
+		try {
+			if (overwrite(stripe.index_, key, o))
+				return true;
+			final long sequence = append(o);
+			if (sequence == KeySequenceIndex.ABSENT)
+				return false;
+			stripe.remember(key, sequence, head_.get());
+			return true;
+		} finally {
+			stripe.lock_.unlock();
+		}
+	}
+
+	/**
+	 * Any thread.
+	 * @see org.grumpysoft.BatchOfferable#offerAll(java.lang.Object[], int, int)
+	 * Claims a slot for every survivor with one CAS, before taking each
+	 * stripe the batch's keys fall in once, in stripe order. A survivor
+	 * whose key is pending overwrites that slot instead, and its own is
+	 * marked removed, as remove() would; if the consumer takes the
+	 * pending slot from under it, it has a slot already, so offerAll
+	 * never waits for room. The price is that there must be room for
+	 * every survivor, pending or not, and a slot left unused counts in
+	 * size() until the consumer passes it.
+	 */
+	public boolean offerAll(final E[] batch, final int offset, final int length) {
+		final CoalescedBatch<E, KeyType> survivors =
+			new CoalescedBatch<E, KeyType>(batch, offset, length, policy_, merger_, smith_);
+		long next = claim(survivors.size());
+		if (next == KeySequenceIndex.ABSENT)
+			return false;
+		final long end = next + survivors.size();
+		final int[] stripes = stripesOf(survivors);
+		for (final int stripe : stripes)
+			stripes_[stripe].lock_.lock();
+		try {
+			for (int i = 0; i < survivors.size(); ++i) {
+				final KeyType key = survivors.key(i);
+				final E o = survivors.element(i);
+				if (key == null || !overwrite(stripeFor(key).index_, key, o))
+					publish(key, next++, o);
+			}
+		} finally {
+			// an empty claimed slot stops the consumer dead
+			while (next != end)
+				skip(next++);
+			for (final int stripe : stripes)
+				stripes_[stripe].lock_.unlock();
+		}
+		waiter_.signal();
+		return true;
+	}
+
+	/**
+	 * Any thread.
+	 * @see java.util.Collection#addAll(java.util.Collection)
+	 * One offerAll, if the whole collection fits.
+	 */
+	public boolean addAll(final Collection<? extends E> c) {
+		return Batches.addAll(this, c);
+	}
+
+	/**
+	 * Any thread.
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
+	 */
+	public boolean offer(final E o, final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (int idles = 0; !offer(o); ++idles) {
+			final long left = deadline - System.nanoTime();
+			if (left <= 0)
+				return false;
+			waiter_.idle(idles, hasRoom_, left);
+		}
+		return true;
+	}
+
+	/**
+	 * Any thread.
+	 * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+	 */
+	public void put(final E o) throws InterruptedException {
+		for (int idles = 0; !offer(o); ++idles)
+			waiter_.idle(idles, hasRoom_, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Consumer only. May return null for a moment after a producer has
+	 * claimed the head slot but before it has filled it.
+	 * @see java.util.Queue#poll()
+	 */
+	public E poll() {
+		final long tail = tail_.get();
+		if (consumed_ == tail)
+			return null;
+		final int slot = (int) consumed_ & mask_;
+		if (items_.get(slot) == null)
+			return isRemoved(slot) ? poll() : null;
+		final E claimed = items_.getAndSet(slot, null);
+		++consumed_;
+		passRemoved(tail);
+		waiter_.signal();
+		return claimed;
+	}
+
+	/**
+	 * Consumer only.
+	 * @see java.util.concurrent.BlockingQueue#poll(long, java.util.concurrent.TimeUnit)
+	 */
+	public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (int idles = 0; ; ++idles) {
+			final E polled = poll();
+			if (polled != null)
+				return polled;
+			final long left = deadline - System.nanoTime();
+			if (left <= 0)
+				return null;
+			waiter_.idle(idles, hasElements_, left);
+		}
+	}
+
+	/**
+	 * Consumer only.
+	 * @see java.util.concurrent.BlockingQueue#take()
+	 */
+	public E take() throws InterruptedException {
+		for (int idles = 0; ; ++idles) {
+			final E polled = poll();
+			if (polled != null)
+				return polled;
+			waiter_.idle(idles, hasElements_, Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Consumer only.
+	 * @see java.util.Queue#peek()
+	 */
+	public E peek() {
+		if (consumed_ == tail_.get())
+			return null;
+		final int slot = (int) consumed_ & mask_;
+		final E peeked = items_.get(slot);
+		return peeked == null && isRemoved(slot) ? peek() : peeked;
+	}
+
+	/**
+	 * Consumer only.
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+	 */
+	public int drainTo(final Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Consumer only. Stops early at a slot that has been claimed
+	 * but not yet filled.
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection, int)
+	 */
+	public int drainTo(final Collection<? super E> c, final int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		int drained = 0;
+		E polled;
+		while (drained < maxElements && (polled = poll()) != null) {
+			c.add(polled);
+			++drained;
+		}
+		return drained;
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drainTo(java.lang.Object[], int, int)
+	 * Consumer only.
+	 */
+	public int drainTo(final E[] buffer, final int offset, final int length) {
+		return Batches.drainTo(this, buffer, offset, length);
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drain(org.grumpysoft.BatchHandler, int)
+	 * Consumer only.
+	 */
+	public int drain(final BatchHandler<? super E> handler, final int maxElements) {
+		return Batches.drain(this, handler, maxElements);
+	}
+
+	/**
+	 * @see java.util.Collection#size()
+	 * The number of claimed slots, filled or not; an estimate
+	 * while producers are busy.
+	 */
+	public int size() {
+		final long head = head_.get();
+		return (int) Math.max(0, Math.min(capacity_, tail_.get() - head));
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+	 */
+	public int remainingCapacity() {
+		return capacity_ - size();
+	}
+
+	/**
+	 * Consumer only.
+	 * @see java.util.Collection#remove(java.lang.Object)
+	 * Claims the first filled slot whose value equals o, as though it
+	 * had been polled out of turn; producers see an empty slot and give
+	 * the key a fresh one. The slot's room comes back once the consumer
+	 * has passed it, so until then it still counts in size().
+	 */
+	public boolean remove(final Object o) {
+		if (o == null)
+			return false;
+		final long tail = tail_.get();
+		for (long sequence = consumed_; sequence != tail; ++sequence) {
+			final E pending = items_.get((int) sequence & mask_);
+			if (pending != null && o.equals(pending) && removeAt(sequence, pending, tail))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Consumer only.
+	 * @see java.util.Collection#clear()
+	 */
+	public void clear() {
+		while (poll() != null)
+			;
+	}
+
+	/**
+	 * @see java.util.Collection#iterator()
+	 * Weakly consistent, as SpscCoalescingBlockingQueue's, and
+	 * likewise remove() is consumer only.
+	 */
+	public Iterator<E> iterator() {
+		return new SlotIterator(head_.get(), tail_.get());
+	}
+
+	private Stripe<KeyType> stripeFor(final KeyType key) {
+		return stripes_[stripeIndex(key)];
+	}
+
+	private int stripeIndex(final KeyType key) {
+		final int h = key.hashCode() * 0x9E3779B9;
+		return (h >>> 16) & stripeMask_;
+	}
+
+	/**
+	 * @return the distinct stripes the batch's keys fall in, in order,
+	 * which is the order they must be locked in
+	 */
+	private int[] stripesOf(final CoalescedBatch<E, KeyType> survivors) {
+		final boolean[] touched = new boolean[stripes_.length];
+		int count = 0;
+		for (int i = 0; i < survivors.size(); ++i) {
+			final KeyType key = survivors.key(i);
+			if (key != null && !touched[stripeIndex(key)]) {
+				touched[stripeIndex(key)] = true;
+				++count;
+			}
+		}
+		final int[] stripes = new int[count];
+		for (int i = 0, j = 0; i < touched.length; ++i) {
+			if (touched[i])
+				stripes[j++] = i;
+		}
+		return stripes;
+	}
+
+	/**
+	 * Stripe lock must be held, so no other producer is touching key.
+	 * @return true if o replaced the value in key's pending slot
+	 */
+	private boolean overwrite(final KeySequenceIndex<KeyType> index,
+			final KeyType key, final E o) {
+		final long sequence = index.get(key);
+		if (sequence == KeySequenceIndex.ABSENT || sequence < head_.get())
+			return false;
+		final int slot = (int) sequence & mask_;
+		final E pending = items_.get(slot);
+		// a non null value might belong to a later lap of the ring
+		return pending != null
+			&& slotSequences_.get(slot) == sequence
+			&& items_.compareAndSet(slot, pending, MergingPolicies.merge(merger_, pending, o));
+	}
+
+	/**
+	 * Claims the tail slot and fills it.
+	 * @return the sequence claimed, or ABSENT if the ring was full
+	 */
+	private long append(final E o) {
+		final long sequence = claim(1);
+		if (sequence != KeySequenceIndex.ABSENT) {
+			fill(sequence, o);
+			waiter_.signal();
+		}
+		return sequence;
+	}
+
+	/**
+	 * Claims the next count slots at the tail.
+	 * @return the first sequence claimed, or ABSENT if they won't fit
+	 */
+	private long claim(final int count) {
+		while (true) {
+			final long tail = tail_.get();
+			if (tail - head_.get() > capacity_ - count)
+				return KeySequenceIndex.ABSENT;
+			if (tail_.compareAndSet(tail, tail + count))
+				return tail;
+		}
+	}
+
+	/**
+	 * Fills a claimed slot and, if o coalesces, points its key at it.
+	 * Stripe lock must be held.
+	 */
+	private void publish(final KeyType key, final long sequence, final E o) {
+		fill(sequence, o);
+		if (key != null)
+			stripeFor(key).remember(key, sequence, head_.get());
+	}
+
+	private void fill(final long sequence, final E o) {
+		final int slot = (int) sequence & mask_;
+		slotSequences_.lazySet(slot, sequence);
+		items_.lazySet(slot, o);
+	}
+
+	/**
+	 * Consumer only. Empties the slot at sequence if it still holds
+	 * pending for that lap, and marks it removed with the complement of
+	 * its sequence so that it can't be mistaken for a slot claimed but
+	 * not yet filled. Then moves the head past any removed slots at the
+	 * front, so poll() and peek() only ever stop at a live or unfilled one.
+	 */
+	private boolean removeAt(final long sequence, final E pending, final long tail) {
+		final int slot = (int) sequence & mask_;
+		if (slotSequences_.get(slot) != sequence || !items_.compareAndSet(slot, pending, null))
+			return false;
+		slotSequences_.set(slot, ~sequence);
+		passRemoved(tail);
+		waiter_.signal();
+		return true;
+	}
+
+	/**
+	 * Marks a claimed slot removed without ever filling it, for offerAll.
+	 */
+	private void skip(final long sequence) {
+		slotSequences_.lazySet((int) sequence & mask_, ~sequence);
+	}
+
+	/**
+	 * Consumer only. Passes a removed slot at the head, whoever removed
+	 * it, so that the caller can look again.
+	 * @return false if the slot at the head isn't removed
+	 */
+	private boolean isRemoved(final int slot) {
+		if (slotSequences_.get(slot) != ~consumed_)
+			return false;
+		passRemoved(tail_.get());
+		return true;
+	}
+
+	/**
+	 * Consumer only. Steps over removed slots and publishes the head.
+	 */
+	private void passRemoved(final long tail) {
+		while (consumed_ != tail && slotSequences_.get((int) consumed_ & mask_) == ~consumed_)
+			++consumed_;
+		head_.lazySet(consumed_);
+	}
+
+	/**
+	 * A slice of the key index and the lock that guards it. Keys for
+	 * consumed slots are swept out in bulk whenever the slice has
+	 * doubled since the last sweep.
+	 */
+	private static final class Stripe<KeyType> {
+		private final ReentrantLock lock_ = new ReentrantLock();
+		private final KeySequenceIndex<KeyType> index_;
+		private final int minimumSweep_;
+		private int sweepAt_;
+
+		Stripe(final int expectedKeys) {
+			index_ = new KeySequenceIndex<KeyType>(expectedKeys);
+			minimumSweep_ = expectedKeys;
+			sweepAt_ = expectedKeys;
+		}
+
+		void remember(final KeyType key, final long sequence, final long head) {
+			if (index_.size() >= sweepAt_) {
+				index_.removeBelow(head);
+				sweepAt_ = Math.max(minimumSweep_, 2 * index_.size());
+			}
+			index_.put(key, sequence);
+		}
+	}
+
+	private class SlotIterator implements Iterator<E> {
+
+		private long cursor_;
+		private final long end_;
+		private E next_;
+		private long nextSequence_;
+		private E last_;
+		private long lastSequence_;
+
+		SlotIterator(final long start, final long end) {
+			cursor_ = start;
+			end_ = end;
+			advance();
+		}
+
+		private void advance() {
+			next_ = null;
+			while (next_ == null && cursor_ < end_) {
+				nextSequence_ = cursor_;
+				next_ = items_.get((int) cursor_++ & mask_);
+			}
+		}
+
+		public boolean hasNext() {
+			return next_ != null;
+		}
+
+		public E next() {
+			if (next_ == null)
+				throw new NoSuchElementException();
+			last_ = next_;
+			lastSequence_ = nextSequence_;
+			advance();
+			return last_;
+		}
+
+		public void remove() {
+			if (last_ == null)
+				throw new IllegalStateException();
+			removeAt(lastSequence_, last_, tail_.get());
+			last_ = null;
+		}
+	}
+
+}
@@ -0,0 +1,466 @@
+package org.grumpysoft;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * A wrapping coalescing queue that any number of consumers can take from
+ * at once. CoalescingBlockingQueue decides whether an element is live by
+ * comparing it with the latest for its key, which a consumer reads apart
+ * from taking the element; with several consumers, one can judge an
+ * element live while a newer one is already on its way to another.
+ *
+ * Here, each key has a pending entry holding its latest unclaimed value
+ * and how many of its elements are still in the wrapped queue. A consumer
+ * that takes any element for a key claims the key's pending value (which
+ * may be newer than the element it took) by swapping in an entry without
+ * one, so each value goes to exactly one consumer; the key's later
+ * elements find nothing to claim and are skipped. Entries are swapped
+ * with compare and set on a ConcurrentHashMap, so producers and
+ * consumers only ever meet over the same key.
+ *
+ * In what order consumers then act on what they've taken is up to them.
+ *
+ * @author james
+ *
+ * @param <E> the underlying element that will be stored in the queue
+ * @param <KeyType> the type of key that will be used to work out whether to coalesce or not
+ */
+public class MultiConsumerCoalescingBlockingQueue<E, KeyType> extends AbstractQueue<E>
+		implements BlockingQueue<E>, BatchDrainable<E> {
+
+	private final BlockingQueue<E> impl_;
+	private final CoalescingPolicy<E> policy_;
+	private final MergingPolicy<E> merger_;
+	private final LockSmith<E, KeyType> smith_;
+	private final ConcurrentHashMap<KeyType, Pending<E>> pending_ =
+		new ConcurrentHashMap<KeyType, Pending<E>>();
+	// unclaimed values plus uncoalescable elements
+	private final AtomicInteger live_ = new AtomicInteger();
+
+	/**
+	 * @param toWrap the queue that actually holds the elements
+	 * @param decider @see org.grumpysoft.CoalescingPolicy; if it's a
+	 * MergingPolicy, unclaimed values are merged rather than replaced;
+	 * merges that lose a race are thrown away and retried, so merge
+	 * must not touch its arguments
+	 * @param jones Generates keys for queue objects that may coalesce
+	 */
+	public MultiConsumerCoalescingBlockingQueue(final BlockingQueue<E> toWrap,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones) {
+		impl_ = toWrap;
+		policy_ = decider;
+		merger_ = MergingPolicies.mergerFor(decider);
+		smith_ = jones;
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object)
+	 * Also succeeds if the wrapped queue is full but o has already been
+	 * claimed or superseded by the time that's known.
+	 */
+	public boolean offer(final E o) {
+		final KeyType key = keyFor(o);
+		if (key == null)
+			return offerUncoalescable(o, impl_.offer(o));
+		final Pending<E> mine = remember(key, o);
+		return impl_.offer(o) || !forget(key, mine);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
+	 */
+	public boolean offer(final E o, final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		final KeyType key = keyFor(o);
+		if (key == null)
+			return offerUncoalescable(o, impl_.offer(o, timeout, unit));
+		final Pending<E> mine = remember(key, o);
+		boolean offered = false;
+		try {
+			offered = impl_.offer(o, timeout, unit);
+		} finally {
+			if (!offered)
+				offered = !forget(key, mine);
+		}
+		return offered;
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+	 */
+	public void put(final E o) throws InterruptedException {
+		final KeyType key = keyFor(o);
+		if (key == null) {
+			impl_.put(o);
+			live_.incrementAndGet();
+			return;
+		}
+		final Pending<E> mine = remember(key, o);
+		boolean put = false;
+		try {
+			impl_.put(o);
+			put = true;
+		} finally {
+			if (!put)
+				forget(key, mine);
+		}
+	}
+
+	/**
+	 * @see java.util.Queue#poll()
+	 */
+	public E poll() {
+		E polled;
+		while ((polled = impl_.poll()) != null) {
+			final E claimed = claim(polled);
+			if (claimed != null)
+				return claimed;
+		}
+		return null;
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#poll(long, java.util.concurrent.TimeUnit)
+	 */
+	public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (true) {
+			final E polled = impl_.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			if (polled == null)
+				return null;
+			final E claimed = claim(polled);
+			if (claimed != null)
+				return claimed;
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#take()
+	 */
+	public E take() throws InterruptedException {
+		while (true) {
+			final E claimed = claim(impl_.take());
+			if (claimed != null)
+				return claimed;
+		}
+	}
+
+	/**
+	 * @see java.util.Queue#peek() this method *does not coalesce*
+	 */
+	public E peek() {
+		return impl_.peek();
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+	 */
+	public int drainTo(final Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection, int)
+	 * Polls one at a time, so other consumers can carry on meanwhile.
+	 */
+	public int drainTo(final Collection<? super E> c, final int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		int drained = 0;
+		E polled;
+		while (drained < maxElements && (polled = poll()) != null) {
+			c.add(polled);
+			++drained;
+		}
+		return drained;
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drainTo(java.lang.Object[], int, int)
+	 */
+	public int drainTo(final E[] buffer, final int offset, final int length) {
+		return Batches.drainTo(this, buffer, offset, length);
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drain(org.grumpysoft.BatchHandler, int)
+	 */
+	public int drain(final BatchHandler<? super E> handler, final int maxElements) {
+		return Batches.drain(this, handler, maxElements);
+	}
+
+	/**
+	 * Drops the value pending for key, in constant time; key's elements
+	 * still in the wrapped queue then find nothing to claim.
+	 * @return true if there was a value pending
+	 */
+	public boolean removeKey(final KeyType key) {
+		while (true) {
+			final Pending<E> current = pending_.get(key);
+			if (current == null || current.value_ == null)
+				return false;
+			if (pending_.replace(key, current, new Pending<E>(null, current.queued_, null))) {
+				live_.decrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * removeKey for every key with a pending entry that matches.
+	 * @return how many keys had a value pending removed
+	 */
+	public int removeKeys(final Predicate<? super KeyType> matching) {
+		int removed = 0;
+		for (final KeyType key : pending_.keySet()) {
+			if (matching.test(key) && removeKey(key))
+				++removed;
+		}
+		return removed;
+	}
+
+	/**
+	 * @see java.util.Collection#remove(java.lang.Object)
+	 * Drops the first unclaimed value equal to o as removeKey would,
+	 * or failing that takes an equal uncoalescable out of the wrapped
+	 * queue. That's a walk over every key, then over the wrapped queue;
+	 * with the key to hand, removeKey is much cheaper.
+	 */
+	public boolean remove(final Object o) {
+		if (o == null)
+			return false;
+		for (final Map.Entry<KeyType, Pending<E>> entry : pending_.entrySet()) {
+			final E value = entry.getValue().value_;
+			if (value != null && o.equals(value) && removePending(entry.getKey(), o, false))
+				return true;
+		}
+		for (final E el : impl_) {
+			if (o.equals(el) && keyFor(el) == null && removeUncoalescable(el))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @see java.util.Collection#size()
+	 * The number of unclaimed values and uncoalescable elements; weakly
+	 * consistent, as CoalescingBlockingQueue's.
+	 */
+	public int size() {
+		return Math.max(0, live_.get());
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+	 */
+	public int remainingCapacity() {
+		return impl_.remainingCapacity();
+	}
+
+	/**
+	 * @see java.util.Collection#clear()
+	 * Don't race this with producers, or keys may be left
+	 * with entries no element will ever claim.
+	 */
+	public void clear() {
+		impl_.clear();
+		pending_.clear();
+		live_.set(0);
+	}
+
+	/**
+	 * @see java.util.Collection#iterator()
+	 * Iterates over a snapshot of the values that would be claimed, in
+	 * the order they would be. remove() drops a value only if it's still
+	 * unclaimed and unsuperseded, and an uncoalescable only if it's still
+	 * in the wrapped queue.
+	 */
+	public Iterator<E> iterator() {
+		final ArrayList<E> snapshot = new ArrayList<E>();
+		final ArrayList<KeyType> keys = new ArrayList<KeyType>();
+		final HashSet<KeyType> seen = new HashSet<KeyType>();
+		for (final E el : impl_) {
+			final KeyType key = keyFor(el);
+			if (key == null) {
+				snapshot.add(el);
+				keys.add(null);
+			} else if (seen.add(key)) {
+				final Pending<E> pending = pending_.get(key);
+				if (pending != null && pending.value_ != null) {
+					snapshot.add(pending.value_);
+					keys.add(key);
+				}
+			}
+		}
+		return new Iterator<E>() {
+			private int next_;
+			private E last_;
+
+			public boolean hasNext() {
+				return next_ < snapshot.size();
+			}
+
+			public E next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				last_ = snapshot.get(next_++);
+				return last_;
+			}
+
+			public void remove() {
+				if (last_ == null)
+					throw new IllegalStateException();
+				final KeyType key = keys.get(next_ - 1);
+				if (key == null)
+					removeUncoalescable(last_);
+				else
+					removePending(key, last_, true);
+				last_ = null;
+			}
+		};
+	}
+
+	private KeyType keyFor(final E o) {
+		if (o == null)
+			throw new NullPointerException();
+		return policy_.shouldCoalesce(o) ? smith_.makeKey(o) : null;
+	}
+
+	private boolean offerUncoalescable(final E o, final boolean offered) {
+		if (offered)
+			live_.incrementAndGet();
+		return offered;
+	}
+
+	/**
+	 * Makes o (merged, perhaps) key's unclaimed value and counts one
+	 * more of key's elements in the wrapped queue, before o goes in.
+	 * @return the entry installed, which forget() needs
+	 */
+	private Pending<E> remember(final KeyType key, final E o) {
+		while (true) {
+			final Pending<E> previous = pending_.get(key);
+			if (previous == null) {
+				final Pending<E> mine = new Pending<E>(o, 1, null);
+				if (pending_.putIfAbsent(key, mine) == null) {
+					live_.incrementAndGet();
+					return mine;
+				}
+			} else {
+				final E superseded = previous.value_;
+				final Pending<E> mine = new Pending<E>(
+						superseded == null ? o : MergingPolicies.merge(merger_, superseded, o),
+						previous.queued_ + 1, superseded);
+				if (pending_.replace(key, previous, mine)) {
+					if (superseded == null)
+						live_.incrementAndGet();
+					return mine;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Undoes remember() when its element didn't make it in after all.
+	 * If the value remember() set has since been claimed or superseded,
+	 * it's too late to take it back, and as good as if it had gone in.
+	 * @return true if it was taken back
+	 */
+	private boolean forget(final KeyType key, final Pending<E> mine) {
+		while (true) {
+			final Pending<E> current = pending_.get(key);
+			if (current == null)
+				return false; // cleared from under us
+			final boolean ours = current.value_ == mine.value_;
+			final E value = ours ? mine.superseded_ : current.value_;
+			final int queued = current.queued_ - 1;
+			final boolean swapped = queued == 0
+				? pending_.remove(key, current)
+				: pending_.replace(key, current, new Pending<E>(value, queued, null));
+			if (swapped) {
+				if (ours && value == null)
+					live_.decrementAndGet();
+				return ours;
+			}
+		}
+	}
+
+	/**
+	 * removeKey, but only while key's unclaimed value is o itself if
+	 * same, else a value equal to it.
+	 */
+	private boolean removePending(final KeyType key, final Object o, final boolean same) {
+		while (true) {
+			final Pending<E> current = pending_.get(key);
+			if (current == null || current.value_ == null
+					|| (same ? current.value_ != o : !o.equals(current.value_)))
+				return false;
+			if (pending_.replace(key, current, new Pending<E>(null, current.queued_, null))) {
+				live_.decrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	private boolean removeUncoalescable(final E el) {
+		if (!impl_.remove(el))
+			return false;
+		live_.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * el has just come out of the wrapped queue: claims the value
+	 * pending for its key, if there still is one.
+	 * @return what to hand the consumer, or null if el was stale
+	 */
+	private E claim(final E el) {
+		final KeyType key = keyFor(el);
+		if (key == null) {
+			live_.decrementAndGet();
+			return el;
+		}
+		while (true) {
+			final Pending<E> current = pending_.get(key);
+			if (current == null)
+				return el; // cleared from under us
+			final boolean swapped = current.queued_ == 1
+				? pending_.remove(key, current)
+				: pending_.replace(key, current, new Pending<E>(null, current.queued_ - 1, null));
+			if (swapped) {
+				if (current.value_ != null)
+					live_.decrementAndGet();
+				return current.value_;
+			}
+		}
+	}
+
+	/**
+	 * Immutable, so that a compare and set on the map
+	 * swaps the value and the count together.
+	 */
+	private static final class Pending<E> {
+		final E value_;
+		final int queued_;
+		// what value_ replaced, in case its producer has to take it back
+		final E superseded_;
+
+		Pending(final E value, final int queued, final E superseded) {
+			value_ = value;
+			queued_ = queued;
+			superseded_ = superseded;
+		}
+	}
+
+}
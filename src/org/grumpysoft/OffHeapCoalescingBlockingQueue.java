@@ -0,0 +1,486 @@
+package org.grumpysoft;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LongKeyedCoalescingBlockingQueue with its pending elements kept
+ * encoded in direct memory rather than on the heap. Each slot of the
+ * ring is a fixed size stretch of one direct ByteBuffer holding the key,
+ * whether it coalesces and the encoded element; elements only become
+ * objects again on the way out. The key index is a LongSequenceIndex,
+ * which is a pair of primitive arrays; the collector never has to trace
+ * through them, and there's no object per key.
+ *
+ * So however large the backlog, the heap holds a fixed handful of
+ * objects for the queue, plus whatever the consumer has taken.
+ *
+ * @author james
+ *
+ * @param <E> the underlying element that will be stored in the queue
+ */
+public class OffHeapCoalescingBlockingQueue<E> extends AbstractQueue<E>
+		implements BlockingQueue<E>, BatchDrainable<E> {
+
+	private static final int KEY_OFFSET = 0;
+	private static final int LENGTH_OFFSET = 8;
+	private static final int COALESCING_OFFSET = 12;
+	private static final int PAYLOAD_OFFSET = 16;
+
+	private final int capacity_;
+	private final int mask_;
+	private final int maxElementBytes_;
+	private final int slotBytes_;
+	private final CoalescingPolicy<E> policy_;
+	private final MergingPolicy<E> merger_;
+	private final LongLockSmith<E> smith_;
+	private final ElementSerializer<E> serializer_;
+	private final ByteBuffer slots_;
+	private final ByteBuffer view_;
+	private final ByteBuffer scratch_;
+	private final LongSequenceIndex index_;
+	private final ReentrantLock lock_ = new ReentrantLock();
+	private final Condition notEmpty_ = lock_.newCondition();
+	private final Condition notFull_ = lock_.newCondition();
+
+	private long head_;
+	private long tail_;
+
+	/**
+	 * @param capacity the maximum number of live slots, rounded
+	 * up to the next power of two
+	 * @param maxElementBytes the most serializer will ever write for one element
+	 * @param serializer encodes elements on the way in and decodes them on the way out
+	 * @param decider @see org.grumpysoft.CoalescingPolicy; if it's a
+	 * MergingPolicy, pending elements are merged rather than replaced
+	 * @param jones Generates keys for queue objects that may coalesce
+	 */
+	public OffHeapCoalescingBlockingQueue(final int capacity, final int maxElementBytes,
+			final ElementSerializer<E> serializer, final CoalescingPolicy<E> decider,
+			final LongLockSmith<E> jones) {
+		if (capacity <= 0 || capacity > (1 << 30))
+			throw new IllegalArgumentException("capacity must be in (0, 2^30], was " + capacity);
+		if (maxElementBytes <= 0)
+			throw new IllegalArgumentException("maxElementBytes must be positive, was " + maxElementBytes);
+		capacity_ = KeySequenceIndex.powerOfTwoAtLeast(capacity);
+		mask_ = capacity_ - 1;
+		maxElementBytes_ = maxElementBytes;
+		final long slotBytes = (PAYLOAD_OFFSET + (long) maxElementBytes + 7) & ~7L;
+		// one extra slot to encode overwrites in, out of harm's way
+		final long bytes = slotBytes * (capacity_ + 1);
+		if (bytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(bytes + " bytes is too many for one direct buffer");
+		slotBytes_ = (int) slotBytes;
+		policy_ = decider;
+		merger_ = MergingPolicies.mergerFor(decider);
+		smith_ = jones;
+		serializer_ = serializer;
+		slots_ = ByteBuffer.allocateDirect((int) bytes);
+		view_ = slots_.duplicate();
+		scratch_ = slots_.duplicate();
+		index_ = new LongSequenceIndex(capacity_);
+	}
+
+	/**
+	 * As above, for int keys.
+	 */
+	public OffHeapCoalescingBlockingQueue(final int capacity, final int maxElementBytes,
+			final ElementSerializer<E> serializer, final CoalescingPolicy<E> decider,
+			final IntLockSmith<E> jones) {
+		this(capacity, maxElementBytes, serializer, decider, new LongLockSmith<E>() {
+			public long makeKey(final E toGenerateFrom) {
+				return jones.makeKey(toGenerateFrom);
+			}
+		});
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object)
+	 * Always succeeds if o supersedes a pending element.
+	 * @throws IllegalArgumentException if o encodes to more than maxElementBytes
+	 */
+	public boolean offer(final E o) {
+		final boolean coalescing = coalesces(o);
+		final long key = coalescing ? smith_.makeKey(o) : 0L;
+		lock_.lock();
+		try {
+			if (coalescing && overwrite(key, o))
+				return true;
+			if (tail_ - head_ == capacity_)
+				return false;
+			enqueue(coalescing, key, o);
+			return true;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
+	 */
+	public boolean offer(final E o, final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		final boolean coalescing = coalesces(o);
+		final long key = coalescing ? smith_.makeKey(o) : 0L;
+		long nanos = unit.toNanos(timeout);
+		lock_.lockInterruptibly();
+		try {
+			while (true) {
+				if (coalescing && overwrite(key, o))
+					return true;
+				if (tail_ - head_ < capacity_) {
+					enqueue(coalescing, key, o);
+					return true;
+				}
+				if (nanos <= 0)
+					return false;
+				nanos = notFull_.awaitNanos(nanos);
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+	 * Never blocks if o supersedes a pending element.
+	 */
+	public void put(final E o) throws InterruptedException {
+		final boolean coalescing = coalesces(o);
+		final long key = coalescing ? smith_.makeKey(o) : 0L;
+		lock_.lockInterruptibly();
+		try {
+			while (true) {
+				if (coalescing && overwrite(key, o))
+					return;
+				if (tail_ - head_ < capacity_) {
+					enqueue(coalescing, key, o);
+					return;
+				}
+				notFull_.await();
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Queue#poll()
+	 */
+	public E poll() {
+		lock_.lock();
+		try {
+			return head_ == tail_ ? null : dequeue();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#poll(long, java.util.concurrent.TimeUnit)
+	 */
+	public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock_.lockInterruptibly();
+		try {
+			while (head_ == tail_) {
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty_.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#take()
+	 */
+	public E take() throws InterruptedException {
+		lock_.lockInterruptibly();
+		try {
+			while (head_ == tail_)
+				notEmpty_.await();
+			return dequeue();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Queue#peek()
+	 * Decodes a fresh copy of the latest value for the head key.
+	 */
+	public E peek() {
+		lock_.lock();
+		try {
+			return head_ == tail_ ? null : decode((int) head_ & mask_);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+	 */
+	public int drainTo(final Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection, int)
+	 */
+	public int drainTo(final Collection<? super E> c, final int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		lock_.lock();
+		try {
+			int drained = 0;
+			while (drained < maxElements && head_ != tail_) {
+				c.add(dequeue());
+				++drained;
+			}
+			return drained;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drainTo(java.lang.Object[], int, int)
+	 * Takes the lock once for the whole batch.
+	 */
+	public int drainTo(final E[] buffer, final int offset, final int length) {
+		Batches.checkBounds(buffer, offset, length);
+		lock_.lock();
+		try {
+			int drained = 0;
+			while (drained < length && head_ != tail_)
+				buffer[offset + drained++] = dequeue();
+			return drained;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drain(org.grumpysoft.BatchHandler, int)
+	 * The handler is called without the lock held.
+	 */
+	public int drain(final BatchHandler<? super E> handler, final int maxElements) {
+		return Batches.drain(this, handler, maxElements);
+	}
+
+	/**
+	 * @see java.util.Collection#size()
+	 * Returns the number of live slots.
+	 */
+	public int size() {
+		lock_.lock();
+		try {
+			return (int) (tail_ - head_);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+	 */
+	public int remainingCapacity() {
+		return capacity_ - size();
+	}
+
+	/**
+	 * @see java.util.Collection#remove(java.lang.Object)
+	 * Removes the first live slot whose decoded value equals o.
+	 */
+	public boolean remove(final Object o) {
+		if (o == null)
+			return false;
+		lock_.lock();
+		try {
+			for (long sequence = head_; sequence != tail_; ++sequence) {
+				if (o.equals(decode((int) sequence & mask_))) {
+					removeAt(sequence);
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Collection#clear()
+	 */
+	public void clear() {
+		lock_.lock();
+		try {
+			head_ = tail_;
+			index_.clear();
+			notFull_.signalAll();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Collection#iterator()
+	 * Iterates over decoded copies of the live values, taken at creation;
+	 * as they're copies, remove() takes out the first live slot that
+	 * still decodes to an equal value.
+	 */
+	public Iterator<E> iterator() {
+		final ArrayList<E> snapshot = new ArrayList<E>();
+		lock_.lock();
+		try {
+			for (long sequence = head_; sequence != tail_; ++sequence)
+				snapshot.add(decode((int) sequence & mask_));
+		} finally {
+			lock_.unlock();
+		}
+		final Iterator<E> it = snapshot.iterator();
+		return new Iterator<E>() {
+			private E last_;
+
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public E next() {
+				last_ = it.next();
+				return last_;
+			}
+
+			public void remove() {
+				if (last_ == null)
+					throw new IllegalStateException();
+				OffHeapCoalescingBlockingQueue.this.remove(last_);
+				last_ = null;
+			}
+		};
+	}
+
+	private boolean coalesces(final E o) {
+		if (o == null)
+			throw new NullPointerException();
+		return policy_.shouldCoalesce(o);
+	}
+
+	/**
+	 * Lock must be held. Encodes into the spare slot first, so an element
+	 * that turns out to be too big leaves the pending one as it was.
+	 * @return true if there was a pending slot for key to take o.
+	 */
+	private boolean overwrite(final long key, final E o) {
+		final long sequence = index_.get(key);
+		if (sequence == LongSequenceIndex.ABSENT)
+			return false;
+		final int slot = (int) sequence & mask_;
+		final E merged = merger_ == null ? o : merger_.merge(decode(slot), o);
+		final int spare = payloadAt(capacity_);
+		final int length = encode(spare, merged);
+		scratch_.clear();
+		scratch_.limit(spare + length);
+		scratch_.position(spare);
+		view_.clear();
+		view_.position(payloadAt(slot));
+		view_.put(scratch_);
+		slots_.putInt(slot * slotBytes_ + LENGTH_OFFSET, length);
+		return true;
+	}
+
+	/**
+	 * Lock must be held, and there must be room.
+	 */
+	private void enqueue(final boolean coalescing, final long key, final E o) {
+		final int slot = (int) tail_ & mask_;
+		final int at = slot * slotBytes_;
+		slots_.putInt(at + LENGTH_OFFSET, encode(payloadAt(slot), o));
+		slots_.putLong(at + KEY_OFFSET, key);
+		slots_.putInt(at + COALESCING_OFFSET, coalescing ? 1 : 0);
+		if (coalescing)
+			index_.put(key, tail_);
+		++tail_;
+		notEmpty_.signal();
+	}
+
+	/**
+	 * Lock must be held, and the queue must not be empty.
+	 */
+	private E dequeue() {
+		final int slot = (int) head_ & mask_;
+		final E result = decode(slot);
+		final int at = slot * slotBytes_;
+		if (slots_.getInt(at + COALESCING_OFFSET) != 0)
+			index_.remove(slots_.getLong(at + KEY_OFFSET));
+		++head_;
+		notFull_.signal();
+		return result;
+	}
+
+	/**
+	 * Lock must be held. Closes the gap by copying every later slot's
+	 * bytes down one, and points each moved key at its new sequence;
+	 * nothing is decoded.
+	 */
+	private void removeAt(final long sequence) {
+		int hole = (int) sequence & mask_;
+		if (slots_.getInt(hole * slotBytes_ + COALESCING_OFFSET) != 0)
+			index_.remove(slots_.getLong(hole * slotBytes_ + KEY_OFFSET));
+		for (long later = sequence + 1; later != tail_; ++later) {
+			final int slot = (int) later & mask_;
+			final int at = slot * slotBytes_;
+			scratch_.clear();
+			scratch_.limit(at + PAYLOAD_OFFSET + slots_.getInt(at + LENGTH_OFFSET));
+			scratch_.position(at);
+			view_.clear();
+			view_.position(hole * slotBytes_);
+			view_.put(scratch_);
+			if (slots_.getInt(at + COALESCING_OFFSET) != 0)
+				index_.put(slots_.getLong(at + KEY_OFFSET), later - 1);
+			hole = slot;
+		}
+		--tail_;
+		notFull_.signal();
+	}
+
+	/**
+	 * @return the number of bytes written from payload
+	 */
+	private int encode(final int payload, final E o) {
+		view_.clear();
+		view_.limit(payload + maxElementBytes_);
+		view_.position(payload);
+		try {
+			serializer_.write(o, view_);
+		} catch (final BufferOverflowException e) {
+			throw new IllegalArgumentException("element encodes to more than " + maxElementBytes_ + " bytes");
+		}
+		return view_.position() - payload;
+	}
+
+	private E decode(final int slot) {
+		final int payload = payloadAt(slot);
+		view_.clear();
+		view_.limit(payload + slots_.getInt(slot * slotBytes_ + LENGTH_OFFSET));
+		view_.position(payload);
+		return serializer_.read(view_);
+	}
+
+	private int payloadAt(final int slot) {
+		return slot * slotBytes_ + PAYLOAD_OFFSET;
+	}
+
+}
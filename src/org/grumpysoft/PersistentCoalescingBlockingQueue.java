@@ -0,0 +1,626 @@
+package org.grumpysoft;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An in place coalescing queue whose slots live in a memory mapped file,
+ * so whatever was pending is still there when the process comes back.
+ *
+ * The file is a header followed by a ring of fixed size slots. Each slot
+ * has two halves, each able to hold one encoded element along with its
+ * sequence, a version and a CRC. A new key is written into the first half
+ * of the tail slot; overwriting a pending key writes the next version into
+ * the other half, so the previous value stays intact until the new one is
+ * complete. The consumer records its position in the header as it goes,
+ * and elements are decoded straight out of the mapping on the way out.
+ *
+ * Reopening the file walks forward from the recorded head, taking the
+ * highest version in each slot whose CRC checks out and whose sequence is
+ * the one expected there; the first slot with neither is the tail. So a
+ * crash mid write loses at most the offer in flight, and a crash between
+ * an element being taken and the head being recorded delivers it again.
+ * The key index is rebuilt by decoding the pending elements.
+ *
+ * Writes land in the page cache, which survives the process dying; call
+ * force() if they need to survive the machine dying too.
+ *
+ * @author james
+ *
+ * @param <E> the underlying element that will be stored in the queue
+ * @param <KeyType> the type of key that will be used to work out whether to coalesce or not
+ */
+public class PersistentCoalescingBlockingQueue<E, KeyType> extends AbstractQueue<E>
+		implements BlockingQueue<E>, BatchDrainable<E>, Closeable {
+
+	private static final int MAGIC = 0x4d6f5265;
+	private static final int HEADER_BYTES = 64;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CAPACITY_OFFSET = 4;
+	private static final int ELEMENT_BYTES_OFFSET = 8;
+	private static final int HEAD_OFFSET = 16;
+
+	// within a half slot
+	private static final int SEQUENCE_OFFSET = 0;
+	private static final int VERSION_OFFSET = 8;
+	private static final int LENGTH_OFFSET = 16;
+	private static final int CRC_OFFSET = 20;
+	private static final int PAYLOAD_OFFSET = 24;
+
+	private final int capacity_;
+	private final int mask_;
+	private final int maxElementBytes_;
+	private final int halfBytes_;
+	private final CoalescingPolicy<E> policy_;
+	private final MergingPolicy<E> merger_;
+	private final LockSmith<E, KeyType> smith_;
+	private final ElementSerializer<E> serializer_;
+	private final FileChannel channel_;
+	private final MappedByteBuffer map_;
+	private final ByteBuffer view_;
+	private final CRC32 crc_ = new CRC32();
+	private final Object[] slotKeys_;
+	private final long[] versions_;
+	private final KeySequenceIndex<KeyType> index_;
+	private final ReentrantLock lock_ = new ReentrantLock();
+	private final Condition notEmpty_ = lock_.newCondition();
+	private final Condition notFull_ = lock_.newCondition();
+
+	private long head_;
+	private long tail_;
+
+	/**
+	 * Opens file and recovers whatever was pending in it, or creates it.
+	 * @param capacity the maximum number of live slots, rounded up to the
+	 * next power of two
+	 * @param maxElementBytes the most serializer will ever write for one element
+	 * @param serializer encodes elements into the file and decodes them again
+	 * @param decider @see org.grumpysoft.CoalescingPolicy; if it's a
+	 * MergingPolicy, pending elements are merged rather than replaced
+	 * @param jones Generates keys for queue objects that may coalesce
+	 * @throws IOException if the file can't be mapped, or was created with
+	 * a different capacity or maxElementBytes
+	 */
+	public PersistentCoalescingBlockingQueue(final File file, final int capacity,
+			final int maxElementBytes, final ElementSerializer<E> serializer,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones) throws IOException {
+		if (capacity <= 0 || capacity > (1 << 30))
+			throw new IllegalArgumentException("capacity must be in (0, 2^30], was " + capacity);
+		if (maxElementBytes <= 0)
+			throw new IllegalArgumentException("maxElementBytes must be positive, was " + maxElementBytes);
+		capacity_ = KeySequenceIndex.powerOfTwoAtLeast(capacity);
+		mask_ = capacity_ - 1;
+		maxElementBytes_ = maxElementBytes;
+		final long halfBytes = (PAYLOAD_OFFSET + (long) maxElementBytes + 7) & ~7L;
+		final long fileBytes = HEADER_BYTES + 2 * halfBytes * capacity_;
+		if (fileBytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("a file of " + fileBytes + " bytes is too big to map");
+		halfBytes_ = (int) halfBytes;
+		policy_ = decider;
+		merger_ = MergingPolicies.mergerFor(decider);
+		smith_ = jones;
+		serializer_ = serializer;
+		channel_ = new RandomAccessFile(file, "rw").getChannel();
+		boolean mapped = false;
+		try {
+			map_ = map(channel_, fileBytes, capacity_, maxElementBytes);
+			mapped = true;
+		} finally {
+			if (!mapped)
+				channel_.close();
+		}
+		view_ = map_.duplicate();
+		slotKeys_ = new Object[capacity_];
+		versions_ = new long[capacity_];
+		index_ = new KeySequenceIndex<KeyType>(capacity_);
+		recover();
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object)
+	 * Always succeeds if o supersedes a pending element.
+	 * @throws IllegalArgumentException if o encodes to more than maxElementBytes
+	 */
+	public boolean offer(final E o) {
+		final KeyType key = keyFor(o);
+		lock_.lock();
+		try {
+			if (overwrite(key, o))
+				return true;
+			if (tail_ - head_ == capacity_)
+				return false;
+			enqueue(key, o);
+			return true;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
+	 */
+	public boolean offer(final E o, final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		final KeyType key = keyFor(o);
+		long nanos = unit.toNanos(timeout);
+		lock_.lockInterruptibly();
+		try {
+			while (true) {
+				if (overwrite(key, o))
+					return true;
+				if (tail_ - head_ < capacity_) {
+					enqueue(key, o);
+					return true;
+				}
+				if (nanos <= 0)
+					return false;
+				nanos = notFull_.awaitNanos(nanos);
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+	 * Never blocks if o supersedes a pending element.
+	 */
+	public void put(final E o) throws InterruptedException {
+		final KeyType key = keyFor(o);
+		lock_.lockInterruptibly();
+		try {
+			while (true) {
+				if (overwrite(key, o))
+					return;
+				if (tail_ - head_ < capacity_) {
+					enqueue(key, o);
+					return;
+				}
+				notFull_.await();
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Queue#poll()
+	 */
+	public E poll() {
+		lock_.lock();
+		try {
+			return head_ == tail_ ? null : dequeue();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#poll(long, java.util.concurrent.TimeUnit)
+	 */
+	public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock_.lockInterruptibly();
+		try {
+			while (head_ == tail_) {
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty_.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#take()
+	 */
+	public E take() throws InterruptedException {
+		lock_.lockInterruptibly();
+		try {
+			while (head_ == tail_)
+				notEmpty_.await();
+			return dequeue();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Queue#peek()
+	 * Decodes a fresh copy of the latest value for the head key.
+	 */
+	public E peek() {
+		lock_.lock();
+		try {
+			return head_ == tail_ ? null : decode((int) head_ & mask_);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+	 */
+	public int drainTo(final Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection, int)
+	 */
+	public int drainTo(final Collection<? super E> c, final int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		lock_.lock();
+		try {
+			int drained = 0;
+			while (drained < maxElements && head_ != tail_) {
+				c.add(dequeue());
+				++drained;
+			}
+			return drained;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drainTo(java.lang.Object[], int, int)
+	 * Takes the lock once for the whole batch.
+	 */
+	public int drainTo(final E[] buffer, final int offset, final int length) {
+		Batches.checkBounds(buffer, offset, length);
+		lock_.lock();
+		try {
+			int drained = 0;
+			while (drained < length && head_ != tail_)
+				buffer[offset + drained++] = dequeue();
+			return drained;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drain(org.grumpysoft.BatchHandler, int)
+	 * The handler is called without the lock held.
+	 */
+	public int drain(final BatchHandler<? super E> handler, final int maxElements) {
+		return Batches.drain(this, handler, maxElements);
+	}
+
+	/**
+	 * @see java.util.Collection#size()
+	 * Returns the number of live slots.
+	 */
+	public int size() {
+		lock_.lock();
+		try {
+			return (int) (tail_ - head_);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+	 */
+	public int remainingCapacity() {
+		return capacity_ - size();
+	}
+
+	/**
+	 * @see java.util.Collection#remove(java.lang.Object)
+	 * Removes the first live slot whose decoded value equals o. Every
+	 * later slot is written down one sequence; a crash part way through
+	 * delivers some of them twice, but loses none.
+	 */
+	public boolean remove(final Object o) {
+		if (o == null)
+			return false;
+		lock_.lock();
+		try {
+			for (long sequence = head_; sequence != tail_; ++sequence) {
+				if (o.equals(decode((int) sequence & mask_))) {
+					removeAt(sequence);
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Collection#clear()
+	 */
+	public void clear() {
+		lock_.lock();
+		try {
+			head_ = tail_;
+			map_.putLong(HEAD_OFFSET, head_);
+			Arrays.fill(slotKeys_, null);
+			index_.clear();
+			notFull_.signalAll();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * @see java.util.Collection#iterator()
+	 * Iterates over decoded copies of the live values, taken at creation;
+	 * as they're copies, remove() takes out the first live slot that
+	 * still decodes to an equal value.
+	 */
+	public Iterator<E> iterator() {
+		final ArrayList<E> snapshot = new ArrayList<E>();
+		lock_.lock();
+		try {
+			for (long sequence = head_; sequence != tail_; ++sequence)
+				snapshot.add(decode((int) sequence & mask_));
+		} finally {
+			lock_.unlock();
+		}
+		final Iterator<E> it = snapshot.iterator();
+		return new Iterator<E>() {
+			private E last_;
+
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public E next() {
+				last_ = it.next();
+				return last_;
+			}
+
+			public void remove() {
+				if (last_ == null)
+					throw new IllegalStateException();
+				PersistentCoalescingBlockingQueue.this.remove(last_);
+				last_ = null;
+			}
+		};
+	}
+
+	/**
+	 * Flushes everything written so far to the storage device.
+	 */
+	public void force() {
+		lock_.lock();
+		try {
+			map_.force();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Forces and closes the file. The queue mustn't be used afterwards.
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() throws IOException {
+		force();
+		channel_.close();
+	}
+
+	private static MappedByteBuffer map(final FileChannel channel, final long fileBytes,
+			final int capacity, final int maxElementBytes) throws IOException {
+		final long existing = channel.size();
+		if (existing != 0 && existing != fileBytes)
+			throw new IOException("expected a file of " + fileBytes + " bytes, found " + existing);
+		final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileBytes);
+		final int magic = map.getInt(MAGIC_OFFSET);
+		if (magic == 0) {
+			map.putInt(CAPACITY_OFFSET, capacity);
+			map.putInt(ELEMENT_BYTES_OFFSET, maxElementBytes);
+			map.putLong(HEAD_OFFSET, 0L);
+			map.putInt(MAGIC_OFFSET, MAGIC);
+		} else if (magic != MAGIC) {
+			throw new IOException("not a queue file");
+		} else if (map.getInt(CAPACITY_OFFSET) != capacity
+				|| map.getInt(ELEMENT_BYTES_OFFSET) != maxElementBytes) {
+			throw new IOException("file was created with capacity " + map.getInt(CAPACITY_OFFSET)
+					+ " and maxElementBytes " + map.getInt(ELEMENT_BYTES_OFFSET));
+		}
+		return map;
+	}
+
+	/**
+	 * Finds the tail by walking the valid slots from the recorded head.
+	 */
+	private void recover() {
+		head_ = map_.getLong(HEAD_OFFSET);
+		tail_ = head_;
+		while (tail_ - head_ < capacity_) {
+			final int slot = (int) tail_ & mask_;
+			final long version = latestVersion(slot, tail_);
+			if (version < 0)
+				break;
+			versions_[slot] = version;
+			final E element = decode(slot);
+			if (policy_.shouldCoalesce(element)) {
+				final KeyType key = smith_.makeKey(element);
+				slotKeys_[slot] = key;
+				index_.put(key, tail_);
+			}
+			++tail_;
+		}
+	}
+
+	/**
+	 * @return the highest valid version of sequence held in slot, or -1
+	 */
+	private long latestVersion(final int slot, final long sequence) {
+		long latest = -1;
+		for (int half = 0; half < 2; ++half) {
+			final int at = halfAt(slot, half);
+			if (map_.getLong(at + SEQUENCE_OFFSET) != sequence)
+				continue;
+			final int length = map_.getInt(at + LENGTH_OFFSET);
+			if (length < 0 || length > maxElementBytes_ || checksum(at, length) != map_.getInt(at + CRC_OFFSET))
+				continue;
+			final long version = map_.getLong(at + VERSION_OFFSET);
+			if ((version & 1) == half)
+				latest = Math.max(latest, version);
+		}
+		return latest;
+	}
+
+	private KeyType keyFor(final E o) {
+		if (o == null)
+			throw new NullPointerException();
+		return policy_.shouldCoalesce(o) ? smith_.makeKey(o) : null;
+	}
+
+	/**
+	 * Lock must be held.
+	 * @return true if there was a pending slot for key to take o.
+	 */
+	private boolean overwrite(final KeyType key, final E o) {
+		if (key == null)
+			return false;
+		final long sequence = index_.get(key);
+		if (sequence == KeySequenceIndex.ABSENT)
+			return false;
+		final int slot = (int) sequence & mask_;
+		final E merged = merger_ == null ? o : merger_.merge(decode(slot), o);
+		write(slot, sequence, versions_[slot] + 1, merged);
+		++versions_[slot];
+		return true;
+	}
+
+	/**
+	 * Lock must be held, and there must be room.
+	 */
+	private void enqueue(final KeyType key, final E o) {
+		final int slot = (int) tail_ & mask_;
+		write(slot, tail_, 0, o);
+		versions_[slot] = 0;
+		slotKeys_[slot] = key;
+		if (key != null)
+			index_.put(key, tail_);
+		++tail_;
+		notEmpty_.signal();
+	}
+
+	/**
+	 * Lock must be held, and the queue must not be empty.
+	 */
+	@SuppressWarnings("unchecked")
+	private E dequeue() {
+		final int slot = (int) head_ & mask_;
+		final E result = decode(slot);
+		final KeyType key = (KeyType) slotKeys_[slot];
+		if (key != null) {
+			index_.remove(key, head_);
+			slotKeys_[slot] = null;
+		}
+		map_.putLong(HEAD_OFFSET, ++head_);
+		notFull_.signal();
+		return result;
+	}
+
+	/**
+	 * Lock must be held. Writes every later element into the slot before
+	 * it, under the next version there, and points its key at the new
+	 * sequence; then scrubs the last slot's sequences so recovery stops
+	 * short of it.
+	 */
+	@SuppressWarnings("unchecked")
+	private void removeAt(final long sequence) {
+		int hole = (int) sequence & mask_;
+		final KeyType removed = (KeyType) slotKeys_[hole];
+		if (removed != null)
+			index_.remove(removed, sequence);
+		for (long later = sequence + 1; later != tail_; ++later) {
+			final int slot = (int) later & mask_;
+			write(hole, later - 1, versions_[hole] + 1, decode(slot));
+			++versions_[hole];
+			final KeyType key = (KeyType) slotKeys_[slot];
+			slotKeys_[hole] = key;
+			if (key != null)
+				index_.put(key, later - 1);
+			hole = slot;
+		}
+		slotKeys_[hole] = null;
+		map_.putLong(halfAt(hole, 0) + SEQUENCE_OFFSET, -1L);
+		map_.putLong(halfAt(hole, 1) + SEQUENCE_OFFSET, -1L);
+		--tail_;
+		notFull_.signal();
+	}
+
+	/**
+	 * Encodes o into the half of slot that version belongs in; the CRC
+	 * goes in last, so a half written only in part never looks valid.
+	 */
+	private void write(final int slot, final long sequence, final long version, final E o) {
+		final int at = halfAt(slot, (int) version & 1);
+		final int payload = at + PAYLOAD_OFFSET;
+		view_.clear();
+		view_.limit(payload + maxElementBytes_);
+		view_.position(payload);
+		try {
+			serializer_.write(o, view_);
+		} catch (final BufferOverflowException e) {
+			throw new IllegalArgumentException("element encodes to more than " + maxElementBytes_ + " bytes");
+		}
+		final int length = view_.position() - payload;
+		map_.putLong(at + SEQUENCE_OFFSET, sequence);
+		map_.putLong(at + VERSION_OFFSET, version);
+		map_.putInt(at + LENGTH_OFFSET, length);
+		map_.putInt(at + CRC_OFFSET, checksum(at, length));
+	}
+
+	/**
+	 * Hands the serializer a window onto the live half of slot.
+	 */
+	private E decode(final int slot) {
+		final int at = halfAt(slot, (int) versions_[slot] & 1);
+		final int payload = at + PAYLOAD_OFFSET;
+		view_.clear();
+		view_.limit(payload + map_.getInt(at + LENGTH_OFFSET));
+		view_.position(payload);
+		return serializer_.read(view_);
+	}
+
+	/**
+	 * Covers everything in the half but the CRC itself.
+	 */
+	private int checksum(final int at, final int length) {
+		crc_.reset();
+		view_.clear();
+		view_.limit(at + CRC_OFFSET);
+		view_.position(at);
+		crc_.update(view_);
+		view_.limit(at + PAYLOAD_OFFSET + length);
+		view_.position(at + PAYLOAD_OFFSET);
+		crc_.update(view_);
+		return (int) crc_.getValue();
+	}
+
+	private int halfAt(final int slot, final int half) {
+		return HEADER_BYTES + (2 * slot + half) * halfBytes_;
+	}
+
+}
@@ -0,0 +1,74 @@
+package org.grumpysoft;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Serves several queues ("lanes") strictly in order of priority: a
+ * consumer only gets an element from lane n once lanes 0 to n-1 are
+ * empty. Put urgent uncoalescables (cancels, heartbeats, admin) in a
+ * lane 0 of their own, say a LinkedBlockingQueue, and the coalesced
+ * updates in later lanes, and the urgent ones no longer wait behind a
+ * backlog of updates. More than one coalesced lane gives per key
+ * priorities, as long as every update for a key picks the same lane.
+ *
+ * Each lane keeps its own locking, so producers to different lanes never
+ * contend; there's no lock across the lanes. Within a lane, order is
+ * whatever that lane's order is.
+ *
+ * @author james
+ *
+ * @param <E> the underlying element that will be stored in the queue
+ */
+public class PriorityCoalescingBlockingQueue<E> extends LanedBlockingQueue<E> {
+
+	private final PriorityPolicy<E> prioritizer_;
+
+	/**
+	 * @param lanes the queues to serve, most urgent first
+	 * @param prioritizer picks the lane for each element
+	 */
+	public PriorityCoalescingBlockingQueue(final List<? extends BlockingQueue<E>> lanes,
+			final PriorityPolicy<E> prioritizer) {
+		this(lanes, prioritizer, WaitStrategies.blocking());
+	}
+
+	/**
+	 * As above, waiting as waiter says.
+	 */
+	public PriorityCoalescingBlockingQueue(final List<? extends BlockingQueue<E>> lanes,
+			final PriorityPolicy<E> prioritizer, final WaitStrategy waiter) {
+		super(lanes, waiter);
+		prioritizer_ = prioritizer;
+	}
+
+	/**
+	 * @return lane i; anyone may use it directly
+	 */
+	public BlockingQueue<E> lane(final int i) {
+		return lanes_.get(i);
+	}
+
+	/**
+	 * @see java.util.Queue#poll()
+	 * Polls the first non empty lane.
+	 */
+	public E poll() {
+		for (int i = 0; i < lanes_.size(); ++i) {
+			final E polled = lanes_.get(i).poll();
+			if (polled != null)
+				return polled;
+		}
+		return null;
+	}
+
+	BlockingQueue<E> route(final E o) {
+		if (o == null)
+			throw new NullPointerException();
+		final int lane = prioritizer_.laneFor(o);
+		if (lane < 0 || lane >= lanes_.size())
+			throw new IllegalArgumentException("no lane " + lane + " for " + o);
+		return lanes_.get(lane);
+	}
+
+}
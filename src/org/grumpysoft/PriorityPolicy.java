@@ -0,0 +1,10 @@
+package org.grumpysoft;
+
+/**
+ * Says which lane of a PriorityCoalescingBlockingQueue an element
+ * belongs in; lane 0 is served first. For coalescing to work, all the
+ * elements for a key have to agree on their lane.
+ */
+public interface PriorityPolicy<T> {
+	public int laneFor(final T element);
+}
@@ -0,0 +1,103 @@
+package org.grumpysoft;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads elements over a number of coalescing queues ("shards") by the
+ * hash of their key, so that each shard can have a consumer thread of its
+ * own. Every key always lands in the same shard, so each key's updates
+ * are still coalesced and still delivered in order; there's just no
+ * order between keys in different shards any more. Elements that don't
+ * coalesce have no key to go by and are dealt round robin.
+ *
+ * Producers offer to this queue; consumers take from shard(i). This
+ * queue's own consumer methods are a combined view over all the shards,
+ * handy for a single consumer or for draining at shutdown; poll() starts
+ * one shard along each time, so no shard gets starved.
+ *
+ * @author james
+ *
+ * @param <E> the underlying element that will be stored in the queue
+ * @param <KeyType> the type of key that will be used to work out whether to coalesce or not
+ */
+public class ShardedCoalescingBlockingQueue<E, KeyType> extends LanedBlockingQueue<E> {
+
+	private final CoalescingPolicy<E> policy_;
+	private final LockSmith<E, KeyType> smith_;
+	private final AtomicInteger dealt_ = new AtomicInteger();
+	private final AtomicInteger polled_ = new AtomicInteger();
+
+	/**
+	 * @param shards the queues to spread over; usually coalescing queues
+	 * built with the same decider and jones as this one
+	 * @param decider @see org.grumpysoft.CoalescingPolicy
+	 * @param jones Generates the keys that elements are routed by
+	 */
+	public ShardedCoalescingBlockingQueue(final List<? extends BlockingQueue<E>> shards,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones) {
+		this(shards, decider, jones, WaitStrategies.blocking());
+	}
+
+	/**
+	 * As above, waiting as waiter says.
+	 */
+	public ShardedCoalescingBlockingQueue(final List<? extends BlockingQueue<E>> shards,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones,
+			final WaitStrategy waiter) {
+		super(shards, waiter);
+		policy_ = decider;
+		smith_ = jones;
+	}
+
+	/**
+	 * @return the number of shards
+	 */
+	public int shardCount() {
+		return lanes_.size();
+	}
+
+	/**
+	 * @return shard i, for its consumer to take from
+	 */
+	public BlockingQueue<E> shard(final int i) {
+		return lanes_.get(i);
+	}
+
+	/**
+	 * @return the index of the shard o's key routes to, or -1
+	 * if o doesn't coalesce and could go anywhere
+	 */
+	public int shardOf(final E o) {
+		if (!policy_.shouldCoalesce(o))
+			return -1;
+		final int h = smith_.makeKey(o).hashCode() * 0x9E3779B9;
+		return (h >>> 1) % lanes_.size();
+	}
+
+	/**
+	 * @see java.util.Queue#poll()
+	 * Tries each shard in turn, starting one along from last time.
+	 */
+	public E poll() {
+		final int n = lanes_.size();
+		final int start = (polled_.getAndIncrement() & Integer.MAX_VALUE) % n;
+		for (int i = 0; i < n; ++i) {
+			final E polled = lanes_.get((start + i) % n).poll();
+			if (polled != null)
+				return polled;
+		}
+		return null;
+	}
+
+	BlockingQueue<E> route(final E o) {
+		if (o == null)
+			throw new NullPointerException();
+		final int shard = shardOf(o);
+		if (shard >= 0)
+			return lanes_.get(shard);
+		return lanes_.get((dealt_.getAndIncrement() & Integer.MAX_VALUE) % lanes_.size());
+	}
+
+}
@@ -0,0 +1,473 @@
+package org.grumpysoft;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A lock free coalescing queue for exactly one producer thread and
+ * exactly one consumer thread, built on a power of two ring.
+ *
+ * As with InPlaceCoalescingBlockingQueue, each pending key owns one slot
+ * and re-offering that key overwrites the slot. The producer keeps its
+ * own key to sequence index and swaps a newer value into a pending slot
+ * with a CAS; the consumer claims a slot by swapping in null, so the
+ * producer can tell when it lost the race and needs a fresh slot. The
+ * cursors are published with lazySet, and neither side allocates per
+ * element once the queue is built (LockSmith permitting).
+ *
+ * Calling a producer method from more than one thread, or a consumer
+ * method from more than one thread, will end in tears. The blocking
+ * methods wait as the WaitStrategy says; by default they spin, then
+ * yield, then park briefly.
+ *
+ * @author james
+ *
+ * @param <E> the underlying element that will be stored in the queue
+ * @param <KeyType> the type of key that will be used to work out whether to coalesce or not
+ */
+public class SpscCoalescingBlockingQueue<E, KeyType> extends AbstractQueue<E>
+		implements BlockingQueue<E>, BatchDrainable<E>, BatchOfferable<E> {
+
+	private final int capacity_;
+	private final int mask_;
+	private final CoalescingPolicy<E> policy_;
+	private final MergingPolicy<E> merger_;
+	private final LockSmith<E, KeyType> smith_;
+	private final AtomicReferenceArray<E> items_;
+	private final AtomicLong head_ = new AtomicLong();
+	private final AtomicLong tail_ = new AtomicLong();
+	private final WaitStrategy waiter_;
+	private final BooleanSupplier hasElements_ = new BooleanSupplier() {
+		public boolean getAsBoolean() {
+			return consumed_ != tail_.get();
+		}
+	};
+	private final BooleanSupplier hasRoom_ = new BooleanSupplier() {
+		public boolean getAsBoolean() {
+			return produced_ - head_.get() < capacity_;
+		}
+	};
+
+	// producer's own
+	private final Object[] slotKeys_;
+	private final KeySequenceIndex<KeyType> index_;
+	private long produced_;
+	private long forgotten_;
+
+	// consumer's own
+	private long consumed_;
+
+	/**
+	 * @param capacity rounded up to the next power of two
+	 * @param decider @see org.grumpysoft.CoalescingPolicy; if it's a
+	 * MergingPolicy, pending elements are merged rather than replaced
+	 * @param jones Generates keys for queue objects that may coalesce
+	 */
+	public SpscCoalescingBlockingQueue(final int capacity,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones) {
+		this(capacity, decider, jones, WaitStrategies.spinThenPark());
+	}
+
+	/**
+	 * As above, waiting as waiter says.
+	 */
+	public SpscCoalescingBlockingQueue(final int capacity,
+			final CoalescingPolicy<E> decider, final LockSmith<E, KeyType> jones,
+			final WaitStrategy waiter) {
+		if (capacity <= 0 || capacity > (1 << 30))
+			throw new IllegalArgumentException("capacity must be in (0, 2^30], was " + capacity);
+		capacity_ = KeySequenceIndex.powerOfTwoAtLeast(capacity);
+		mask_ = capacity_ - 1;
+		policy_ = decider;
+		merger_ = MergingPolicies.mergerFor(decider);
+		smith_ = jones;
+		items_ = new AtomicReferenceArray<E>(capacity_);
+		slotKeys_ = new Object[capacity_];
+		index_ = new KeySequenceIndex<KeyType>(capacity_);
+		waiter_ = waiter;
+	}
+
+	/**
+	 * Producer only.
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object)
+	 */
+	public boolean offer(final E o) {
+		if (o == null)
+			throw new NullPointerException();
+		final KeyType key = policy_.shouldCoalesce(o) ? smith_.makeKey(o) : null;
+		final long head = head_.get();
+		forgetConsumed(head);
+		if (key != null && overwrite(key, o))
+			return true;
+		if (produced_ - head == capacity_)
+			return false;
+		append(key, o);
+		tail_.lazySet(produced_);
+		waiter_.signal();
+		return true;
+	}
+
+	/**
+	 * Producer only.
+	 * @see org.grumpysoft.BatchOfferable#offerAll(java.lang.Object[], int, int)
+	 * Publishes the tail once for the whole batch.
+	 */
+	public boolean offerAll(final E[] batch, final int offset, final int length) {
+		final CoalescedBatch<E, KeyType> survivors =
+			new CoalescedBatch<E, KeyType>(batch, offset, length, policy_, merger_, smith_);
+		long head = head_.get();
+		forgetConsumed(head);
+		final boolean[] pending = new boolean[survivors.size()];
+		int needed = 0;
+		for (int i = 0; i < survivors.size(); ++i) {
+			pending[i] = isPending(survivors.key(i));
+			if (!pending[i])
+				++needed;
+		}
+		if (needed > capacity_ - (produced_ - head))
+			return false;
+		for (int i = 0; i < survivors.size(); ++i) {
+			final KeyType key = survivors.key(i);
+			final E o = survivors.element(i);
+			if (pending[i] && overwrite(key, o))
+				continue;
+			// a pending slot the consumer took from under us freed one at
+			// the head, so the room is there; we just need to see it
+			if (produced_ - head == capacity_)
+				forgetConsumed(head = head_.get());
+			append(key, o);
+		}
+		tail_.lazySet(produced_);
+		waiter_.signal();
+		return true;
+	}
+
+	/**
+	 * Producer only.
+	 * @see java.util.Collection#addAll(java.util.Collection)
+	 * One offerAll, if the whole collection fits.
+	 */
+	public boolean addAll(final Collection<? extends E> c) {
+		return Batches.addAll(this, c);
+	}
+
+	/**
+	 * Producer only.
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
+	 */
+	public boolean offer(final E o, final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (int idles = 0; !offer(o); ++idles) {
+			final long left = deadline - System.nanoTime();
+			if (left <= 0)
+				return false;
+			waiter_.idle(idles, hasRoom_, left);
+		}
+		return true;
+	}
+
+	/**
+	 * Producer only.
+	 * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+	 */
+	public void put(final E o) throws InterruptedException {
+		for (int idles = 0; !offer(o); ++idles)
+			waiter_.idle(idles, hasRoom_, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Consumer only.
+	 * @see java.util.Queue#poll()
+	 */
+	public E poll() {
+		final long tail = tail_.get();
+		if (consumed_ == tail)
+			return null;
+		final E claimed = items_.getAndSet((int) consumed_++ & mask_, null);
+		passRemoved(tail);
+		head_.lazySet(consumed_);
+		waiter_.signal();
+		return claimed;
+	}
+
+	/**
+	 * Consumer only.
+	 * @see java.util.concurrent.BlockingQueue#poll(long, java.util.concurrent.TimeUnit)
+	 */
+	public E poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (int idles = 0; ; ++idles) {
+			final E polled = poll();
+			if (polled != null)
+				return polled;
+			final long left = deadline - System.nanoTime();
+			if (left <= 0)
+				return null;
+			waiter_.idle(idles, hasElements_, left);
+		}
+	}
+
+	/**
+	 * Consumer only.
+	 * @see java.util.concurrent.BlockingQueue#take()
+	 */
+	public E take() throws InterruptedException {
+		for (int idles = 0; ; ++idles) {
+			final E polled = poll();
+			if (polled != null)
+				return polled;
+			waiter_.idle(idles, hasElements_, Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Consumer only.
+	 * @see java.util.Queue#peek()
+	 */
+	public E peek() {
+		if (consumed_ == tail_.get())
+			return null;
+		return items_.get((int) consumed_ & mask_);
+	}
+
+	/**
+	 * Consumer only.
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+	 */
+	public int drainTo(final Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Consumer only.
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection, int)
+	 */
+	public int drainTo(final Collection<? super E> c, final int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		final long tail = tail_.get();
+		int drained = 0;
+		for (; drained < maxElements && consumed_ != tail; ++drained) {
+			c.add(items_.getAndSet((int) consumed_++ & mask_, null));
+			passRemoved(tail);
+		}
+		head_.lazySet(consumed_);
+		if (drained > 0)
+			waiter_.signal();
+		return drained;
+	}
+
+	/**
+	 * Consumer only.
+	 * @see org.grumpysoft.BatchDrainable#drainTo(java.lang.Object[], int, int)
+	 */
+	public int drainTo(final E[] buffer, final int offset, final int length) {
+		Batches.checkBounds(buffer, offset, length);
+		final long tail = tail_.get();
+		int drained = 0;
+		for (; drained < length && consumed_ != tail; ++drained) {
+			buffer[offset + drained] = items_.getAndSet((int) consumed_++ & mask_, null);
+			passRemoved(tail);
+		}
+		head_.lazySet(consumed_);
+		if (drained > 0)
+			waiter_.signal();
+		return drained;
+	}
+
+	/**
+	 * @see org.grumpysoft.BatchDrainable#drain(org.grumpysoft.BatchHandler, int)
+	 * Consumer only.
+	 */
+	public int drain(final BatchHandler<? super E> handler, final int maxElements) {
+		return Batches.drain(this, handler, maxElements);
+	}
+
+	/**
+	 * @see java.util.Collection#size()
+	 * The number of pending slots; from any thread but the two
+	 * that own the queue, a moment's estimate. A slot emptied by
+	 * remove() behind a live one still counts until the consumer
+	 * passes it.
+	 */
+	public int size() {
+		final long head = head_.get();
+		return (int) Math.max(0, Math.min(capacity_, tail_.get() - head));
+	}
+
+	/**
+	 * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+	 */
+	public int remainingCapacity() {
+		return capacity_ - size();
+	}
+
+	/**
+	 * Consumer only.
+	 * @see java.util.Collection#remove(java.lang.Object)
+	 * Claims the first pending slot whose value equals o, as though
+	 * it had been polled out of turn. The producer sees an empty slot,
+	 * just as it does after a poll, and gives the key a fresh one.
+	 */
+	public boolean remove(final Object o) {
+		if (o == null)
+			return false;
+		final long tail = tail_.get();
+		for (long sequence = consumed_; sequence != tail; ++sequence) {
+			final E pending = items_.get((int) sequence & mask_);
+			if (pending != null && o.equals(pending) && removeAt(sequence, pending, tail))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Consumer only; and don't expect the producer's index to shrink
+	 * until it next offers.
+	 * @see java.util.Collection#clear()
+	 */
+	public void clear() {
+		while (poll() != null)
+			;
+	}
+
+	/**
+	 * @see java.util.Collection#iterator()
+	 * Weakly consistent: walks the slots between the cursors as they
+	 * were when iteration started, skipping any claimed since.
+	 * remove() is consumer only, and takes out the slot if it
+	 * still holds the value last returned.
+	 */
+	public Iterator<E> iterator() {
+		return new SlotIterator(head_.get(), tail_.get());
+	}
+
+	/**
+	 * Producer only. Trims the index of keys whose slots have been
+	 * claimed, so it only ever holds pending keys.
+	 */
+	@SuppressWarnings("unchecked")
+	private void forgetConsumed(final long head) {
+		for (; forgotten_ < head; ++forgotten_) {
+			final int slot = (int) forgotten_ & mask_;
+			final KeyType key = (KeyType) slotKeys_[slot];
+			if (key != null) {
+				index_.remove(key, forgotten_);
+				slotKeys_[slot] = null;
+			}
+		}
+	}
+
+	/**
+	 * Producer only. Fills the next slot, but leaves publishing
+	 * it to the caller.
+	 */
+	private void append(final KeyType key, final E o) {
+		final int slot = (int) produced_ & mask_;
+		slotKeys_[slot] = key;
+		if (key != null)
+			index_.put(key, produced_);
+		items_.lazySet(slot, o);
+		++produced_;
+	}
+
+	/**
+	 * Producer only.
+	 * @return true if key has a slot the consumer hasn't yet taken
+	 */
+	private boolean isPending(final KeyType key) {
+		if (key == null)
+			return false;
+		final long sequence = index_.get(key);
+		return sequence != KeySequenceIndex.ABSENT && items_.get((int) sequence & mask_) != null;
+	}
+
+	/**
+	 * Producer only.
+	 * @return true if o replaced the value in key's pending slot
+	 */
+	private boolean overwrite(final KeyType key, final E o) {
+		final long sequence = index_.get(key);
+		if (sequence == KeySequenceIndex.ABSENT)
+			return false;
+		final int slot = (int) sequence & mask_;
+		final E pending = items_.get(slot);
+		return pending != null && items_.compareAndSet(slot, pending, MergingPolicies.merge(merger_, pending, o));
+	}
+
+	/**
+	 * Consumer only. Empties the slot at sequence if it still holds
+	 * pending, then moves the head past any emptied slots at the front
+	 * so peek() and poll() always find a live one there.
+	 */
+	private boolean removeAt(final long sequence, final E pending, final long tail) {
+		if (!items_.compareAndSet((int) sequence & mask_, pending, null))
+			return false;
+		passRemoved(tail);
+		head_.lazySet(consumed_);
+		waiter_.signal();
+		return true;
+	}
+
+	/**
+	 * Consumer only. Steps over the slots remove() emptied; the caller
+	 * publishes the head.
+	 */
+	private void passRemoved(final long tail) {
+		while (consumed_ != tail && items_.get((int) consumed_ & mask_) == null)
+			++consumed_;
+	}
+
+	private class SlotIterator implements Iterator<E> {
+
+		private long cursor_;
+		private final long end_;
+		private E next_;
+		private long nextSequence_;
+		private E last_;
+		private long lastSequence_;
+
+		SlotIterator(final long start, final long end) {
+			cursor_ = start;
+			end_ = end;
+			advance();
+		}
+
+		private void advance() {
+			next_ = null;
+			while (next_ == null && cursor_ < end_) {
+				nextSequence_ = cursor_;
+				next_ = items_.get((int) cursor_++ & mask_);
+			}
+		}
+
+		public boolean hasNext() {
+			return next_ != null;
+		}
+
+		public E next() {
+			if (next_ == null)
+				throw new NoSuchElementException();
+			last_ = next_;
+			lastSequence_ = nextSequence_;
+			advance();
+			return last_;
+		}
+
+		public void remove() {
+			if (last_ == null)
+				throw new IllegalStateException();
+			removeAt(lastSequence_, last_, tail_.get());
+			last_ = null;
+		}
+	}
+
+}
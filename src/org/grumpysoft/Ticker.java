@@ -0,0 +1,19 @@
+package org.grumpysoft;
+
+/**
+ * Where the time based queues get the time from; tests can
+ * supply their own and move it along by hand.
+ */
+public interface Ticker {
+	/**
+	 * @return nanoseconds since some fixed but arbitrary origin,
+	 * as System.nanoTime()
+	 */
+	public long nanoTime();
+
+	public static final Ticker SYSTEM = new Ticker() {
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	};
+}
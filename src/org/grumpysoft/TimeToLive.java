@@ -0,0 +1,13 @@
+package org.grumpysoft;
+
+/**
+ * How long an element may wait in a queue before it's too old to be
+ * worth delivering; for prices, old data is worse than no data.
+ */
+public interface TimeToLive<E> {
+	/**
+	 * @return nanoseconds from when element is enqueued,
+	 * or Long.MAX_VALUE if it never expires
+	 */
+	public long timeToLiveNanos(final E element);
+}
@@ -0,0 +1,140 @@
+package org.grumpysoft;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timer wheel: a ring of buckets, each a tick wide, with every
+ * timeout hung on the bucket for the tick it falls due in (modulo the
+ * ring, so one bucket can hold several laps' worth). Scheduling is a
+ * lock free append to an arrivals queue; whichever thread calls advance()
+ * once a tick is over moves arrivals into their buckets and expires
+ * what's due, visiting only the buckets for the ticks that have gone by.
+ * So a timeout fires up to a tick late, never early.
+ * Callers that find another thread already advancing just carry on.
+ *
+ * Timeouts can't be cancelled; onExpiry should check whether its
+ * item still matters, and items should be small and long lived (one
+ * per key, say) rather than one per event.
+ */
+final class TimerWheel<T> {
+
+	private final Ticker ticker_;
+	private final long tickNanos_;
+	private final int mask_;
+	private final Timeout<T>[] buckets_;
+	private final Consumer<? super T> onExpiry_;
+	private final ConcurrentLinkedQueue<Timeout<T>> arrivals_ = new ConcurrentLinkedQueue<Timeout<T>>();
+	private final ReentrantLock lock_ = new ReentrantLock();
+	private final long origin_;
+	private volatile long nextTickAt_;
+
+	// guarded by lock_
+	private long tick_;
+
+	/**
+	 * @param buckets rounded up to the next power of two
+	 */
+	TimerWheel(final Ticker ticker, final long tickNanos, final int buckets,
+			final Consumer<? super T> onExpiry) {
+		if (tickNanos <= 0)
+			throw new IllegalArgumentException("tickNanos must be positive, was " + tickNanos);
+		if (buckets <= 0 || buckets > (1 << 30))
+			throw new IllegalArgumentException("buckets must be in (0, 2^30], was " + buckets);
+		ticker_ = ticker;
+		tickNanos_ = tickNanos;
+		@SuppressWarnings({"rawtypes", "unchecked"})
+		final Timeout<T>[] bucketArray = new Timeout[KeySequenceIndex.powerOfTwoAtLeast(buckets)];
+		buckets_ = bucketArray;
+		mask_ = buckets_.length - 1;
+		onExpiry_ = onExpiry;
+		origin_ = ticker.nanoTime();
+		nextTickAt_ = origin_ + tickNanos;
+	}
+
+	/**
+	 * Any thread.
+	 */
+	void schedule(final T item, final long deadlineNanos) {
+		arrivals_.offer(new Timeout<T>(item, deadlineNanos));
+	}
+
+	/**
+	 * Any thread. Expires everything due, unless no tick has passed
+	 * since last time or another thread is already at it.
+	 */
+	void advance() {
+		final long now = ticker_.nanoTime();
+		if (now - nextTickAt_ < 0 || !lock_.tryLock())
+			return;
+		try {
+			Timeout<T> arrival;
+			while ((arrival = arrivals_.poll()) != null) {
+				final int bucket = (int) Math.max(tick_, tickOf(arrival.deadline_)) & mask_;
+				arrival.next_ = buckets_[bucket];
+				buckets_[bucket] = arrival;
+			}
+			// only ticks that are over; after a long gap, once round
+			// the ring covers everything
+			final long nowTick = tickOf(now);
+			final long last = Math.min(nowTick - 1, tick_ + mask_);
+			for (long tick = tick_; tick <= last; ++tick)
+				expire((int) tick & mask_, now);
+			tick_ = Math.max(tick_, nowTick);
+			nextTickAt_ = origin_ + (tick_ + 1) * tickNanos_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Any thread; walks every bucket, so for tests.
+	 * @return how many timeouts are waiting
+	 */
+	int size() {
+		lock_.lock();
+		try {
+			int size = arrivals_.size();
+			for (final Timeout<T> bucket : buckets_) {
+				for (Timeout<T> t = bucket; t != null; t = t.next_)
+					++size;
+			}
+			return size;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	private long tickOf(final long nanos) {
+		return Math.max(0, nanos - origin_) / tickNanos_;
+	}
+
+	private void expire(final int bucket, final long now) {
+		Timeout<T> kept = null;
+		Timeout<T> t = buckets_[bucket];
+		while (t != null) {
+			final Timeout<T> next = t.next_;
+			if (t.deadline_ - now <= 0) {
+				onExpiry_.accept(t.item_);
+			} else {
+				t.next_ = kept;
+				kept = t;
+			}
+			t = next;
+		}
+		buckets_[bucket] = kept;
+	}
+
+	private static final class Timeout<T> {
+		final T item_;
+		final long deadline_;
+		Timeout<T> next_;
+
+		Timeout(final T item, final long deadline) {
+			item_ = item;
+			deadline_ = deadline;
+		}
+	}
+
+}
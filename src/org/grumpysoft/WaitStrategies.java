@@ -0,0 +1,135 @@
+package org.grumpysoft;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The wait strategies, from lowest latency (and most CPU) down:
+ * busySpin() keeps a core to itself, for a thread pinned to one;
+ * spinThenYield() gives the core up to anyone else who wants it;
+ * spinThenPark() sleeps in short naps once it's been idle a while, and
+ * is what the lock free queues use unless told otherwise; blocking()
+ * sleeps on a condition until signalled, as a lock based queue would.
+ *
+ * @author james
+ */
+public final class WaitStrategies {
+
+	private static final WaitStrategy BUSY_SPIN = new SpinThenPark(Integer.MAX_VALUE, 0, 0L);
+	private static final WaitStrategy SPIN_THEN_PARK = new SpinThenPark(100, 100, 1000L);
+
+	private WaitStrategies() {
+	}
+
+	/**
+	 * Never gives up the core.
+	 */
+	public static WaitStrategy busySpin() {
+		return BUSY_SPIN;
+	}
+
+	/**
+	 * Spins, then yields for as long as it takes.
+	 */
+	public static WaitStrategy spinThenYield(final int spins) {
+		return new SpinThenPark(spins, Integer.MAX_VALUE, 0L);
+	}
+
+	/**
+	 * Spins 100 times, yields 100 times, then parks a microsecond at a time.
+	 */
+	public static WaitStrategy spinThenPark() {
+		return SPIN_THEN_PARK;
+	}
+
+	/**
+	 * Spins, then yields, then parks parkNanos at a time.
+	 */
+	public static WaitStrategy spinThenPark(final int spins, final int yields, final long parkNanos) {
+		return new SpinThenPark(spins, yields, parkNanos);
+	}
+
+	/**
+	 * Sleeps on a condition until signalled. Signalling costs an atomic
+	 * increment, plus the lock when somebody is actually asleep; one of
+	 * these per queue, please.
+	 */
+	public static WaitStrategy blocking() {
+		return new Blocking();
+	}
+
+	private static final class SpinThenPark implements WaitStrategy {
+		private final int spins_;
+		private final long yieldsUntil_;
+		private final long parkNanos_;
+
+		SpinThenPark(final int spins, final int yields, final long parkNanos) {
+			if (spins < 0 || yields < 0 || parkNanos < 0)
+				throw new IllegalArgumentException("spins, yields and parkNanos mustn't be negative");
+			spins_ = spins;
+			yieldsUntil_ = (long) spins + yields;
+			parkNanos_ = parkNanos;
+		}
+
+		public void idle(final int idles, final BooleanSupplier ready, final long maxNanos)
+				throws InterruptedException {
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			if (idles < spins_)
+				return;
+			if (idles < yieldsUntil_)
+				Thread.yield();
+			else
+				LockSupport.parkNanos(Math.min(parkNanos_, maxNanos));
+		}
+
+		public void signal() {
+		}
+	}
+
+	private static final class Blocking implements WaitStrategy {
+		private final ReentrantLock lock_ = new ReentrantLock();
+		private final Condition signalled_ = lock_.newCondition();
+		private final AtomicInteger sleepers_ = new AtomicInteger();
+		// bumped by every signal; the atomic is what makes the signaller's
+		// last write visible before it looks for sleepers
+		private final AtomicLong signals_ = new AtomicLong();
+
+		public void idle(final int idles, final BooleanSupplier ready, final long maxNanos)
+				throws InterruptedException {
+			lock_.lockInterruptibly();
+			try {
+				sleepers_.incrementAndGet();
+				try {
+					if (ready.getAsBoolean())
+						return;
+					if (maxNanos == Long.MAX_VALUE)
+						signalled_.await();
+					else
+						signalled_.awaitNanos(maxNanos);
+				} finally {
+					sleepers_.decrementAndGet();
+				}
+			} finally {
+				lock_.unlock();
+			}
+		}
+
+		public void signal() {
+			signals_.incrementAndGet();
+			if (sleepers_.get() == 0)
+				return;
+			lock_.lock();
+			try {
+				signalled_.signalAll();
+			} finally {
+				lock_.unlock();
+			}
+		}
+	}
+
+}
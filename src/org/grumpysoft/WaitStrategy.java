@@ -0,0 +1,27 @@
+package org.grumpysoft;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * How a thread waits for a queue to have something for it: an element
+ * for a consumer, or room for a producer. The queue calls idle() each
+ * time the thread finds nothing doing, and signal() whenever it does
+ * something that might let a waiter go on. See WaitStrategies for the
+ * usual suspects, from burning a core to sleeping on a condition.
+ */
+public interface WaitStrategy {
+	/**
+	 * @param idles how many times in a row the caller has found nothing doing
+	 * @param ready whether there's something doing now; a strategy that
+	 * sleeps until signalled asks it once it's sure to hear any signal
+	 * @param maxNanos the longest the caller can wait, or Long.MAX_VALUE
+	 * @throws InterruptedException if the caller has been interrupted
+	 */
+	public void idle(final int idles, final BooleanSupplier ready, final long maxNanos)
+			throws InterruptedException;
+
+	/**
+	 * Called after an element is published or a slot freed.
+	 */
+	public void signal();
+}
@@ -0,0 +1,215 @@
+package org.grumpysoft;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * Futures should complete with live elements, in order,
+ * and never lose one.
+ */
+public class AsyncBlockingQueueTest extends TestCase {
+
+	/**
+	 * @throws Exception
+	 */
+	public void testFuturesCompleteInOrder() throws Exception {
+		final AsyncBlockingQueue<String> q = firstLetterQueue();
+		q.add("diamonds");
+		final CompletableFuture<String> first = q.takeAsync();
+		assertEquals("diamonds", first.getNow(null));
+		final CompletableFuture<String> second = q.takeAsync();
+		final CompletableFuture<String> third = q.takeAsync();
+		assertFalse(second.isDone());
+		q.add("horse");
+		assertEquals("horse", second.getNow(null));
+		assertFalse(third.isDone());
+		q.add("delight");
+		assertEquals("delight", third.get(1, TimeUnit.SECONDS));
+		assertTrue(q.isEmpty());
+	}
+
+	/**
+	 * Coalescing still happens underneath while nobody's waiting.
+	 * @throws Exception
+	 */
+	public void testCancelledFuturesDontSwallowElements() throws Exception {
+		final AsyncBlockingQueue<String> q = firstLetterQueue();
+		final CompletableFuture<String> cancelled = q.takeAsync();
+		assertTrue(cancelled.cancel(false));
+		q.add("diamonds");
+		q.add("delight");
+		q.add("horse");
+		assertEquals("delight", q.takeAsync().getNow(null));
+		assertEquals("horse", q.take());
+	}
+
+	/**
+	 * An element is only polled once its future is sure to take it, so
+	 * cancelling in the middle of that fails, and nothing is stranded.
+	 */
+	public void testCancelDuringDispatchLosesNothing() {
+		final CancellingQueue underlying = new CancellingQueue();
+		final AsyncBlockingQueue<String> q = new AsyncBlockingQueue<String>(underlying);
+		final CompletableFuture<String> first = q.takeAsync();
+		final CompletableFuture<String> second = q.takeAsync();
+		underlying.cancelOnPoll_ = first;
+		q.add("diamonds");
+		assertFalse(underlying.cancelled_);
+		assertFalse(first.isCancelled());
+		assertEquals("diamonds", first.getNow(null));
+		assertFalse(second.isDone());
+		assertTrue(second.complete("fool"));
+		assertEquals("fool", second.getNow(null));
+		final CompletableFuture<String> third = q.takeAsync();
+		assertTrue(third.cancel(false));
+		assertFalse(third.complete("horse"));
+		q.add("delight");
+		assertEquals(1, q.size());
+		assertEquals("delight", q.poll());
+	}
+
+	/**
+	 * Futures cancelled while producers race to fill them: every element
+	 * ends up in exactly one future that wasn't cancelled, or still
+	 * in the queue.
+	 * @throws InterruptedException
+	 */
+	public void testRacingCancelsLoseNothing() throws InterruptedException {
+		final AsyncBlockingQueue<String> q =
+			new AsyncBlockingQueue<String>(new LinkedBlockingQueue<String>());
+		final int elements = 20000;
+		final List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+		for (int i = 0; i < elements; ++i)
+			futures.add(q.takeAsync());
+		final Thread producer = new Thread() {
+			public void run() {
+				for (int i = 0; i < elements; ++i)
+					q.add("e" + i);
+			}
+		};
+		final Thread canceller = new Thread() {
+			public void run() {
+				for (int i = elements - 1; i >= 0; i -= 2)
+					futures.get(i).cancel(false);
+			}
+		};
+		producer.start();
+		canceller.start();
+		producer.join();
+		canceller.join();
+		final HashSet<String> seen = new HashSet<String>();
+		for (final CompletableFuture<String> future : futures) {
+			if (!future.isCancelled()) {
+				final String el = future.getNow(null);
+				if (el != null)
+					assertTrue(seen.add(el));
+			}
+		}
+		String el;
+		while ((el = q.poll()) != null)
+			assertTrue(seen.add(el));
+		assertEquals(elements, seen.size());
+	}
+
+	/**
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public void testManyProducers() throws InterruptedException, ExecutionException {
+		final AsyncBlockingQueue<String> q =
+			new AsyncBlockingQueue<String>(
+					new InPlaceCoalescingBlockingQueue<String, Integer>(
+							new NeverCoalescePolicy(),
+							new HashCodeRedirector()
+							));
+		final int producers = 4;
+		final int each = 1000;
+		final AtomicInteger received = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(producers * each);
+		final Consumer<String> receiver = new Consumer<String>() {
+			public void accept(final String s) {
+				received.incrementAndGet();
+				done.countDown();
+			}
+		};
+		for (int i = 0; i < producers * each; ++i)
+			q.takeAsync().thenAccept(receiver);
+		final Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; ++p) {
+			final int producer = p;
+			threads[p] = new Thread() {
+				public void run() {
+					for (int i = 0; i < each; ++i)
+						q.add(producer + ":" + i);
+				}
+			};
+			threads[p].start();
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(producers * each, received.get());
+		assertTrue(q.isEmpty());
+	}
+
+	private AsyncBlockingQueue<String> firstLetterQueue() {
+		return new AsyncBlockingQueue<String>(
+				new InPlaceCoalescingBlockingQueue<String, String>(
+						new AlwaysCoalescePolicy(),
+						new HashCodeOfFirstLetterRedirector()
+						));
+	}
+
+	/**
+	 * Tries to cancel a future, once, as the dispatcher polls an
+	 * element for it.
+	 */
+	private static class CancellingQueue extends LinkedBlockingQueue<String> {
+		private static final long serialVersionUID = 1L;
+
+		CompletableFuture<String> cancelOnPoll_;
+		boolean cancelled_;
+
+		public String poll() {
+			final String polled = super.poll();
+			final CompletableFuture<String> toCancel = cancelOnPoll_;
+			cancelOnPoll_ = null;
+			if (polled != null && toCancel != null)
+				cancelled_ = toCancel.cancel(false);
+			return polled;
+		}
+	}
+
+	private class NeverCoalescePolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return false;
+		}
+	}
+
+	private class AlwaysCoalescePolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return true;
+		}
+	}
+
+	private class HashCodeRedirector implements LockSmith<String, Integer> {
+		public Integer makeKey(final String toGenerateFrom) {
+			return Integer.valueOf(toGenerateFrom.hashCode());
+		}
+	}
+
+	private class HashCodeOfFirstLetterRedirector implements LockSmith<String, String> {
+		public String makeKey(final String toGenerateFrom) {
+			return toGenerateFrom.substring(0,1);
+		}
+	}
+}
@@ -1,10 +1,24 @@
 package org.grumpysoft;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 
 import junit.framework.TestCase;
 
@@ -108,6 +122,35 @@ public class CoalescingBlockingQueueTest extends TestCase {
 		assertEquals(drainpipe.get(1), fool);
 	}
 	
+	/**
+	 * Stale elements in the first chunk mustn't count towards maxElements,
+	 * nor should anything already in the target collection.
+	 */
+	public void testPartialDrainToSkipsStaleElements() {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final String fool = new String("fool");
+		final String diamonds = new String("diamonds");
+		final String horse = new String("horse");
+		final String delight = new String("delight");
+		cbq.add(diamonds);
+		cbq.add(delight);
+		cbq.add(fool);
+		cbq.add(horse);
+		final ArrayList<String> drainpipe = new ArrayList<String>();
+		drainpipe.add(horse);
+		final int numberDrained = cbq.drainTo(drainpipe, 2);
+		assertEquals(2, numberDrained);
+		assertEquals(3, drainpipe.size());
+		assertEquals(delight, drainpipe.get(1));
+		assertEquals(fool, drainpipe.get(2));
+		assertEquals(horse, cbq.poll());
+	}
+	
 	/**
 	 * @throws InterruptedException
 	 * 
@@ -234,12 +277,40 @@ public class CoalescingBlockingQueueTest extends TestCase {
 		someStrings.add(horse);
 		someStrings.add(delight);
 		assertTrue(cbq.addAll(someStrings));
-		assertEquals(4,underlying.size());
+		assertEquals(3,underlying.size()); // diamonds never went in
 		assertEquals(fool, underlying.peek());
 		assertEquals(fool, cbq.take());
 		assertEquals(horse, cbq.take());
 		assertEquals(delight, cbq.take());
 	}
+
+	/**
+	 * When the wrapped queue fills part way through, the duplicates
+	 * of the element that didn't fit weren't added either.
+	 */
+	public void testAddAllIntoAFullQueueCountsOnlyWhatWentIn() {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new ArrayBlockingQueue<String>(2),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final CoalescingQueueMetrics metrics = cbq.enableMetrics();
+		final String fool = new String("fool");
+		final String delight = new String("delight");
+		try {
+			cbq.addAll(Arrays.asList(new String("diamonds"), fool, delight, new String("horse"), "hat"));
+			fail();
+		} catch (final IllegalStateException e) {
+			// good!
+		}
+		assertEquals(3, metrics.getOffered());
+		assertEquals(1, metrics.getCoalesced());
+		assertEquals(2, cbq.rememberedKeyCount());
+		assertEquals(fool, cbq.poll());
+		assertEquals(delight, cbq.poll());
+		assertNull(cbq.poll());
+	}
 	
 	/**
 	 * 
@@ -327,7 +398,7 @@ public class CoalescingBlockingQueueTest extends TestCase {
 	 * Empty implies there are no objects in the queue
 	 * that would not coalesce.
 	 */
-	public void testIsEmptyFalseOnlyIfNonCoalescablesInQueue() {
+	public void testIsEmptyFalseOnlyIfNonCoalescablesInQueue() throws InterruptedException {
 		final LinkedBlockingQueue<String> underlying = new LinkedBlockingQueue<String>();
 		final CoalescingBlockingQueue<String, String> cbq =
 			new CoalescingBlockingQueue<String, String> (
@@ -340,7 +411,7 @@ public class CoalescingBlockingQueueTest extends TestCase {
 		cbq.add(diamonds);
 		cbq.add(delight);
 		assertTrue(!cbq.isEmpty());
-		underlying.remove(delight);
+		assertEquals(delight, cbq.take());
 		assertTrue(cbq.isEmpty());
 	}
 	
@@ -365,18 +436,777 @@ public class CoalescingBlockingQueueTest extends TestCase {
 		cbq.add(horse);
 		cbq.add(delight);
 		assertEquals(3, cbq.size());
-		underlying.remove(delight);
+		assertEquals(4, underlying.size());
+		assertEquals(fool, cbq.take());
 		assertEquals(2, cbq.size());
-		cbq.take();
+		assertEquals(horse, cbq.take());
 		assertEquals(1, cbq.size());
 	}
 
+	/**
+	 * Once the latest element for a key has gone to a consumer,
+	 * we've no reason to remember it.
+	 * @throws InterruptedException
+	 */
+	public void testConsumingLatestForgetsKey() throws InterruptedException {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final String fool = new String("fool");
+		final String diamonds = new String("diamonds");
+		final String horse = new String("horse");
+		final String delight = new String("delight");
+		cbq.add(fool);
+		cbq.add(diamonds);
+		cbq.add(horse);
+		cbq.add(delight);
+		assertEquals(3, cbq.rememberedKeyCount());
+		assertEquals(fool, cbq.take());
+		assertEquals(2, cbq.rememberedKeyCount());
+		assertEquals(horse, cbq.poll());
+		cbq.drainTo(new ArrayList<String>());
+		assertEquals(0, cbq.rememberedKeyCount());
+		cbq.add(diamonds);
+		cbq.clear();
+		assertEquals(0, cbq.rememberedKeyCount());
+	}
+
+	/**
+	 * A consumer hot on the producer's heels mustn't be able to take an
+	 * element before it's remembered, or the key is remembered for good.
+	 * @throws InterruptedException
+	 */
+	public void testRacingConsumerLeavesNothingRemembered() throws InterruptedException {
+		final int keys = 200000;
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(1024),
+					new AlwaysCoalescePolicy(),
+					new LockSmith<String, String>() {
+						public String makeKey(final String update) {
+							return update;
+						}
+					});
+		final Thread producer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < keys; ++i)
+						cbq.put("key" + i);
+				} catch (final InterruptedException e) {
+					// give up
+				}
+			}
+		};
+		producer.start();
+		for (int i = 0; i < keys; ++i)
+			assertEquals("key" + i, cbq.poll(5, TimeUnit.SECONDS));
+		producer.join();
+		assertEquals(0, cbq.rememberedKeyCount());
+		assertEquals(0, cbq.size());
+		assertTrue(cbq.isEmpty());
+	}
+
+	/**
+	 * An element that doesn't make it into the wrapped queue isn't
+	 * left remembered either.
+	 */
+	public void testRejectedElementIsForgotten() {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new ArrayBlockingQueue<String>(1),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final String fool = new String("fool");
+		final String diamonds = new String("diamonds");
+		final String horse = new String("horse");
+		assertTrue(cbq.offer(diamonds));
+		assertFalse(cbq.offer(fool));
+		try {
+			cbq.add(horse);
+			fail();
+		} catch (final IllegalStateException e) {
+			// good!
+		}
+		assertEquals(1, cbq.rememberedKeyCount());
+		assertEquals(diamonds, cbq.poll());
+		assertNull(cbq.poll());
+		assertEquals(0, cbq.rememberedKeyCount());
+	}
+
+	/**
+	 * An element that doesn't make it in doesn't make the one it would
+	 * have superseded stale, whether a consumer reaches that one while
+	 * the offer is under way or afterwards.
+	 */
+	public void testRejectedElementDoesntLoseWhatItSuperseded() {
+		final HookedQueue underlying = new HookedQueue(1);
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					underlying,
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final String diamonds = new String("diamonds");
+		final String delight = new String("delight");
+		final String horse = new String("horse");
+		final String[] polled = new String[1];
+		cbq.add(diamonds);
+		assertFalse(cbq.offer(delight));
+		assertEquals(1, cbq.rememberedKeyCount());
+		assertSame(diamonds, cbq.poll());
+		assertEquals(0, cbq.rememberedKeyCount());
+		cbq.add(diamonds);
+		underlying.beforeOffer_ = new Runnable() {
+			public void run() {
+				polled[0] = cbq.poll();
+				cbq.add(horse);
+			}
+		};
+		assertFalse(cbq.offer(delight)); // full again by the time it got there
+		assertSame(diamonds, polled[0]);
+		assertEquals(1, cbq.rememberedKeyCount());
+		assertSame(horse, cbq.poll());
+		assertNull(cbq.poll());
+		assertEquals(0, cbq.rememberedKeyCount());
+	}
+
+	/**
+	 * With one producer offering ever newer updates for a key into a
+	 * queue that's mostly full, and a consumer taking them as fast as it
+	 * can, the last update offered successfully is always delivered.
+	 * @throws InterruptedException
+	 */
+	public void testLatestSurvivesRejectedUpdatesWithRacingConsumer() throws InterruptedException {
+		final int updates = 200000;
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new ArrayBlockingQueue<String>(1),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final int[] lastOffered = { -1 };
+		final Thread producer = new Thread() {
+			public void run() {
+				for (int i = 0; i < updates; ++i) {
+					if (cbq.offer("u" + i))
+						lastOffered[0] = i;
+				}
+			}
+		};
+		producer.start();
+		int lastDelivered = -1;
+		while (producer.isAlive()) {
+			final String polled = cbq.poll();
+			if (polled != null) {
+				final int delivered = Integer.parseInt(polled.substring(1));
+				assertTrue(delivered > lastDelivered);
+				lastDelivered = delivered;
+			}
+		}
+		producer.join();
+		final String polled = cbq.poll();
+		if (polled != null)
+			lastDelivered = Integer.parseInt(polled.substring(1));
+		assertNull(cbq.poll());
+		assertEquals(lastOffered[0], lastDelivered);
+		assertEquals(0, cbq.rememberedKeyCount());
+	}
+
+	/**
+	 * An evicted key stops coalescing; its element is still delivered.
+	 * @throws InterruptedException
+	 */
+	public void testCappedKeysEvictLeastRecentlyUsed() throws InterruptedException {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector(),
+					1
+					);
+		final String fool = new String("fool");
+		final String diamonds = new String("diamonds");
+		final String delight = new String("delight");
+		cbq.add(diamonds);
+		cbq.add(fool);
+		cbq.add(delight);
+		assertEquals(1, cbq.rememberedKeyCount());
+		assertEquals(fool, cbq.take());
+		assertEquals(delight, cbq.take());
+		assertEquals(0, cbq.rememberedKeyCount());
+	}
+
+	/**
+	 * size() doesn't count an element whose key was evicted, but
+	 * isEmpty() mustn't claim there's nothing left while it waits.
+	 */
+	public void testCappedKeysNeverLookEmptyTooSoon() {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector(),
+					1
+					);
+		final String fool = new String("fool");
+		final String diamonds = new String("diamonds");
+		cbq.add(fool);
+		cbq.add(diamonds);
+		assertTrue(cbq.removeKey("d"));
+		assertEquals(0, cbq.size());
+		assertFalse(cbq.isEmpty());
+		assertEquals(fool, cbq.poll());
+		assertNull(cbq.poll());
+		assertTrue(cbq.isEmpty());
+	}
+
+	/**
+	 * Uncoalescable elements are counted one for one.
+	 */
+	public void testSizeCountsUncoalescables() {
+		final CoalescingBlockingQueue<String, Integer> cbq =
+			new CoalescingBlockingQueue<String, Integer> (
+					new LinkedBlockingQueue<String>(),
+					new NeverCoalescePolicy(),
+					new HashCodeRedirector()
+					);
+		final String fool = new String("fool");
+		cbq.add(fool);
+		cbq.offer(fool);
+		assertEquals(2, cbq.size());
+		cbq.poll();
+		assertEquals(1, cbq.size());
+		cbq.drainTo(new ArrayList<String>());
+		assertTrue(cbq.isEmpty());
+	}
+
+	/**
+	 * Batch draining skips coalesced elements just as drainTo does.
+	 */
+	public void testBatchDrainsSkipStaleElements() {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final String fool = new String("fool");
+		final String diamonds = new String("diamonds");
+		final String horse = new String("horse");
+		final String delight = new String("delight");
+		cbq.add(horse);
+		cbq.add(diamonds);
+		cbq.add(fool);
+		cbq.add(delight);
+		final String[] buffer = new String[3];
+		assertEquals(2, cbq.drainTo(buffer, 1, 2));
+		assertEquals(null, buffer[0]);
+		assertEquals(horse, buffer[1]);
+		assertEquals(fool, buffer[2]);
+		final ArrayList<String> handled = new ArrayList<String>();
+		final int[] batchSize = new int[1];
+		final BatchHandler<String> handler = new BatchHandler<String>() {
+			public void onElement(final String element) {
+				handled.add(element);
+			}
+
+			public void onEndOfBatch(final int size) {
+				batchSize[0] = size;
+			}
+		};
+		assertEquals(1, cbq.drain(handler, 10));
+		assertEquals(delight, handled.get(0));
+		assertEquals(1, batchSize[0]);
+		batchSize[0] = -1;
+		assertEquals(0, cbq.drain(handler, 10));
+		assertEquals(-1, batchSize[0]);
+	}
+
+	/**
+	 * Liveness is decided by identity: an update equal to the
+	 * latest one, but older, is still stale.
+	 * @throws InterruptedException
+	 */
+	public void testEqualButOlderUpdateCoalesces() throws InterruptedException {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final String diamonds = new String("diamonds");
+		final String moreDiamonds = new String("diamonds");
+		final String horse = new String("horse");
+		cbq.add(diamonds);
+		cbq.add(horse);
+		cbq.add(moreDiamonds);
+		assertTrue(cbq.contains(diamonds));
+		assertEquals(horse, cbq.take());
+		assertSame(moreDiamonds, cbq.take());
+		assertNull(cbq.poll());
+	}
+
+	/**
+	 * Taking back a rejected element only takes back that very
+	 * instance; an equal update that got in meanwhile stays the latest.
+	 */
+	public void testRejectedElementLeavesEqualUpdateRemembered() {
+		final HookedQueue underlying = new HookedQueue(2);
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					underlying,
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final String delight = new String("delight");
+		final String diamonds = new String("diamonds");
+		final String moreDiamonds = new String("diamonds");
+		cbq.add(delight);
+		underlying.beforeOffer_ = new Runnable() {
+			public void run() {
+				cbq.add(moreDiamonds);
+			}
+		};
+		// full by the time it got there, but superseded, so as good as in
+		assertTrue(cbq.offer(diamonds));
+		assertEquals(1, cbq.rememberedKeyCount());
+		assertSame(moreDiamonds, cbq.poll());
+		assertNull(cbq.poll());
+		assertEquals(0, cbq.rememberedKeyCount());
+	}
+
+	/**
+	 * Stale elements count as coalesced once the consumer skips them.
+	 * @throws Exception
+	 */
+	public void testMetricsCountWhatHappened() throws Exception {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final CoalescingQueueMetrics metrics = cbq.enableMetrics();
+		assertSame(metrics, cbq.enableMetrics());
+		cbq.add("diamonds");
+		cbq.add("horse");
+		cbq.add("delight");
+		assertEquals(3, metrics.getOffered());
+		assertEquals(2, metrics.getLiveDepth());
+		assertEquals(3, metrics.getRawDepth());
+		assertEquals(2, metrics.getRememberedKeys());
+		assertEquals("horse", cbq.take());
+		assertEquals("delight", cbq.take());
+		assertEquals(2, metrics.getDelivered());
+		assertEquals(1, metrics.getCoalesced());
+		assertEquals(2, metrics.getTakes());
+		assertEquals(1.0 / 3, metrics.getCoalescingRatio(), 1e-9);
+		assertNull(metrics.residence());
+
+		final ObjectName name = metrics.registerMBean("test-" + System.identityHashCode(cbq));
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals(Long.valueOf(3), server.getAttribute(name, "Offered"));
+		} finally {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}
+
+		// a snapshot delivers once, and its queued copies count for nothing more
+		cbq.add("fool");
+		cbq.add("horse");
+		assertEquals(2, cbq.snapshotTo(new HashMap<String, String>()));
+		assertEquals(4, metrics.getDelivered());
+		assertNull(cbq.poll());
+		assertEquals(4, metrics.getDelivered());
+		assertEquals(1, metrics.getCoalesced());
+
+		// removed isn't coalesced, though what it superseded is
+		cbq.add("umbrella");
+		cbq.add("uranium");
+		assertTrue(cbq.removeKey("u"));
+		assertNull(cbq.poll());
+		assertEquals(7, metrics.getOffered());
+		assertEquals(4, metrics.getDelivered());
+		assertEquals(2, metrics.getCoalesced());
+	}
+
+	/**
+	 * A snapshot claims the latest for every key; the stream carries on
+	 * with anything newer, and never repeats what was in the snapshot.
+	 * @throws InterruptedException
+	 */
+	public void testSnapshotCarriesOnFromWhereItWasTaken() throws InterruptedException {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final String fool = new String("fool");
+		final String diamonds = new String("diamonds");
+		final String horse = new String("horse");
+		final String delight = new String("delight");
+		final String fire = new String("fire");
+		cbq.add(fool);
+		cbq.add(diamonds);
+		cbq.add(horse);
+		final HashMap<String, String> snapshot = new HashMap<String, String>();
+		assertEquals(3, cbq.snapshotTo(snapshot));
+		assertEquals(fool, snapshot.get("f"));
+		assertEquals(diamonds, snapshot.get("d"));
+		assertEquals(horse, snapshot.get("h"));
+		assertTrue(cbq.isEmpty());
+		assertFalse(cbq.contains(horse));
+		cbq.add(delight);
+		cbq.add(fire);
+		assertEquals(delight, cbq.take());
+		assertEquals(fire, cbq.take());
+		assertNull(cbq.poll());
+		assertEquals(0, cbq.snapshotTo(snapshot));
+	}
+
+	/**
+	 * A snapshot taken just as a consumer takes an element, or just
+	 * as a producer offers one, hands it out exactly once, and leaves
+	 * nothing behind to swallow the key's next update.
+	 * @throws InterruptedException
+	 */
+	public void testSnapshotRacingTakeAndOfferDeliversOnce() throws InterruptedException {
+		final HookedQueue underlying = new HookedQueue(1);
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					underlying,
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final HashMap<String, String> snapshot = new HashMap<String, String>();
+		final Runnable snapshotter = new Runnable() {
+			public void run() {
+				cbq.snapshotTo(snapshot);
+			}
+		};
+		final String order1 = new String("order-1");
+		final String order2 = new String("order-2");
+		final String order3 = new String("order-3");
+		final String order4 = new String("order-4");
+		final String fool = new String("fool");
+		cbq.add(order1);
+		underlying.afterPoll_ = snapshotter;
+		assertNull(cbq.poll());
+		assertSame(order1, snapshot.get("o"));
+		cbq.add(order2);
+		assertSame(order2, cbq.poll());
+		underlying.beforeOffer_ = snapshotter;
+		assertTrue(cbq.offer(order3));
+		assertSame(order3, snapshot.get("o"));
+		assertNull(cbq.poll());
+		cbq.add(fool);
+		underlying.beforeOffer_ = snapshotter;
+		assertTrue(cbq.offer(order4)); // full, but claimed on the way
+		assertSame(order4, snapshot.get("o"));
+		assertSame(fool, snapshot.get("f"));
+		assertNull(cbq.poll());
+		cbq.add(order1);
+		assertSame(order1, cbq.poll());
+		assertEquals(0, cbq.rememberedKeyCount());
+		assertTrue(cbq.isEmpty());
+	}
+
+	/**
+	 * Removal works for both kinds of element, by value or through
+	 * the iterator, and a removed element is never taken.
+	 * @throws InterruptedException
+	 */
+	public void testRemoveByElementAndThroughIterator() throws InterruptedException {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(),
+					new FirstLetterUpperCaseNeverCoalescesPolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final String fool = new String("fool");
+		final String diamonds = new String("diamonds");
+		final String horse = new String("horse");
+		final String delight = new String("delight");
+		final String heart = new String("Heart");
+		cbq.add(fool);
+		cbq.add(diamonds);
+		cbq.add(heart);
+		cbq.add(horse);
+		cbq.add(delight);
+		assertFalse(cbq.remove(diamonds));
+		assertTrue(cbq.remove(new String("delight")));
+		assertFalse(cbq.remove(delight));
+		assertTrue(cbq.remove(heart));
+		assertEquals(2, cbq.size());
+		final Iterator<String> it = cbq.iterator();
+		assertEquals(fool, it.next());
+		it.remove();
+		try {
+			it.remove();
+			fail();
+		} catch (final IllegalStateException e) {
+			// good!
+		}
+		assertEquals(horse, it.next());
+		assertFalse(it.hasNext());
+		assertEquals(horse, cbq.take());
+		assertNull(cbq.poll());
+	}
+
+	/**
+	 * toArray and streams see what iterator sees; bulk removal goes
+	 * through it.
+	 */
+	public void testToArrayStreamsAndBulkRemoval() {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final String fool = new String("fool");
+		final String diamonds = new String("diamonds");
+		final String horse = new String("horse");
+		final String delight = new String("delight");
+		cbq.add(fool);
+		cbq.add(diamonds);
+		cbq.add(horse);
+		cbq.add(delight);
+		assertEquals(Arrays.asList(fool, horse, delight), Arrays.asList(cbq.toArray()));
+		assertEquals(Arrays.asList(fool, horse, delight), Arrays.asList(cbq.toArray(new String[0])));
+		assertEquals(3, cbq.stream().count());
+		assertEquals(0, cbq.spliterator().characteristics() & Spliterator.SIZED);
+		assertFalse(cbq.removeAll(Arrays.asList(diamonds)));
+		assertTrue(cbq.retainAll(Arrays.asList(horse, delight)));
+		assertTrue(cbq.removeAll(Arrays.asList(horse)));
+		assertEquals(Arrays.asList(delight), Arrays.asList(cbq.toArray()));
+	}
+
+	/**
+	 * A parallel stream splits a long backlog and still
+	 * finds each live element exactly once.
+	 */
+	public void testParallelStreamOverBacklog() {
+		final CoalescingBlockingQueue<Integer, Integer> cbq =
+			new CoalescingBlockingQueue<Integer, Integer> (
+					new LinkedBlockingQueue<Integer>(),
+					new CoalescingPolicy<Integer>() {
+						public boolean shouldCoalesce(final Integer candidate) {
+							return true;
+						}
+					},
+					new LockSmith<Integer, Integer>() {
+						public Integer makeKey(final Integer toGenerateFrom) {
+							return Integer.valueOf(toGenerateFrom.intValue() % 1000);
+						}
+					});
+		for (int i = 0; i < 10000; ++i)
+			cbq.add(Integer.valueOf(i));
+		long sum = 0;
+		for (int i = 9000; i < 10000; ++i)
+			sum += i;
+		assertEquals(1000, cbq.parallelStream().count());
+		assertEquals(sum, cbq.parallelStream().mapToLong(new ToLongFunction<Integer>() {
+			public long applyAsLong(final Integer value) {
+				return value.longValue();
+			}
+		}).sum());
+	}
+
+	/**
+	 * Removing a key drops its pending element and every older one;
+	 * anything newer for the key is delivered as usual.
+	 * @throws InterruptedException
+	 */
+	public void testRemoveKeyDropsEverythingPendingForIt() throws InterruptedException {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final String fool = new String("fool");
+		final String diamonds = new String("diamonds");
+		final String horse = new String("horse");
+		final String delight = new String("delight");
+		final String hat = new String("hat");
+		final String dawn = new String("dawn");
+		cbq.add(fool);
+		cbq.add(diamonds);
+		cbq.add(horse);
+		cbq.add(delight);
+		cbq.add(hat);
+		assertTrue(cbq.removeKey("d"));
+		assertFalse(cbq.removeKey("d"));
+		assertFalse(cbq.removeKey("z"));
+		assertEquals(2, cbq.size());
+		cbq.add(dawn);
+		assertEquals(2, cbq.removeKeys(new Predicate<String>() {
+			public boolean test(final String key) {
+				return !key.equals("d");
+			}
+		}));
+		assertSame(dawn, cbq.take());
+		assertNull(cbq.poll());
+	}
+
+	/**
+	 * An expired element is skipped when it reaches the head, and its
+	 * key is forgotten once the wheel turns, consumer or no consumer.
+	 * @throws InterruptedException
+	 */
+	public void testExpiredElementsAreSkippedAndForgotten() throws InterruptedException {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(),
+					new FirstLetterUpperCaseNeverCoalescesPolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final ManualTicker ticker = new ManualTicker();
+		cbq.enableExpiry(100, TimeUnit.NANOSECONDS, ticker);
+		try {
+			cbq.enableExpiry(1, TimeUnit.SECONDS, ticker);
+			fail();
+		} catch (final IllegalStateException e) {
+			// good!
+		}
+		final String fool = new String("fool");
+		final String diamonds = new String("diamonds");
+		final String heart = new String("Heart");
+		final String horse = new String("horse");
+		cbq.add(fool);
+		cbq.add(diamonds);
+		cbq.add(heart);
+		ticker.now_ = 60;
+		cbq.add(horse);
+		ticker.now_ = 100;
+		assertSame(heart, cbq.poll());
+		assertSame(horse, cbq.poll());
+		assertNull(cbq.poll());
+		cbq.add(fool);
+		cbq.add(diamonds);
+		assertEquals(2, cbq.rememberedKeyCount());
+		ticker.now_ = 300;
+		cbq.expire();
+		assertEquals(0, cbq.rememberedKeyCount());
+		assertNull(cbq.poll());
+	}
+
+	/**
+	 * However often a key is updated, the wheel holds one timeout for
+	 * it, and no superseded element.
+	 */
+	public void testExpiryHoldsOneTimeoutPerKey() {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final ManualTicker ticker = new ManualTicker();
+		cbq.enableExpiry(100, TimeUnit.NANOSECONDS, ticker);
+		for (int i = 0; i < 1000; ++i) {
+			ticker.now_ = i / 10;
+			cbq.add("fool" + i);
+			cbq.add("diamonds" + i);
+		}
+		assertEquals(2, cbq.scheduledExpiryCount());
+		assertEquals("fool999", cbq.poll());
+		ticker.now_ = 150;
+		cbq.expire();
+		assertEquals(2, cbq.scheduledExpiryCount());
+		assertEquals(1, cbq.rememberedKeyCount());
+		ticker.now_ = 250;
+		cbq.expire();
+		assertEquals(0, cbq.scheduledExpiryCount());
+		assertEquals(0, cbq.rememberedKeyCount());
+		assertNull(cbq.poll());
+	}
+
+	/**
+	 * With a scheduler turning the wheel, expired keys are
+	 * forgotten with no producer or consumer around at all.
+	 * @throws InterruptedException
+	 */
+	public void testScheduledExpiryForgetsWhileIdle() throws InterruptedException {
+		final CoalescingBlockingQueue<String, String> cbq =
+			new CoalescingBlockingQueue<String, String> (
+					new LinkedBlockingQueue<String>(),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			cbq.scheduleExpiry(scheduler);
+			fail();
+		} catch (final IllegalStateException e) {
+			// good!
+		}
+		cbq.enableExpiry(new TimeToLive<String>() {
+			public long timeToLiveNanos(final String element) {
+				return TimeUnit.MILLISECONDS.toNanos(1);
+			}
+		}, 1, TimeUnit.MILLISECONDS, Ticker.SYSTEM);
+		cbq.add(new String("fool"));
+		final ScheduledFuture<?> expiring = cbq.scheduleExpiry(scheduler);
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (cbq.rememberedKeyCount() > 0 && System.nanoTime() < deadline)
+			Thread.sleep(1);
+		expiring.cancel(false);
+		scheduler.shutdown();
+		assertEquals(0, cbq.rememberedKeyCount());
+		assertNull(cbq.poll());
+	}
+
+	/**
+	 * Runs a hook, once, in the middle of a producer's offer
+	 * or a consumer's poll.
+	 */
+	private static class HookedQueue extends LinkedBlockingQueue<String> {
+		private static final long serialVersionUID = 1L;
+
+		Runnable beforeOffer_;
+		Runnable afterPoll_;
+
+		HookedQueue(final int capacity) {
+			super(capacity);
+		}
+
+		public boolean offer(final String o) {
+			final Runnable hook = beforeOffer_;
+			beforeOffer_ = null;
+			if (hook != null)
+				hook.run();
+			return super.offer(o);
+		}
+
+		public String poll() {
+			final String polled = super.poll();
+			final Runnable hook = afterPoll_;
+			afterPoll_ = null;
+			if (hook != null)
+				hook.run();
+			return polled;
+		}
+	}
+
 	private class NeverCoalescePolicy implements CoalescingPolicy<String> {
 		public boolean shouldCoalesce(final String coalesceCandidate) {
 			return false;
 		}
 	}
 	
+	private class FirstLetterUpperCaseNeverCoalescesPolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return !Character.isUpperCase(coalesceCandidate.charAt(0));
+		}
+	}
+
 	private class AlwaysCoalescePolicy implements CoalescingPolicy<String> {
 
 		public boolean shouldCoalesce(final String coalesceCandidate) {
@@ -0,0 +1,151 @@
+package org.grumpysoft;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * Time is moved along by hand, except where we
+ * need to see take() actually wait.
+ */
+public class ConflatingBlockingQueueTest extends TestCase {
+
+	private final ManualTicker ticker_ = new ManualTicker();
+
+	/**
+	 *
+	 */
+	public void testNothingIsReadyUntilItsWindowCloses() {
+		final ConflatingBlockingQueue<String, String> q = firstLetterQueue(10);
+		q.add("diamonds");
+		ticker_.now_ = 5;
+		q.add("horse");
+		q.add("delight");
+		assertEquals(2, q.size());
+		assertNull(q.poll());
+		assertNull(q.peek());
+		ticker_.now_ = 10;
+		assertEquals("delight", q.peek());
+		assertEquals("delight", q.poll());
+		assertNull(q.poll());
+		ticker_.now_ = 15;
+		assertEquals("horse", q.poll());
+		assertTrue(q.isEmpty());
+	}
+
+	/**
+	 * A closed window still takes updates until it's taken; after
+	 * that, the key waits out a fresh window.
+	 */
+	public void testKeysAreDeliveredAtMostOncePerInterval() {
+		final ConflatingBlockingQueue<String, String> q = firstLetterQueue(10);
+		q.add("diamonds");
+		ticker_.now_ = 12;
+		q.add("delight");
+		assertEquals("delight", q.poll());
+		q.add("dirt");
+		assertNull(q.poll());
+		ticker_.now_ = 21;
+		assertNull(q.poll());
+		ticker_.now_ = 22;
+		assertEquals("dirt", q.poll());
+	}
+
+	/**
+	 *
+	 */
+	public void testUncoalescablesAreNotThrottled() {
+		final ConflatingBlockingQueue<String, String> q =
+			new ConflatingBlockingQueue<String, String>(
+					2, 10, TimeUnit.NANOSECONDS,
+					new FoolsDontCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector(),
+					ticker_
+					);
+		q.add("diamonds");
+		q.add("fool");
+		assertFalse(q.offer("fool"));
+		assertTrue(q.offer("delight"));
+		final ArrayList<String> drainpipe = new ArrayList<String>();
+		assertEquals(1, q.drainTo(drainpipe));
+		assertEquals("fool", drainpipe.get(0));
+		ticker_.now_ = 10;
+		assertEquals(1, q.drainTo(drainpipe));
+		assertEquals("delight", drainpipe.get(1));
+	}
+
+	/**
+	 * @throws InterruptedException
+	 */
+	public void testTakeWaitsForTheWindow() throws InterruptedException {
+		final ConflatingBlockingQueue<String, String> q =
+			new ConflatingBlockingQueue<String, String>(
+					20, TimeUnit.MILLISECONDS,
+					new FoolsDontCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					);
+		final long start = System.nanoTime();
+		q.add("diamonds");
+		q.add("delight");
+		assertNull(q.poll(1, TimeUnit.MILLISECONDS));
+		assertEquals("delight", q.take());
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+	}
+
+	/**
+	 * Removal works on closed and open windows alike, and a removed
+	 * key's next update opens a new window.
+	 */
+	public void testRemoveFromEitherList() {
+		final ConflatingBlockingQueue<String, String> q = firstLetterQueue(10);
+		q.add("diamonds");
+		q.add("horse");
+		q.add("fool");
+		assertFalse(q.remove("dirt"));
+		assertTrue(q.remove("fool"));
+		assertTrue(q.remove(new String("diamonds")));
+		assertEquals(1, q.size());
+		ticker_.now_ = 5;
+		q.add("delight");
+		final Iterator<String> it = q.iterator();
+		assertEquals("horse", it.next());
+		it.remove();
+		try {
+			it.remove();
+			fail();
+		} catch (final IllegalStateException e) {
+			// good!
+		}
+		assertEquals("delight", it.next());
+		assertFalse(it.hasNext());
+		ticker_.now_ = 10;
+		assertNull(q.poll());
+		ticker_.now_ = 15;
+		assertEquals("delight", q.poll());
+		assertTrue(q.isEmpty());
+	}
+
+	private ConflatingBlockingQueue<String, String> firstLetterQueue(final long interval) {
+		return new ConflatingBlockingQueue<String, String>(
+				Integer.MAX_VALUE, interval, TimeUnit.NANOSECONDS,
+				new FoolsDontCoalescePolicy(),
+				new HashCodeOfFirstLetterRedirector(),
+				ticker_
+				);
+	}
+
+	private class FoolsDontCoalescePolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return !coalesceCandidate.startsWith("f");
+		}
+	}
+
+	private class HashCodeOfFirstLetterRedirector implements LockSmith<String, String> {
+		public String makeKey(final String toGenerateFrom) {
+			return toGenerateFrom.substring(0,1);
+		}
+	}
+}
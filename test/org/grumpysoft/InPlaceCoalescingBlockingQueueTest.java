@@ -0,0 +1,279 @@
+package org.grumpysoft;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * Single threaded tests for the in place queue; as with the wrapping
+ * queue, we trust ReentrantLock and friends with the concurrency.
+ */
+public class InPlaceCoalescingBlockingQueueTest extends TestCase {
+
+	/**
+	 * A batch coalesces within itself and with what's pending, and
+	 * goes in whole or not at all.
+	 */
+	public void testOfferAllCoalescesAndIsAllOrNothing() {
+		final InPlaceCoalescingBlockingQueue<String, String> q =
+			new InPlaceCoalescingBlockingQueue<String, String>(
+					4, new AlwaysCoalescePolicy(), new HashCodeOfFirstLetterRedirector());
+		final String fool = new String("fool");
+		final String fire = new String("fire");
+		final String delight = new String("delight");
+		final String hat = new String("hat");
+		assertTrue(q.offer(fool));
+		final String[] batch = { "x", new String("diamonds"), fire, delight, new String("horse"), hat, "y" };
+		assertTrue(q.offerAll(batch, 1, 5));
+		assertEquals(3, q.size());
+		assertFalse(q.offerAll(new String[] { "apple", "bear" }, 0, 2));
+		assertEquals(3, q.size());
+		assertSame(fire, q.poll());
+		assertSame(delight, q.poll());
+		assertSame(hat, q.poll());
+		assertNull(q.poll());
+	}
+
+	private final String fool = new String("fool");
+	private final String diamonds = new String("diamonds");
+	private final String horse = new String("horse");
+	private final String delight = new String("delight");
+
+	/**
+	 * A key keeps the position of its first arrival, but
+	 * carries the value of its last.
+	 */
+	public void testReofferOverwritesInPlace() {
+		final InPlaceCoalescingBlockingQueue<String, String> q = firstLetterQueue(10);
+		q.add(horse);
+		q.add(diamonds);
+		q.add(fool);
+		q.add(delight);
+		assertEquals(3, q.size());
+		assertEquals(horse, q.poll());
+		assertEquals(delight, q.poll());
+		assertEquals(fool, q.poll());
+		assertNull(q.poll());
+	}
+
+	/**
+	 *
+	 */
+	public void testNonCoalescersTakeASlotEach() {
+		final InPlaceCoalescingBlockingQueue<String, Integer> q =
+			new InPlaceCoalescingBlockingQueue<String, Integer>(
+					10,
+					new NeverCoalescePolicy(),
+					new HashCodeRedirector()
+					);
+		q.add(fool);
+		q.add(fool);
+		assertEquals(2, q.size());
+		assertEquals(fool, q.poll());
+		assertEquals(fool, q.poll());
+	}
+
+	/**
+	 * Superseded updates mustn't eat into capacity.
+	 * @throws InterruptedException
+	 */
+	public void testRemainingCapacityCountsLiveKeysOnly() throws InterruptedException {
+		final InPlaceCoalescingBlockingQueue<String, String> q = firstLetterQueue(2);
+		q.put(diamonds);
+		q.put(delight);
+		q.put(diamonds);
+		assertEquals(1, q.remainingCapacity());
+		q.put(fool);
+		assertEquals(0, q.remainingCapacity());
+		assertFalse(q.offer(horse));
+		assertFalse(q.offer(horse, 1, TimeUnit.MILLISECONDS));
+		assertTrue(q.offer(delight));
+		assertTrue(q.offer(fool, 1, TimeUnit.MILLISECONDS));
+		assertEquals(delight, q.take());
+		assertTrue(q.offer(horse));
+	}
+
+	/**
+	 * Once a key has been consumed, a new value for it starts a new slot.
+	 * @throws InterruptedException
+	 */
+	public void testKeyRejoinsAtTheBackOnceTaken() throws InterruptedException {
+		final InPlaceCoalescingBlockingQueue<String, String> q = firstLetterQueue(10);
+		q.add(diamonds);
+		q.add(horse);
+		assertEquals(diamonds, q.take());
+		q.add(delight);
+		assertEquals(horse, q.take());
+		assertEquals(delight, q.take());
+	}
+
+	/**
+	 *
+	 */
+	public void testDrainToRespectsMaxElements() {
+		final InPlaceCoalescingBlockingQueue<String, String> q = firstLetterQueue(10);
+		q.add(horse);
+		q.add(diamonds);
+		q.add(fool);
+		q.add(delight);
+		final ArrayList<String> drainpipe = new ArrayList<String>();
+		assertEquals(2, q.drainTo(drainpipe, 2));
+		assertEquals(horse, drainpipe.get(0));
+		assertEquals(delight, drainpipe.get(1));
+		assertEquals(1, q.drainTo(drainpipe));
+		assertEquals(fool, drainpipe.get(2));
+		assertTrue(q.isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	public void testIteratorRemove() {
+		final InPlaceCoalescingBlockingQueue<String, String> q = firstLetterQueue(10);
+		q.add(horse);
+		q.add(diamonds);
+		q.add(delight);
+		final Iterator<String> it = q.iterator();
+		assertEquals(horse, it.next());
+		it.remove();
+		assertEquals(delight, it.next());
+		assertFalse(it.hasNext());
+		assertEquals(1, q.size());
+		assertTrue(q.contains(delight));
+		assertFalse(q.contains(diamonds));
+		assertTrue(q.remove(delight));
+		assertTrue(q.isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	public void testClearForgetsKeys() {
+		final InPlaceCoalescingBlockingQueue<String, String> q = firstLetterQueue(10);
+		q.add(horse);
+		q.add(diamonds);
+		q.clear();
+		assertEquals(0, q.size());
+		q.add(delight);
+		q.add(fool);
+		assertEquals(delight, q.poll());
+		assertEquals(fool, q.poll());
+	}
+
+	/**
+	 * A merging policy folds the newcomer into the pending element;
+	 * negative keys opt out of coalescing altogether.
+	 */
+	public void testMergingPolicyCombinesPendingElements() {
+		SummingMerges.assertSumsPendingElements(
+				new InPlaceCoalescingBlockingQueue<long[], Long>(
+						2,
+						new SummingMerges.SummingPolicy(),
+						new SummingMerges.FirstLongRedirector()
+						));
+	}
+
+	/**
+	 *
+	 */
+	public void testBatchDrains() {
+		final InPlaceCoalescingBlockingQueue<String, String> q = firstLetterQueue(10);
+		q.add(horse);
+		q.add(diamonds);
+		q.add(fool);
+		q.add(delight);
+		final String[] buffer = new String[2];
+		assertEquals(2, q.drainTo(buffer, 0, 2));
+		assertEquals(horse, buffer[0]);
+		assertEquals(delight, buffer[1]);
+		try {
+			q.drainTo(buffer, 1, 2);
+			fail();
+		} catch (final IndexOutOfBoundsException e) {
+			// good!
+		}
+		final StringBuilder handled = new StringBuilder();
+		final BatchHandler<String> handler = new BatchHandler<String>() {
+			public void onElement(final String element) {
+				handled.append(element);
+			}
+
+			public void onEndOfBatch(final int size) {
+				handled.append('|').append(size);
+			}
+		};
+		q.add(horse);
+		assertEquals(1, q.drain(handler, 1));
+		assertEquals(1, q.drain(handler, 1));
+		assertEquals(0, q.drain(handler, 1));
+		assertEquals("fool|1horse|1", handled.toString());
+	}
+
+	/**
+	 * Residence is measured from a key's first arrival, overwrites and all.
+	 * @throws InterruptedException
+	 */
+	public void testMetricsRecordResidence() throws InterruptedException {
+		final InPlaceCoalescingBlockingQueue<String, String> q = firstLetterQueue(10);
+		final CoalescingQueueMetrics metrics = q.enableMetrics(true);
+		q.add(diamonds);
+		q.add(horse);
+		Thread.sleep(2);
+		q.add(delight);
+		assertEquals(3, metrics.getOffered());
+		assertEquals(1, metrics.getCoalesced());
+		assertEquals(2, metrics.getLiveDepth());
+		assertEquals(2, metrics.getRememberedKeys());
+		assertEquals(delight, q.take());
+		assertEquals(horse, q.poll());
+		assertEquals(2, metrics.getDelivered());
+		assertEquals(1, metrics.getTakes());
+		assertEquals(2, metrics.residence().count());
+		assertTrue(metrics.getResidenceNanosMax() >= 2000000L);
+		assertEquals(0, metrics.getRememberedKeys());
+		// a take that's interrupted took nothing, so isn't a take
+		Thread.currentThread().interrupt();
+		try {
+			q.take();
+			fail();
+		} catch (final InterruptedException e) {
+			// good!
+		}
+		assertEquals(1, metrics.getTakes());
+	}
+
+	private InPlaceCoalescingBlockingQueue<String, String> firstLetterQueue(final int capacity) {
+		return new InPlaceCoalescingBlockingQueue<String, String>(
+				capacity,
+				new AlwaysCoalescePolicy(),
+				new HashCodeOfFirstLetterRedirector()
+				);
+	}
+
+	private class NeverCoalescePolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return false;
+		}
+	}
+
+	private class AlwaysCoalescePolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return true;
+		}
+	}
+
+	private class HashCodeRedirector implements LockSmith<String, Integer> {
+		public Integer makeKey(final String toGenerateFrom) {
+			return Integer.valueOf(toGenerateFrom.hashCode());
+		}
+	}
+
+	private class HashCodeOfFirstLetterRedirector implements LockSmith<String, String> {
+		public String makeKey(final String toGenerateFrom) {
+			return toGenerateFrom.substring(0,1);
+		}
+	}
+}
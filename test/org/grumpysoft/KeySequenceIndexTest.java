@@ -0,0 +1,75 @@
+package org.grumpysoft;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * Backward shift deletion is easy to get subtly wrong, so
+ * we check the index against a HashMap doing random things.
+ */
+public class KeySequenceIndexTest extends TestCase {
+
+	/**
+	 *
+	 */
+	public void testBasics() {
+		final KeySequenceIndex<String> index = new KeySequenceIndex<String>(4);
+		assertEquals(KeySequenceIndex.ABSENT, index.get("a"));
+		index.put("a", 1);
+		index.put("b", 2);
+		index.put("a", 3);
+		assertEquals(2, index.size());
+		assertEquals(3, index.get("a"));
+		assertFalse(index.remove("a", 1));
+		assertTrue(index.remove("a", 3));
+		assertEquals(KeySequenceIndex.ABSENT, index.get("a"));
+		assertEquals(2, index.get("b"));
+		index.clear();
+		assertEquals(0, index.size());
+		assertEquals(KeySequenceIndex.ABSENT, index.get("b"));
+	}
+
+	/**
+	 * Keys that collide a lot, to exercise the probe runs.
+	 */
+	public void testAgreesWithHashMap() {
+		final KeySequenceIndex<Integer> index = new KeySequenceIndex<Integer>(64);
+		final Map<Integer, Long> expected = new HashMap<Integer, Long>();
+		final Random random = new Random(42);
+		for (int i = 0; i < 100000; ++i) {
+			final Integer key = Integer.valueOf(random.nextInt(96) * 128);
+			final Long current = expected.get(key);
+			if (current != null && random.nextBoolean()) {
+				assertTrue(index.remove(key, current.longValue()));
+				expected.remove(key);
+			} else if (current != null || expected.size() < 64) {
+				index.put(key, i);
+				expected.put(key, Long.valueOf(i));
+			}
+			assertEquals(expected.size(), index.size());
+		}
+		for (int k = 0; k < 96; ++k) {
+			final Integer key = Integer.valueOf(k * 128);
+			final Long value = expected.get(key);
+			assertEquals(value == null ? KeySequenceIndex.ABSENT : value.longValue(), index.get(key));
+		}
+	}
+
+	/**
+	 *
+	 */
+	public void testGrowsAndSweeps() {
+		final KeySequenceIndex<Integer> index = new KeySequenceIndex<Integer>(1);
+		for (int i = 0; i < 1000; ++i)
+			index.put(Integer.valueOf(i * 64), i);
+		assertEquals(1000, index.size());
+		assertEquals(500, index.removeBelow(500));
+		assertEquals(500, index.size());
+		for (int i = 0; i < 1000; ++i)
+			assertEquals(i < 500 ? KeySequenceIndex.ABSENT : i, index.get(Integer.valueOf(i * 64)));
+	}
+}
@@ -0,0 +1,46 @@
+package org.grumpysoft;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * The bucket arithmetic is fiddly; check it holds together
+ * across every power of two.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+	/**
+	 *
+	 */
+	public void testEveryValueFallsWithinItsBucket() {
+		for (int bits = 0; bits < 63; ++bits) {
+			for (final long value : new long[] { 1L << bits, (1L << bits) + 1, (2L << bits) - 1 }) {
+				final int bucket = LatencyHistogram.bucketOf(value);
+				assertTrue(value <= LatencyHistogram.upperBoundOf(bucket));
+				if (bucket > 0)
+					assertTrue(value > LatencyHistogram.upperBoundOf(bucket - 1));
+			}
+		}
+		assertEquals(LatencyHistogram.bucketOf(Long.MAX_VALUE),
+				LatencyHistogram.bucketOf(Long.MAX_VALUE - 1));
+	}
+
+	/**
+	 *
+	 */
+	public void testPercentiles() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.percentile(50));
+		for (int i = 1; i <= 1000; ++i)
+			histogram.record(i);
+		histogram.record(-5);
+		assertEquals(1001, histogram.count());
+		assertEquals(1000, histogram.max());
+		final long median = histogram.percentile(50);
+		assertTrue(median >= 500 && median <= 500 * 17 / 16);
+		assertEquals(1000, histogram.percentile(100));
+		histogram.reset();
+		assertEquals(0, histogram.count());
+	}
+
+}
@@ -0,0 +1,151 @@
+package org.grumpysoft;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * The same story as InPlaceCoalescingBlockingQueueTest,
+ * told with primitive keys.
+ */
+public class LongKeyedCoalescingBlockingQueueTest extends TestCase {
+
+	private final String fool = new String("fool");
+	private final String diamonds = new String("diamonds");
+	private final String horse = new String("horse");
+	private final String delight = new String("delight");
+
+	/**
+	 *
+	 */
+	public void testReofferOverwritesInPlace() {
+		final LongKeyedCoalescingBlockingQueue<String> q = firstLetterQueue(4);
+		q.add(horse);
+		q.add(diamonds);
+		q.add(fool);
+		q.add(delight);
+		assertEquals(3, q.size());
+		assertEquals(horse, q.peek());
+		assertEquals(horse, q.poll());
+		assertEquals(delight, q.poll());
+		assertEquals(fool, q.poll());
+		assertNull(q.poll());
+	}
+
+	/**
+	 * @throws InterruptedException
+	 */
+	public void testCapacityCountsLiveKeysOnly() throws InterruptedException {
+		final LongKeyedCoalescingBlockingQueue<String> q = firstLetterQueue(2);
+		q.put(diamonds);
+		q.put(fool);
+		assertEquals(0, q.remainingCapacity());
+		assertFalse(q.offer(horse));
+		assertFalse(q.offer(horse, 1, TimeUnit.MILLISECONDS));
+		assertTrue(q.offer(delight, 1, TimeUnit.MILLISECONDS));
+		assertEquals(delight, q.take());
+		assertTrue(q.offer(horse));
+		final ArrayList<String> drainpipe = new ArrayList<String>();
+		assertEquals(1, q.drainTo(drainpipe, 1));
+		assertEquals(fool, drainpipe.get(0));
+		assertEquals(horse, q.poll(1, TimeUnit.MILLISECONDS));
+		assertNull(q.poll(1, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 *
+	 */
+	public void testKeysRejoinAfterConsumptionAndRingWraps() {
+		final LongKeyedCoalescingBlockingQueue<String> q = firstLetterQueue(2);
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(q.offer(diamonds));
+			assertTrue(q.offer(horse));
+			assertEquals(diamonds, q.poll());
+			assertTrue(q.offer(delight));
+			assertEquals(horse, q.poll());
+			assertEquals(delight, q.poll());
+		}
+		assertTrue(q.isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	public void testNonCoalescersAndIterator() {
+		final LongKeyedCoalescingBlockingQueue<String> q =
+			new LongKeyedCoalescingBlockingQueue<String>(
+					4,
+					new CoalescingPolicy<String>() {
+						public boolean shouldCoalesce(final String candidate) {
+							return !candidate.startsWith("f");
+						}
+					},
+					new FirstLetterIntSmith()
+					);
+		q.add(fool);
+		q.add(diamonds);
+		q.add(fool);
+		q.add(delight);
+		final Iterator<String> it = q.iterator();
+		assertEquals(fool, it.next());
+		assertEquals(delight, it.next());
+		assertEquals(fool, it.next());
+		assertFalse(it.hasNext());
+		q.clear();
+		assertTrue(q.isEmpty());
+		q.add(diamonds);
+		assertEquals(diamonds, q.poll());
+	}
+
+	/**
+	 * Removing from the middle moves later slots down, and their keys
+	 * must still find them.
+	 */
+	public void testRemoveKeepsLaterKeysFindable() {
+		final LongKeyedCoalescingBlockingQueue<String> q = firstLetterQueue(4);
+		q.add(horse);
+		q.add(diamonds);
+		q.add(fool);
+		assertFalse(q.remove(new String("delight")));
+		assertTrue(q.remove(new String("horse")));
+		assertTrue(q.offer(delight));
+		assertTrue(q.offer(new String("fire")));
+		assertEquals(2, q.size());
+		final Iterator<String> it = q.iterator();
+		assertEquals(delight, it.next());
+		it.remove();
+		try {
+			it.remove();
+			fail();
+		} catch (final IllegalStateException e) {
+			// good!
+		}
+		assertTrue(q.offer(diamonds));
+		assertTrue(q.offer(horse));
+		assertEquals("fire", q.poll());
+		assertEquals(diamonds, q.poll());
+		assertEquals(horse, q.poll());
+		assertNull(q.poll());
+	}
+
+	private LongKeyedCoalescingBlockingQueue<String> firstLetterQueue(final int capacity) {
+		return new LongKeyedCoalescingBlockingQueue<String>(
+				capacity,
+				new CoalescingPolicy<String>() {
+					public boolean shouldCoalesce(final String candidate) {
+						return true;
+					}
+				},
+				new FirstLetterIntSmith()
+				);
+	}
+
+	private class FirstLetterIntSmith implements IntLockSmith<String> {
+		public int makeKey(final String toGenerateFrom) {
+			return toGenerateFrom.charAt(0);
+		}
+	}
+}
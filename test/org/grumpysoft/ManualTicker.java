@@ -0,0 +1,15 @@
+package org.grumpysoft;
+
+/**
+ * @author james
+ * A Ticker that only moves when a test moves it. now_ is volatile
+ * so that a test can move it while the queue is read elsewhere.
+ */
+class ManualTicker implements Ticker {
+
+	volatile long now_;
+
+	public long nanoTime() {
+		return now_;
+	}
+}
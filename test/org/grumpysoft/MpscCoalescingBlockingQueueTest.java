@@ -0,0 +1,381 @@
+package org.grumpysoft;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * Single threaded behaviour first, then a handful of producers
+ * hammering a small ring.
+ */
+public class MpscCoalescingBlockingQueueTest extends TestCase {
+
+	private final String fool = new String("fool");
+	private final String diamonds = new String("diamonds");
+	private final String horse = new String("horse");
+	private final String delight = new String("delight");
+
+	/**
+	 *
+	 */
+	public void testReofferOverwritesInPlace() {
+		final MpscCoalescingBlockingQueue<String, String> q = firstLetterQueue(4);
+		q.offer(horse);
+		q.offer(diamonds);
+		q.offer(fool);
+		q.offer(delight);
+		assertEquals(3, q.size());
+		assertEquals(horse, q.peek());
+		assertEquals(horse, q.poll());
+		assertEquals(delight, q.poll());
+		assertEquals(fool, q.poll());
+		assertNull(q.poll());
+	}
+
+	/**
+	 * @throws InterruptedException
+	 */
+	public void testCapacityCountsLiveKeysOnly() throws InterruptedException {
+		final MpscCoalescingBlockingQueue<String, String> q = firstLetterQueue(2);
+		q.put(diamonds);
+		q.put(fool);
+		assertEquals(0, q.remainingCapacity());
+		assertFalse(q.offer(horse));
+		assertFalse(q.offer(horse, 1, TimeUnit.MILLISECONDS));
+		assertTrue(q.offer(delight));
+		assertEquals(delight, q.take());
+		assertTrue(q.offer(horse));
+		final ArrayList<String> drainpipe = new ArrayList<String>();
+		assertEquals(2, q.drainTo(drainpipe));
+		assertEquals(Arrays.asList(fool, horse), drainpipe);
+	}
+
+	/**
+	 * A stale index entry for a lapped slot mustn't let
+	 * us overwrite somebody else's element.
+	 */
+	public void testKeysRejoinAfterConsumptionAndRingWraps() {
+		final MpscCoalescingBlockingQueue<String, String> q = firstLetterQueue(2);
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(q.offer(diamonds));
+			assertTrue(q.offer(horse));
+			assertEquals(diamonds, q.poll());
+			assertTrue(q.offer(fool));
+			assertEquals(horse, q.poll());
+			assertTrue(q.offer(delight));
+			assertEquals(fool, q.poll());
+			assertEquals(delight, q.poll());
+		}
+		assertTrue(q.isEmpty());
+	}
+
+	/**
+	 * A removed slot must read as removed, not as claimed but unfilled,
+	 * or the consumer would stop dead in front of it.
+	 */
+	public void testRemoveAndIteratorRemove() {
+		final MpscCoalescingBlockingQueue<String, String> q = firstLetterQueue(4);
+		q.offer(horse);
+		q.offer(diamonds);
+		q.offer(fool);
+		assertFalse(q.remove(new String("delight")));
+		assertTrue(q.remove(new String("diamonds")));
+		assertFalse(q.contains(diamonds));
+		assertTrue(q.offer(delight));
+		final Iterator<String> it = q.iterator();
+		assertEquals(horse, it.next());
+		it.remove();
+		assertEquals(fool, it.next());
+		assertEquals(delight, it.next());
+		assertFalse(it.hasNext());
+		it.remove();
+		try {
+			it.remove();
+			fail();
+		} catch (final IllegalStateException e) {
+			// good!
+		}
+		// delight's emptied slot counts until the consumer passes it
+		assertEquals(2, q.size());
+		assertEquals(fool, q.peek());
+		assertEquals(fool, q.poll());
+		assertTrue(q.isEmpty());
+		for (int i = 0; i < 8; ++i) {
+			assertTrue(q.offer(horse));
+			assertTrue(q.offer(diamonds));
+			assertTrue(q.remove(horse));
+			assertEquals(diamonds, q.poll());
+		}
+		assertNull(q.poll());
+	}
+
+	/**
+	 * Each producer owns its keys, so per key values must arrive in
+	 * order and every key's final value must arrive.
+	 * @throws InterruptedException
+	 */
+	public void testManyProducersOneConsumer() throws InterruptedException {
+		final int producers = 4;
+		final int keysEach = 5;
+		final int updates = 50000;
+		final MpscCoalescingBlockingQueue<long[], Long> q =
+			new MpscCoalescingBlockingQueue<long[], Long>(
+					8,
+					2,
+					new CoalescingPolicy<long[]>() {
+						public boolean shouldCoalesce(final long[] candidate) {
+							return true;
+						}
+					},
+					new LockSmith<long[], Long>() {
+						public Long makeKey(final long[] update) {
+							return Long.valueOf(update[0]);
+						}
+					});
+		final Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; ++p) {
+			final int producer = p;
+			threads[p] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < updates; ++i)
+							q.put(new long[] { producer * keysEach + i % keysEach, i });
+					} catch (final InterruptedException e) {
+						// give up
+					}
+				}
+			};
+			threads[p].start();
+		}
+		final long[] lastSeen = new long[producers * keysEach];
+		Arrays.fill(lastSeen, -1);
+		int finished = 0;
+		while (finished < lastSeen.length) {
+			final long[] update = q.poll(5, TimeUnit.SECONDS);
+			assertNotNull(update);
+			final int key = (int) update[0];
+			assertTrue(update[1] > lastSeen[key]);
+			lastSeen[key] = update[1];
+			if (update[1] >= updates - keysEach)
+				++finished;
+		}
+		for (final Thread thread : threads)
+			thread.join();
+		assertNull(q.poll());
+	}
+
+	/**
+	 * A batch coalesces within itself and with what's pending, and
+	 * goes in whole or not at all.
+	 */
+	public void testOfferAllCoalescesAndIsAllOrNothing() {
+		final MpscCoalescingBlockingQueue<String, String> q =
+			firstLetterQueue(4);
+		final String fool = new String("fool");
+		final String fire = new String("fire");
+		final String delight = new String("delight");
+		final String hat = new String("hat");
+		assertTrue(q.offer(fool));
+		final String[] batch = { "x", new String("diamonds"), fire, delight, new String("horse"), hat, "y" };
+		assertTrue(q.offerAll(batch, 1, 5));
+		// fire's own slot went unused, but counts until it's passed
+		assertEquals(4, q.size());
+		assertFalse(q.offerAll(new String[] { "apple", "bear" }, 0, 2));
+		assertEquals(4, q.size());
+		assertSame(fire, q.poll());
+		assertSame(delight, q.poll());
+		assertSame(hat, q.poll());
+		assertNull(q.poll());
+		assertEquals(0, q.size());
+	}
+
+	/**
+	 * As above, but each producer offers a batch of one update per key.
+	 * @throws InterruptedException
+	 */
+	public void testBatchingProducersOneConsumer() throws InterruptedException {
+		final int producers = 4;
+		final int keysEach = 5;
+		final int batches = 10000;
+		final MpscCoalescingBlockingQueue<long[], Long> q =
+			new MpscCoalescingBlockingQueue<long[], Long>(
+					8,
+					2,
+					new CoalescingPolicy<long[]>() {
+						public boolean shouldCoalesce(final long[] candidate) {
+							return true;
+						}
+					},
+					new LockSmith<long[], Long>() {
+						public Long makeKey(final long[] update) {
+							return Long.valueOf(update[0]);
+						}
+					});
+		final Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; ++p) {
+			final int producer = p;
+			threads[p] = new Thread() {
+				public void run() {
+					final long[][] batch = new long[keysEach][];
+					for (int i = 0; i < batches; ++i) {
+						for (int k = 0; k < keysEach; ++k)
+							batch[k] = new long[] { producer * keysEach + k, i };
+						while (!q.offerAll(batch, 0, keysEach))
+							Thread.yield();
+					}
+				}
+			};
+			threads[p].start();
+		}
+		final long[] lastSeen = new long[producers * keysEach];
+		Arrays.fill(lastSeen, -1);
+		int finished = 0;
+		while (finished < lastSeen.length) {
+			final long[] update = q.poll(5, TimeUnit.SECONDS);
+			assertNotNull(update);
+			final int key = (int) update[0];
+			assertTrue(update[1] > lastSeen[key]);
+			lastSeen[key] = update[1];
+			if (update[1] == batches - 1)
+				++finished;
+		}
+		for (final Thread thread : threads)
+			thread.join();
+		assertNull(q.poll());
+	}
+
+	/**
+	 * Batches that find their keys pending, single puts and a ring
+	 * that's nearly always full: a batch that loses a pending slot to
+	 * the consumer mustn't wait for room with its other slots unfilled.
+	 * @throws InterruptedException
+	 */
+	public void testBatchesLosingPendingSlotsToAFullRing() throws InterruptedException {
+		final int producers = 4;
+		final int keysEach = 3;
+		final int batches = 20000;
+		final MpscCoalescingBlockingQueue<long[], Long> q =
+			new MpscCoalescingBlockingQueue<long[], Long>(
+					4,
+					2,
+					new CoalescingPolicy<long[]>() {
+						public boolean shouldCoalesce(final long[] candidate) {
+							return true;
+						}
+					},
+					new LockSmith<long[], Long>() {
+						public Long makeKey(final long[] update) {
+							return Long.valueOf(update[0]);
+						}
+					});
+		final Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; ++p) {
+			final int producer = p;
+			threads[p] = new Thread() {
+				public void run() {
+					final long[][] batch = new long[keysEach][];
+					try {
+						for (int i = 0; i < batches; ++i) {
+							if (producer == 0) {
+								for (int k = 0; k < keysEach; ++k)
+									q.put(new long[] { k, i });
+								continue;
+							}
+							for (int k = 0; k < keysEach; ++k)
+								batch[k] = new long[] { producer * keysEach + k, i };
+							while (!q.offerAll(batch, 0, keysEach))
+								Thread.yield();
+						}
+					} catch (final InterruptedException e) {
+						// give up
+					}
+				}
+			};
+			threads[p].start();
+		}
+		final long[] lastSeen = new long[producers * keysEach];
+		Arrays.fill(lastSeen, -1);
+		int finished = 0;
+		while (finished < lastSeen.length) {
+			final long[] update = q.poll(5, TimeUnit.SECONDS);
+			assertNotNull(update);
+			final int key = (int) update[0];
+			assertTrue(update[1] > lastSeen[key]);
+			lastSeen[key] = update[1];
+			if (update[1] == batches - 1)
+				++finished;
+		}
+		for (final Thread thread : threads)
+			thread.join();
+		assertNull(q.poll());
+	}
+
+	/**
+	 * As above, step by step: the consumer takes the slot a batch
+	 * meant to overwrite, and another producer takes the room that
+	 * freed, just as the batch gets there. The batch has a slot of its
+	 * own to fall back on, so it never has to wait for room.
+	 */
+	public void testBatchLosingPendingSlotNeverWaits() {
+		final boolean[] raced = { false };
+		final AtomicReference<MpscCoalescingBlockingQueue<String, String>> queue =
+			new AtomicReference<MpscCoalescingBlockingQueue<String, String>>();
+		final MpscCoalescingBlockingQueue<String, String> q =
+			new MpscCoalescingBlockingQueue<String, String>(
+					4,
+					1,
+					new MergingPolicy<String>() {
+						public boolean shouldCoalesce(final String candidate) {
+							return true;
+						}
+
+						public String merge(final String pending, final String newer) {
+							if (!raced[0]) {
+								// the consumer, then another producer, get in first
+								raced[0] = true;
+								assertEquals(pending, queue.get().poll());
+								assertTrue(queue.get().offer("zebra"));
+							}
+							return newer;
+						}
+					},
+					new HashCodeOfFirstLetterRedirector());
+		queue.set(q);
+		q.offer(horse);
+		q.offer(fool);
+		assertTrue(q.offerAll(new String[] { new String("hat"), new String("bee") }, 0, 2));
+		assertTrue(raced[0]);
+		assertEquals(Arrays.asList(fool, "hat", "bee", "zebra"), new ArrayList<String>(q));
+		assertFalse(q.offer("apple"));
+		assertEquals(fool, q.poll());
+		assertEquals("hat", q.poll());
+		assertEquals("bee", q.poll());
+		assertEquals("zebra", q.poll());
+		assertNull(q.poll());
+	}
+
+	private MpscCoalescingBlockingQueue<String, String> firstLetterQueue(final int capacity) {
+		return new MpscCoalescingBlockingQueue<String, String>(
+				capacity,
+				new AlwaysCoalescePolicy(),
+				new HashCodeOfFirstLetterRedirector()
+				);
+	}
+
+	private class AlwaysCoalescePolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return true;
+		}
+	}
+
+	private class HashCodeOfFirstLetterRedirector implements LockSmith<String, String> {
+		public String makeKey(final String toGenerateFrom) {
+			return toGenerateFrom.substring(0,1);
+		}
+	}
+}
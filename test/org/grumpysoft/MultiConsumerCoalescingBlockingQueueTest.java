@@ -0,0 +1,274 @@
+package org.grumpysoft;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * A key's pending value goes to whichever consumer gets to the key
+ * first, and to nobody else.
+ */
+public class MultiConsumerCoalescingBlockingQueueTest extends TestCase {
+
+	/**
+	 * Taking a key's first element claims its latest value;
+	 * its later elements have nothing left to give.
+	 * @throws InterruptedException
+	 */
+	public void testFirstElementClaimsLatestValue() throws InterruptedException {
+		final MultiConsumerCoalescingBlockingQueue<String, String> q =
+			new MultiConsumerCoalescingBlockingQueue<String, String>(
+					new LinkedBlockingQueue<String>(),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector());
+		final String fool = new String("fool");
+		final String diamonds = new String("diamonds");
+		final String horse = new String("horse");
+		final String delight = new String("delight");
+		q.add(diamonds);
+		q.add(fool);
+		q.add(horse);
+		q.add(delight);
+		assertEquals(3, q.size());
+		assertSame(delight, q.take());
+		assertSame(fool, q.poll());
+		assertEquals(1, q.size());
+		assertSame(horse, q.poll(1, TimeUnit.MILLISECONDS));
+		assertNull(q.poll());
+		assertTrue(q.isEmpty());
+		q.add(diamonds);
+		assertSame(diamonds, q.poll());
+	}
+
+	/**
+	 * An offer the wrapped queue turns down leaves the previous value
+	 * pending, as if it had never happened.
+	 */
+	public void testRejectedOfferIsTakenBack() {
+		final MultiConsumerCoalescingBlockingQueue<String, String> q =
+			new MultiConsumerCoalescingBlockingQueue<String, String>(
+					new ArrayBlockingQueue<String>(2),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector());
+		final String fool = new String("fool");
+		final String diamonds = new String("diamonds");
+		final String horse = new String("horse");
+		assertTrue(q.offer(fool));
+		assertTrue(q.offer(diamonds));
+		assertFalse(q.offer(new String("fire")));
+		assertFalse(q.offer(horse));
+		assertEquals(2, q.size());
+		assertSame(fool, q.poll());
+		assertSame(diamonds, q.poll());
+		assertNull(q.poll());
+	}
+
+	/**
+	 * A merge that loses a race is thrown away and redone, and a merged
+	 * value whose element is turned down is put back as it was; neither
+	 * may see an argument a previous merge has been at.
+	 */
+	public void testRetriedAndForgottenMergesLeaveArgumentsAlone() {
+		final List<long[]> seen = new ArrayList<long[]>();
+		final List<long[]> asSeen = new ArrayList<long[]>();
+		final AtomicReference<BlockingQueue<long[]>> racer = new AtomicReference<BlockingQueue<long[]>>();
+		final MultiConsumerCoalescingBlockingQueue<long[], Long> q =
+			new MultiConsumerCoalescingBlockingQueue<long[], Long>(
+					new ArrayBlockingQueue<long[]>(2),
+					new MergingPolicy<long[]>() {
+						public boolean shouldCoalesce(final long[] candidate) {
+							return true;
+						}
+
+						public long[] merge(final long[] pending, final long[] newer) {
+							for (int i = 0; i < seen.size(); ++i)
+								assertTrue(Arrays.equals(asSeen.get(i), seen.get(i)));
+							seen.add(pending);
+							asSeen.add(pending.clone());
+							seen.add(newer);
+							asSeen.add(newer.clone());
+							if (seen.size() == 2) // another producer gets in first
+								assertTrue(racer.get().offer(new long[] { 1, 5 }));
+							return new long[] { pending[0], pending[1] + newer[1] };
+						}
+					},
+					new SummingMerges.FirstLongRedirector());
+		racer.set(q);
+		final long[] first = new long[] { 1, 10 };
+		assertTrue(q.offer(first));
+		assertFalse(q.offer(new long[] { 1, 20 }));
+		assertEquals(6, seen.size());
+		assertSame(first, seen.get(0));
+		assertSame(seen.get(5), seen.get(1));
+		for (int i = 0; i < seen.size(); ++i)
+			assertTrue(Arrays.equals(asSeen.get(i), seen.get(i)));
+		assertEquals(10, first[1]);
+		final long[] taken = q.poll();
+		assertSame(seen.get(4), taken);
+		assertEquals(15, taken[1]);
+		assertNull(q.poll());
+		assertTrue(q.isEmpty());
+	}
+
+	/**
+	 * A removed key's elements have nothing left to claim.
+	 * @throws InterruptedException
+	 */
+	public void testRemoveKeyLeavesNothingToClaim() throws InterruptedException {
+		final MultiConsumerCoalescingBlockingQueue<String, String> q =
+			new MultiConsumerCoalescingBlockingQueue<String, String>(
+					new LinkedBlockingQueue<String>(),
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector());
+		final String fool = new String("fool");
+		final String horse = new String("horse");
+		final String delight = new String("delight");
+		q.add(new String("diamonds"));
+		q.add(fool);
+		q.add(horse);
+		q.add(delight);
+		assertTrue(q.removeKey("d"));
+		assertFalse(q.removeKey("d"));
+		assertEquals(1, q.removeKeys(new Predicate<String>() {
+			public boolean test(final String key) {
+				return key.equals("h");
+			}
+		}));
+		assertEquals(1, q.size());
+		assertSame(fool, q.take());
+		assertNull(q.poll());
+	}
+
+	/**
+	 * Removing a value leaves its key's elements nothing to claim;
+	 * removing an uncoalescable takes it out of the wrapped queue.
+	 */
+	public void testRemoveValuesAndUncoalescables() {
+		final MultiConsumerCoalescingBlockingQueue<String, String> q =
+			new MultiConsumerCoalescingBlockingQueue<String, String>(
+					new LinkedBlockingQueue<String>(),
+					new CoalescingPolicy<String>() {
+						public boolean shouldCoalesce(final String candidate) {
+							return !candidate.startsWith("f");
+						}
+					},
+					new HashCodeOfFirstLetterRedirector());
+		final String horse = new String("horse");
+		final String fire = new String("fire");
+		q.add("diamonds");
+		q.add("fool");
+		q.add(horse);
+		q.add("delight");
+		q.add(fire);
+		assertEquals(4, q.size());
+		assertFalse(q.remove("diamonds"));
+		assertTrue(q.remove(new String("delight")));
+		assertTrue(q.remove(new String("fool")));
+		assertEquals(2, q.size());
+		final Iterator<String> it = q.iterator();
+		assertSame(horse, it.next());
+		it.remove();
+		try {
+			it.remove();
+			fail();
+		} catch (final IllegalStateException e) {
+			// good!
+		}
+		assertSame(fire, it.next());
+		it.remove();
+		assertFalse(it.hasNext());
+		assertEquals(0, q.size());
+		assertNull(q.poll());
+		assertTrue(q.isEmpty());
+	}
+
+	/**
+	 * Producers own their keys and count upwards; no value may be
+	 * handed out twice, and every key's final value must be.
+	 * @throws InterruptedException
+	 */
+	public void testManyProducersManyConsumers() throws InterruptedException {
+		final int producers = 4;
+		final int consumers = 4;
+		final int keysEach = 5;
+		final int updates = 20000;
+		final MultiConsumerCoalescingBlockingQueue<long[], Long> q =
+			new MultiConsumerCoalescingBlockingQueue<long[], Long>(
+					new ArrayBlockingQueue<long[]>(16),
+					new CoalescingPolicy<long[]>() {
+						public boolean shouldCoalesce(final long[] candidate) {
+							return true;
+						}
+					},
+					new LockSmith<long[], Long>() {
+						public Long makeKey(final long[] update) {
+							return Long.valueOf(update[0]);
+						}
+					});
+		final ConcurrentHashMap<Long, Boolean> delivered = new ConcurrentHashMap<Long, Boolean>();
+		final AtomicInteger duplicates = new AtomicInteger();
+		final AtomicInteger finished = new AtomicInteger();
+		final Thread[] threads = new Thread[producers + consumers];
+		for (int p = 0; p < producers; ++p) {
+			final int producer = p;
+			threads[p] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < updates; ++i)
+							q.put(new long[] { producer * keysEach + i % keysEach, i });
+					} catch (final InterruptedException e) {
+						// give up
+					}
+				}
+			};
+		}
+		for (int c = 0; c < consumers; ++c) {
+			threads[producers + c] = new Thread() {
+				public void run() {
+					try {
+						long[] update;
+						while ((update = q.poll(1, TimeUnit.SECONDS)) != null) {
+							if (delivered.putIfAbsent(update[0] * updates + update[1], Boolean.TRUE) != null)
+								duplicates.incrementAndGet();
+							if (update[1] >= updates - keysEach)
+								finished.incrementAndGet();
+						}
+					} catch (final InterruptedException e) {
+						// give up
+					}
+				}
+			};
+		}
+		for (final Thread thread : threads)
+			thread.start();
+		for (final Thread thread : threads)
+			thread.join();
+		assertEquals(0, duplicates.get());
+		assertEquals(producers * keysEach, finished.get());
+		assertTrue(q.isEmpty());
+	}
+
+	private class AlwaysCoalescePolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return true;
+		}
+	}
+
+	private class HashCodeOfFirstLetterRedirector implements LockSmith<String, String> {
+		public String makeKey(final String toGenerateFrom) {
+			return toGenerateFrom.substring(0,1);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package org.grumpysoft;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * The in place story once more, with everything pending
+ * living in direct memory.
+ */
+public class OffHeapCoalescingBlockingQueueTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 *
+	 */
+	public void testReofferOverwritesInPlace() {
+		final OffHeapCoalescingBlockingQueue<String> q = firstLetterQueue(4);
+		q.add("horse");
+		q.add("diamonds");
+		q.add("fool");
+		q.add("delight");
+		assertEquals(3, q.size());
+		assertEquals("horse", q.peek());
+		assertEquals("horse", q.poll());
+		assertEquals("delight", q.poll());
+		assertEquals("fool", q.poll());
+		assertNull(q.poll());
+	}
+
+	/**
+	 *
+	 */
+	public void testKeysRejoinAfterConsumptionAndRingWraps() {
+		final OffHeapCoalescingBlockingQueue<String> q = firstLetterQueue(2);
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(q.offer("diamonds"));
+			assertTrue(q.offer("horse"));
+			assertFalse(q.offer("fool"));
+			assertEquals("diamonds", q.poll());
+			assertTrue(q.offer("delight"));
+			assertEquals("horse", q.poll());
+			assertEquals("delight", q.poll());
+		}
+		assertTrue(q.isEmpty());
+	}
+
+	/**
+	 * A too big overwrite mustn't trample the pending value.
+	 */
+	public void testOversizedElementsAreRejected() {
+		final OffHeapCoalescingBlockingQueue<String> q = firstLetterQueue(4);
+		q.add("diamonds");
+		try {
+			q.add("diamonds are a girl's best friend, so they say");
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// good!
+		}
+		assertEquals(1, q.size());
+		assertEquals("diamonds", q.poll());
+	}
+
+	/**
+	 *
+	 */
+	public void testMergingAndNonCoalescers() {
+		final OffHeapCoalescingBlockingQueue<String> q =
+			new OffHeapCoalescingBlockingQueue<String>(
+					4,
+					32,
+					new Utf8Serializer(),
+					new ConcatenatingPolicy(),
+					new FirstLetterSmith()
+					);
+		q.add("dia");
+		q.add("horse");
+		q.add("_fool");
+		q.add("dmonds");
+		q.add("_fool");
+		final Iterator<String> it = q.iterator();
+		assertEquals("diamonds", it.next());
+		assertEquals("horse", it.next());
+		final ArrayList<String> drainpipe = new ArrayList<String>();
+		assertEquals(4, q.drainTo(drainpipe));
+		assertEquals("[diamonds, horse, _fool, _fool]", drainpipe.toString());
+	}
+
+	/**
+	 * Removing from the middle copies later slots down, and their
+	 * keys must still find them.
+	 */
+	public void testRemoveKeepsLaterKeysFindable() {
+		final OffHeapCoalescingBlockingQueue<String> q = firstLetterQueue(4);
+		q.add("horse");
+		q.add("diamonds");
+		q.add("fool");
+		assertFalse(q.remove("delight"));
+		assertTrue(q.remove("horse"));
+		q.add("delight");
+		q.add("fire");
+		assertEquals(2, q.size());
+		final Iterator<String> it = q.iterator();
+		assertEquals("delight", it.next());
+		it.remove();
+		try {
+			it.remove();
+			fail();
+		} catch (final IllegalStateException e) {
+			// good!
+		}
+		q.add("diamonds");
+		q.add("horse");
+		assertEquals("fire", q.poll());
+		assertEquals("diamonds", q.poll());
+		assertEquals("horse", q.poll());
+		assertNull(q.poll());
+	}
+
+	private OffHeapCoalescingBlockingQueue<String> firstLetterQueue(final int capacity) {
+		return new OffHeapCoalescingBlockingQueue<String>(
+				capacity,
+				32,
+				new Utf8Serializer(),
+				new AlwaysCoalescePolicy(),
+				new FirstLetterSmith()
+				);
+	}
+
+	private class Utf8Serializer implements ElementSerializer<String> {
+		public void write(final String element, final ByteBuffer buffer) {
+			buffer.put(element.getBytes(UTF8));
+		}
+
+		public String read(final ByteBuffer buffer) {
+			final byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return new String(bytes, UTF8);
+		}
+	}
+
+	private class AlwaysCoalescePolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return true;
+		}
+	}
+
+	private class ConcatenatingPolicy implements MergingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return !coalesceCandidate.startsWith("_");
+		}
+
+		public String merge(final String pending, final String newer) {
+			return pending + newer.substring(1);
+		}
+	}
+
+	private class FirstLetterSmith implements IntLockSmith<String> {
+		public int makeKey(final String toGenerateFrom) {
+			return toGenerateFrom.charAt(0);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package org.grumpysoft;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * Crashes are simulated by closing the queue and scribbling on its file.
+ */
+public class PersistentCoalescingBlockingQueueTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int ELEMENT_BYTES = 32;
+	// header, then two halves per slot of (24 bytes + elements) each
+	private static final int HALF_BYTES = 56;
+
+	private File file_;
+
+	protected void setUp() throws IOException {
+		file_ = File.createTempFile("moreq", ".queue");
+		file_.delete();
+	}
+
+	protected void tearDown() {
+		file_.delete();
+	}
+
+	/**
+	 *
+	 * @throws IOException
+	 */
+	public void testPendingKeysSurviveReopening() throws IOException {
+		PersistentCoalescingBlockingQueue<String, String> q = open(8);
+		q.add("horse");
+		q.add("diamonds");
+		q.add("fool");
+		q.add("delight");
+		assertEquals(3, q.size());
+		q.close();
+
+		q = open(8);
+		assertEquals(3, q.size());
+		q.add("dave");
+		assertEquals(3, q.size());
+		assertEquals("horse", q.poll());
+		assertEquals("dave", q.poll());
+		assertEquals("fool", q.poll());
+		assertNull(q.poll());
+		q.close();
+	}
+
+	/**
+	 *
+	 * @throws IOException
+	 */
+	public void testTakenElementsStayTaken() throws IOException {
+		PersistentCoalescingBlockingQueue<String, String> q = open(2);
+		q.add("horse");
+		q.add("diamonds");
+		assertEquals("horse", q.poll());
+		q.add("fool");
+		q.close();
+
+		q = open(2);
+		assertEquals(2, q.size());
+		assertEquals("diamonds", q.poll());
+		assertEquals("fool", q.poll());
+		assertNull(q.poll());
+		q.close();
+	}
+
+	/**
+	 * A half written overwrite leaves the previous value; a half
+	 * written new slot isn't there at all.
+	 * @throws IOException
+	 */
+	public void testTornWritesAreIgnored() throws IOException {
+		PersistentCoalescingBlockingQueue<String, String> q = open(8);
+		q.add("diamonds");
+		q.add("delight");
+		q.add("horse");
+		q.close();
+
+		scribble(0, 1);
+		scribble(1, 0);
+		q = open(8);
+		assertEquals(1, q.size());
+		assertEquals("diamonds", q.peek());
+		q.add("horse");
+		assertEquals(2, q.size());
+		q.close();
+	}
+
+	/**
+	 *
+	 * @throws IOException
+	 */
+	public void testOversizedElementsAreRejected() throws IOException {
+		final PersistentCoalescingBlockingQueue<String, String> q = open(8);
+		q.add("diamonds");
+		try {
+			q.add("diamonds are a girl's best friend, so they say");
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// good!
+		}
+		assertEquals(1, q.size());
+		assertEquals("diamonds", q.poll());
+		q.close();
+	}
+
+	/**
+	 *
+	 * @throws IOException
+	 */
+	public void testFileRemembersItsShape() throws IOException {
+		open(8).close();
+		try {
+			open(16);
+			fail();
+		} catch (final IOException e) {
+			// good!
+		}
+	}
+
+	/**
+	 * Removal rewrites the later slots a sequence earlier, and
+	 * reopening must find them there and nothing after.
+	 * @throws IOException
+	 */
+	public void testRemovalSurvivesReopening() throws IOException {
+		PersistentCoalescingBlockingQueue<String, String> q = open(4);
+		q.add("horse");
+		q.add("diamonds");
+		q.add("fool");
+		assertFalse(q.remove("delight"));
+		assertTrue(q.remove("horse"));
+		q.add("dave");
+		q.add("gin");
+		final Iterator<String> it = q.iterator();
+		assertEquals("dave", it.next());
+		assertEquals("fool", it.next());
+		it.remove();
+		try {
+			it.remove();
+			fail();
+		} catch (final IllegalStateException e) {
+			// good!
+		}
+		q.close();
+
+		q = open(4);
+		assertEquals(2, q.size());
+		q.add("gravy");
+		q.add("fish");
+		assertEquals("dave", q.poll());
+		assertEquals("gravy", q.poll());
+		assertEquals("fish", q.poll());
+		assertNull(q.poll());
+		q.close();
+	}
+
+	private PersistentCoalescingBlockingQueue<String, String> open(final int capacity)
+			throws IOException {
+		return new PersistentCoalescingBlockingQueue<String, String>(
+				file_,
+				capacity,
+				ELEMENT_BYTES,
+				new Utf8Serializer(),
+				new AlwaysCoalescePolicy(),
+				new HashCodeOfFirstLetterRedirector()
+				);
+	}
+
+	private void scribble(final int slot, final int half) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file_, "rw");
+		try {
+			final long payload = 64 + (2 * slot + half) * HALF_BYTES + 24;
+			raf.seek(payload);
+			final int b = raf.read();
+			raf.seek(payload);
+			raf.write(b ^ 0xff);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private class Utf8Serializer implements ElementSerializer<String> {
+		public void write(final String element, final ByteBuffer buffer) {
+			buffer.put(element.getBytes(UTF8));
+		}
+
+		public String read(final ByteBuffer buffer) {
+			final byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return new String(bytes, UTF8);
+		}
+	}
+
+	private class AlwaysCoalescePolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return true;
+		}
+	}
+
+	private class HashCodeOfFirstLetterRedirector implements LockSmith<String, String> {
+		public String makeKey(final String toGenerateFrom) {
+			return toGenerateFrom.substring(0,1);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package org.grumpysoft;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * Lane 0 is for cancels, lane 1 for urgent keys (anything starting
+ * with 'u'), and lane 2 for everything else.
+ */
+public class PriorityCoalescingBlockingQueueTest extends TestCase {
+
+	/**
+	 *
+	 */
+	public void testUrgentLanesJumpTheBacklog() {
+		final PriorityCoalescingBlockingQueue<String> q = threeLaneQueue();
+		q.add("horse");
+		q.add("diamonds");
+		q.add("uranium");
+		q.add("cancel 1");
+		q.add("delight");
+		q.add("cancel 2");
+		q.add("umbrella");
+		assertEquals(5, q.size());
+		assertEquals("cancel 1", q.peek());
+		assertEquals("cancel 1", q.poll());
+		assertEquals("cancel 2", q.poll());
+		assertEquals("umbrella", q.poll());
+		assertEquals("horse", q.poll());
+		assertEquals("delight", q.poll());
+		assertNull(q.poll());
+	}
+
+	/**
+	 * @throws InterruptedException
+	 */
+	public void testDrainAndTakeServeLanesInOrder() throws InterruptedException {
+		final PriorityCoalescingBlockingQueue<String> q = threeLaneQueue();
+		q.put("horse");
+		q.put("uranium");
+		q.put("cancel");
+		final List<String> drainpipe = new ArrayList<String>();
+		assertEquals(2, q.drainTo(drainpipe, 2));
+		assertEquals("[cancel, uranium]", drainpipe.toString());
+		assertEquals("horse", q.take());
+		assertNull(q.poll(1, TimeUnit.MILLISECONDS));
+		try {
+			q.add("");
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// good!
+		}
+	}
+
+	/**
+	 * Removal finds an element in whichever lane it's in, and the
+	 * iterator removes through the lane it's walking.
+	 */
+	public void testRemoveFromAnyLane() {
+		final PriorityCoalescingBlockingQueue<String> q = threeLaneQueue();
+		q.add("horse");
+		q.add("uranium");
+		q.add("cancel");
+		q.add("diamonds");
+		assertFalse(q.remove("umbrella"));
+		assertTrue(q.remove("uranium"));
+		assertTrue(q.lane(1).isEmpty());
+		final Iterator<String> it = q.iterator();
+		assertEquals("cancel", it.next());
+		assertEquals("horse", it.next());
+		it.remove();
+		try {
+			it.remove();
+			fail();
+		} catch (final IllegalStateException e) {
+			// good!
+		}
+		assertEquals("diamonds", it.next());
+		assertFalse(it.hasNext());
+		assertEquals(2, q.size());
+		assertEquals("cancel", q.poll());
+		assertEquals("diamonds", q.poll());
+		assertNull(q.poll());
+	}
+
+	/**
+	 * An idle take sleeps rather than spins, wakes for an element put
+	 * through the queue, and still finds one put straight into a lane.
+	 * @throws InterruptedException
+	 */
+	public void testIdleTakeSleepsUntilWoken() throws InterruptedException {
+		final AtomicInteger idles = new AtomicInteger();
+		final WaitStrategy blocking = WaitStrategies.blocking();
+		final PriorityCoalescingBlockingQueue<String> q = threeLaneQueue(new WaitStrategy() {
+			public void idle(final int idleCount, final BooleanSupplier ready, final long maxNanos)
+					throws InterruptedException {
+				idles.incrementAndGet();
+				blocking.idle(idleCount, ready, maxNanos);
+			}
+
+			public void signal() {
+				blocking.signal();
+			}
+		});
+		final BlockingQueue<String> taken = new LinkedBlockingQueue<String>();
+		final Thread consumer = new Thread() {
+			public void run() {
+				try {
+					taken.add(q.take());
+					taken.add(q.take());
+				} catch (final InterruptedException e) {
+					// give up
+				}
+			}
+		};
+		consumer.start();
+		Thread.sleep(50);
+		assertTrue(taken.isEmpty());
+		assertTrue("woke " + idles.get() + " times", idles.get() < 150);
+		q.put("horse");
+		assertEquals("horse", taken.poll(5, TimeUnit.SECONDS));
+		q.lane(0).put("cancel");
+		assertEquals("cancel", taken.poll(5, TimeUnit.SECONDS));
+		consumer.join();
+	}
+
+	private PriorityCoalescingBlockingQueue<String> threeLaneQueue() {
+		return threeLaneQueue(WaitStrategies.blocking());
+	}
+
+	private PriorityCoalescingBlockingQueue<String> threeLaneQueue(final WaitStrategy waiter) {
+		final List<BlockingQueue<String>> lanes = new ArrayList<BlockingQueue<String>>();
+		lanes.add(new LinkedBlockingQueue<String>());
+		lanes.add(firstLetterQueue());
+		lanes.add(firstLetterQueue());
+		return new PriorityCoalescingBlockingQueue<String>(lanes, new PriorityPolicy<String>() {
+			public int laneFor(final String element) {
+				if (element.length() == 0)
+					return 3;
+				if (element.startsWith("cancel"))
+					return 0;
+				return element.startsWith("u") ? 1 : 2;
+			}
+		}, waiter);
+	}
+
+	private InPlaceCoalescingBlockingQueue<String, String> firstLetterQueue() {
+		return new InPlaceCoalescingBlockingQueue<String, String>(
+				new AlwaysCoalescePolicy(),
+				new HashCodeOfFirstLetterRedirector()
+				);
+	}
+
+	private class AlwaysCoalescePolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return true;
+		}
+	}
+
+	private class HashCodeOfFirstLetterRedirector implements LockSmith<String, String> {
+		public String makeKey(final String toGenerateFrom) {
+			return toGenerateFrom.substring(0,1);
+		}
+	}
+}
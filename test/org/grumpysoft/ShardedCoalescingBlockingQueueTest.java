@@ -0,0 +1,146 @@
+package org.grumpysoft;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * The shards do the coalescing; here we check the routing
+ * and the combined view.
+ */
+public class ShardedCoalescingBlockingQueueTest extends TestCase {
+
+	/**
+	 * Every update for a key lands in the same shard, so it
+	 * coalesces there and keeps its place.
+	 */
+	public void testKeysStickToTheirShard() {
+		final ShardedCoalescingBlockingQueue<String, String> q = firstLetterQueue(4);
+		final String[] words = { "horse", "diamonds", "fool", "delight", "heart", "axe", "apple" };
+		for (final String word : words)
+			q.add(word);
+		assertEquals(4, q.size());
+		final HashSet<String> taken = new HashSet<String>();
+		for (int i = 0; i < q.shardCount(); ++i) {
+			String polled;
+			while ((polled = q.shard(i).poll()) != null) {
+				assertEquals(i, q.shardOf(polled));
+				taken.add(polled);
+			}
+		}
+		assertEquals(4, taken.size());
+		assertTrue(taken.contains("heart"));
+		assertTrue(taken.contains("delight"));
+		assertTrue(taken.contains("fool"));
+		assertTrue(taken.contains("apple"));
+		assertTrue(q.isEmpty());
+	}
+
+	/**
+	 *
+	 * @throws InterruptedException
+	 */
+	public void testCombinedView() throws InterruptedException {
+		final ShardedCoalescingBlockingQueue<String, String> q = firstLetterQueue(3);
+		q.add("horse");
+		q.add("diamonds");
+		q.add("fool");
+		q.add("delight");
+		final HashSet<String> seen = new HashSet<String>();
+		for (final String s : q)
+			seen.add(s);
+		assertEquals(3, seen.size());
+		assertTrue(seen.contains("delight"));
+		assertNotNull(q.peek());
+		assertNotNull(q.take());
+		final ArrayList<String> drainpipe = new ArrayList<String>();
+		assertEquals(1, q.drainTo(drainpipe, 1));
+		assertNotNull(q.poll(1, TimeUnit.MILLISECONDS));
+		assertNull(q.poll(1, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Each shard's consumer sees only its own keys, and the
+	 * latest value for each.
+	 * @throws InterruptedException
+	 */
+	public void testConsumerPerShard() throws InterruptedException {
+		final ShardedCoalescingBlockingQueue<String, String> q = firstLetterQueue(2);
+		final List<String>[] consumed = consumedLists(q.shardCount());
+		final Thread[] consumers = new Thread[q.shardCount()];
+		for (int i = 0; i < consumers.length; ++i) {
+			final BlockingQueue<String> shard = q.shard(i);
+			final List<String> mine = consumed[i];
+			consumers[i] = new Thread() {
+				public void run() {
+					try {
+						String taken;
+						while (!(taken = shard.take()).equals("zzz"))
+							mine.add(taken);
+					} catch (final InterruptedException e) {
+						// done
+					}
+				}
+			};
+			consumers[i].start();
+		}
+		for (int i = 0; i < 1000; ++i)
+			q.put(((char) ('a' + i % 20)) + Integer.toString(i));
+		for (int i = 0; i < consumers.length; ++i)
+			q.shard(i).put("zzz");
+		for (final Thread consumer : consumers)
+			consumer.join(10000);
+		int total = 0;
+		for (int i = 0; i < consumers.length; ++i) {
+			final HashMap<Character, Integer> latest = new HashMap<Character, Integer>();
+			for (final String s : consumed[i]) {
+				assertEquals(i, q.shardOf(s));
+				final int n = Integer.parseInt(s.substring(1));
+				final Integer previous = latest.put(Character.valueOf(s.charAt(0)), Integer.valueOf(n));
+				assertTrue(previous == null || previous.intValue() < n);
+			}
+			total += consumed[i].size();
+		}
+		assertTrue(total >= 20);
+	}
+
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static List<String>[] consumedLists(final int n) {
+		final List<String>[] lists = new List[n];
+		for (int i = 0; i < n; ++i)
+			lists[i] = new ArrayList<String>();
+		return lists;
+	}
+
+	private ShardedCoalescingBlockingQueue<String, String> firstLetterQueue(final int shards) {
+		final List<BlockingQueue<String>> queues = new ArrayList<BlockingQueue<String>>();
+		for (int i = 0; i < shards; ++i)
+			queues.add(new InPlaceCoalescingBlockingQueue<String, String>(
+					new AlwaysCoalescePolicy(),
+					new HashCodeOfFirstLetterRedirector()
+					));
+		return new ShardedCoalescingBlockingQueue<String, String>(
+				queues,
+				new AlwaysCoalescePolicy(),
+				new HashCodeOfFirstLetterRedirector()
+				);
+	}
+
+	private class AlwaysCoalescePolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return true;
+		}
+	}
+
+	private class HashCodeOfFirstLetterRedirector implements LockSmith<String, String> {
+		public String makeKey(final String toGenerateFrom) {
+			return toGenerateFrom.substring(0,1);
+		}
+	}
+}
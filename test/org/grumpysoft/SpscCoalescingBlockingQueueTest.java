@@ -0,0 +1,263 @@
+package org.grumpysoft;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * Mostly single threaded, with the one producer and consumer
+ * pair at the end to keep us honest about the handoff.
+ */
+public class SpscCoalescingBlockingQueueTest extends TestCase {
+
+	/**
+	 * A batch coalesces within itself and with what's pending, and
+	 * goes in whole or not at all.
+	 */
+	public void testOfferAllCoalescesAndIsAllOrNothing() {
+		final SpscCoalescingBlockingQueue<String, String> q =
+			new SpscCoalescingBlockingQueue<String, String>(
+					4, new AlwaysCoalescePolicy(), new HashCodeOfFirstLetterRedirector());
+		final String fool = new String("fool");
+		final String fire = new String("fire");
+		final String delight = new String("delight");
+		final String hat = new String("hat");
+		assertTrue(q.offer(fool));
+		final String[] batch = { "x", new String("diamonds"), fire, delight, new String("horse"), hat, "y" };
+		assertTrue(q.offerAll(batch, 1, 5));
+		assertEquals(3, q.size());
+		assertFalse(q.offerAll(new String[] { "apple", "bear" }, 0, 2));
+		assertEquals(3, q.size());
+		assertSame(fire, q.poll());
+		assertSame(delight, q.poll());
+		assertSame(hat, q.poll());
+		assertNull(q.poll());
+	}
+
+	private final String fool = new String("fool");
+	private final String diamonds = new String("diamonds");
+	private final String horse = new String("horse");
+	private final String delight = new String("delight");
+
+	/**
+	 *
+	 */
+	public void testReofferOverwritesInPlace() {
+		final SpscCoalescingBlockingQueue<String, String> q = firstLetterQueue(4);
+		q.offer(horse);
+		q.offer(diamonds);
+		q.offer(fool);
+		q.offer(delight);
+		assertEquals(3, q.size());
+		assertEquals(horse, q.peek());
+		assertEquals(horse, q.poll());
+		assertEquals(delight, q.poll());
+		assertEquals(fool, q.poll());
+		assertNull(q.poll());
+	}
+
+	/**
+	 * Capacity rounds up to a power of two, and superseding
+	 * a pending key doesn't need any.
+	 * @throws InterruptedException
+	 */
+	public void testCapacityCountsLiveKeysOnly() throws InterruptedException {
+		final SpscCoalescingBlockingQueue<String, String> q = firstLetterQueue(2);
+		q.put(diamonds);
+		q.put(fool);
+		assertEquals(0, q.remainingCapacity());
+		assertFalse(q.offer(horse));
+		assertFalse(q.offer(horse, 1, TimeUnit.MILLISECONDS));
+		assertTrue(q.offer(delight));
+		assertEquals(delight, q.take());
+		assertTrue(q.offer(horse));
+		assertEquals(fool, q.poll(1, TimeUnit.MILLISECONDS));
+		assertEquals(horse, q.poll(1, TimeUnit.MILLISECONDS));
+		assertNull(q.poll(1, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Once its slot is claimed, a key starts again at the back,
+	 * and the ring wraps without tripping over old keys.
+	 */
+	public void testKeysRejoinAfterConsumptionAndRingWraps() {
+		final SpscCoalescingBlockingQueue<String, String> q = firstLetterQueue(2);
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(q.offer(diamonds));
+			assertTrue(q.offer(horse));
+			assertEquals(diamonds, q.poll());
+			assertTrue(q.offer(delight));
+			assertEquals(horse, q.poll());
+			assertEquals(delight, q.poll());
+		}
+		assertTrue(q.isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	public void testNonCoalescersTakeASlotEach() {
+		final SpscCoalescingBlockingQueue<String, Integer> q =
+			new SpscCoalescingBlockingQueue<String, Integer>(
+					4,
+					new NeverCoalescePolicy(),
+					new HashCodeRedirector()
+					);
+		q.offer(fool);
+		q.offer(fool);
+		assertEquals(2, q.size());
+		final ArrayList<String> drainpipe = new ArrayList<String>();
+		assertEquals(1, q.drainTo(drainpipe, 1));
+		assertEquals(1, q.drainTo(drainpipe));
+		assertEquals(2, drainpipe.size());
+	}
+
+	/**
+	 *
+	 */
+	public void testIteratorAndClear() {
+		final SpscCoalescingBlockingQueue<String, String> q = firstLetterQueue(4);
+		q.offer(horse);
+		q.offer(diamonds);
+		q.offer(delight);
+		final Iterator<String> it = q.iterator();
+		assertEquals(horse, it.next());
+		assertEquals(delight, it.next());
+		assertFalse(it.hasNext());
+		assertTrue(q.contains(delight));
+		q.clear();
+		assertTrue(q.isEmpty());
+		q.offer(diamonds);
+		assertEquals(diamonds, q.poll());
+	}
+
+	/**
+	 * Removal empties a slot out of turn; the consumer steps over it,
+	 * and the producer gives the key a fresh slot.
+	 */
+	public void testRemoveAndIteratorRemove() {
+		final SpscCoalescingBlockingQueue<String, String> q = firstLetterQueue(4);
+		q.offer(horse);
+		q.offer(diamonds);
+		q.offer(fool);
+		assertFalse(q.remove(new String("delight")));
+		assertTrue(q.remove(new String("diamonds")));
+		assertFalse(q.contains(diamonds));
+		assertTrue(q.offer(delight));
+		final Iterator<String> it = q.iterator();
+		assertEquals(horse, it.next());
+		it.remove();
+		assertEquals(fool, it.next());
+		assertEquals(delight, it.next());
+		assertFalse(it.hasNext());
+		try {
+			it.remove();
+			it.remove();
+			fail();
+		} catch (final IllegalStateException e) {
+			// good!
+		}
+		assertEquals(fool, q.peek());
+		assertEquals(fool, q.poll());
+		assertTrue(q.isEmpty());
+		assertNull(q.poll());
+		q.offer(horse);
+		assertEquals(horse, q.poll());
+	}
+
+	/**
+	 * Values for each key must arrive in order, and the
+	 * last value for each key must arrive.
+	 * @throws InterruptedException
+	 */
+	public void testOneProducerOneConsumer() throws InterruptedException {
+		final int keys = 7;
+		final int updates = 200000;
+		final SpscCoalescingBlockingQueue<long[], Long> q =
+			new SpscCoalescingBlockingQueue<long[], Long>(
+					4,
+					new CoalescingPolicy<long[]>() {
+						public boolean shouldCoalesce(final long[] candidate) {
+							return true;
+						}
+					},
+					new LockSmith<long[], Long>() {
+						public Long makeKey(final long[] update) {
+							return Long.valueOf(update[0]);
+						}
+					});
+		final Thread producer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < updates; ++i)
+						q.put(new long[] { i % keys, i });
+				} catch (final InterruptedException e) {
+					// give up
+				}
+			}
+		};
+		producer.start();
+		final long[] lastSeen = new long[keys];
+		java.util.Arrays.fill(lastSeen, -1);
+		int finished = 0;
+		while (finished < keys) {
+			final long[] update = q.poll(5, TimeUnit.SECONDS);
+			assertNotNull(update);
+			final int key = (int) update[0];
+			assertTrue(update[1] > lastSeen[key]);
+			lastSeen[key] = update[1];
+			if (update[1] >= updates - keys)
+				++finished;
+		}
+		producer.join();
+		assertNull(q.poll());
+	}
+
+	/**
+	 * A merging policy folds the newcomer into the pending element;
+	 * negative keys opt out of coalescing altogether.
+	 */
+	public void testMergingPolicyCombinesPendingElements() {
+		SummingMerges.assertSumsPendingElements(
+				new SpscCoalescingBlockingQueue<long[], Long>(
+						2,
+						new SummingMerges.SummingPolicy(),
+						new SummingMerges.FirstLongRedirector()
+						));
+	}
+
+	private SpscCoalescingBlockingQueue<String, String> firstLetterQueue(final int capacity) {
+		return new SpscCoalescingBlockingQueue<String, String>(
+				capacity,
+				new AlwaysCoalescePolicy(),
+				new HashCodeOfFirstLetterRedirector()
+				);
+	}
+
+	private class NeverCoalescePolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return false;
+		}
+	}
+
+	private class AlwaysCoalescePolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return true;
+		}
+	}
+
+	private class HashCodeRedirector implements LockSmith<String, Integer> {
+		public Integer makeKey(final String toGenerateFrom) {
+			return Integer.valueOf(toGenerateFrom.hashCode());
+		}
+	}
+
+	private class HashCodeOfFirstLetterRedirector implements LockSmith<String, String> {
+		public String makeKey(final String toGenerateFrom) {
+			return toGenerateFrom.substring(0,1);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.grumpysoft;
+
+import java.util.concurrent.BlockingQueue;
+
+import junit.framework.Assert;
+
+/**
+ * @author james
+ * The merging story, told once for each queue that merges in place.
+ * Elements are { key, amount }; pending amounts for a key sum, and
+ * negative keys opt out of coalescing altogether.
+ */
+final class SummingMerges {
+
+	private SummingMerges() {
+	}
+
+	/**
+	 * @param q empty, with room for at least two keys, and built
+	 * with a SummingPolicy and a FirstLongRedirector
+	 */
+	static void assertSumsPendingElements(final BlockingQueue<long[]> q) {
+		q.offer(new long[] { 1, 10 });
+		q.offer(new long[] { -1, 5 });
+		q.offer(new long[] { 1, 20 });
+		q.offer(new long[] { 1, 12 });
+		Assert.assertEquals(2, q.size());
+		Assert.assertEquals(42, q.poll()[1]);
+		Assert.assertEquals(5, q.poll()[1]);
+		q.offer(new long[] { 1, 3 });
+		Assert.assertEquals(3, q.poll()[1]);
+	}
+
+	static final class SummingPolicy implements MergingPolicy<long[]> {
+		public boolean shouldCoalesce(final long[] coalesceCandidate) {
+			return coalesceCandidate[0] >= 0;
+		}
+
+		public long[] merge(final long[] pending, final long[] newer) {
+			return new long[] { pending[0], pending[1] + newer[1] };
+		}
+	}
+
+	static final class FirstLongRedirector implements LockSmith<long[], Long> {
+		public Long makeKey(final long[] toGenerateFrom) {
+			return Long.valueOf(toGenerateFrom[0]);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package org.grumpysoft;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * Timeouts fire once they're due and not before, whether they're
+ * a bucket away or several laps of the ring.
+ */
+public class TimerWheelTest extends TestCase {
+
+	private final ManualTicker ticker_ = new ManualTicker();
+	private final List<String> expired_ = new ArrayList<String>();
+	private final TimerWheel<String> wheel_ = new TimerWheel<String>(ticker_, 10, 4,
+			new Consumer<String>() {
+				public void accept(final String item) {
+					expired_.add(item);
+				}
+			});
+
+	/**
+	 *
+	 */
+	public void testFiresWhenDueAndNotBefore() {
+		wheel_.schedule("soon", 25);
+		wheel_.schedule("laps away", 95);
+		ticker_.now_ = 20;
+		wheel_.advance();
+		assertTrue(expired_.isEmpty());
+		ticker_.now_ = 30;
+		wheel_.advance();
+		assertEquals(1, expired_.size());
+		assertEquals("soon", expired_.get(0));
+		ticker_.now_ = 90;
+		wheel_.advance();
+		assertEquals(1, expired_.size());
+		ticker_.now_ = 100;
+		wheel_.advance();
+		assertEquals(2, expired_.size());
+		assertEquals("laps away", expired_.get(1));
+	}
+
+	/**
+	 * After a gap of many laps, everything overdue fires, including
+	 * timeouts scheduled already in the past.
+	 */
+	public void testLongGapsAndLateArrivals() {
+		wheel_.schedule("a", 15);
+		wheel_.schedule("b", 33);
+		ticker_.now_ = 1000;
+		wheel_.schedule("c", 500);
+		wheel_.schedule("d", 1005);
+		wheel_.advance();
+		assertEquals(3, expired_.size());
+		assertFalse(expired_.contains("d"));
+		ticker_.now_ = 1010;
+		wheel_.advance();
+		assertEquals(4, expired_.size());
+		assertEquals("d", expired_.get(3));
+	}
+}
@@ -0,0 +1,124 @@
+package org.grumpysoft;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import junit.framework.TestCase;
+
+/**
+ * @author james
+ * Every strategy should get every element across, and
+ * give up when interrupted.
+ */
+public class WaitStrategiesTest extends TestCase {
+
+	private static final int COUNT = 10000;
+	private static final BooleanSupplier NEVER = new BooleanSupplier() {
+		public boolean getAsBoolean() {
+			return false;
+		}
+	};
+
+	/**
+	 * @throws InterruptedException
+	 */
+	public void testEveryStrategyHandsOver() throws InterruptedException {
+		final List<WaitStrategy> strategies = new ArrayList<WaitStrategy>(Arrays.asList(
+				WaitStrategies.spinThenYield(10),
+				WaitStrategies.spinThenPark(),
+				WaitStrategies.blocking()));
+		// two spinners on one core only take turns when the scheduler says so
+		if (Runtime.getRuntime().availableProcessors() > 1)
+			strategies.add(WaitStrategies.busySpin());
+		for (final WaitStrategy strategy : strategies) {
+			handOver(new SpscCoalescingBlockingQueue<String, Integer>(
+					4, new NeverCoalescePolicy(), new HashCodeRedirector(), strategy));
+			handOver(new MpscCoalescingBlockingQueue<String, Integer>(
+					4, 1, new NeverCoalescePolicy(), new HashCodeRedirector(), strategy));
+			handOver(new CoalescingBlockingQueue<String, Integer>(
+					new LinkedBlockingQueue<String>(4), new NeverCoalescePolicy(),
+					new HashCodeRedirector(), strategy));
+		}
+	}
+
+	/**
+	 * A signal should get a blocked consumer going.
+	 * @throws InterruptedException
+	 */
+	public void testBlockingWakesOnSignal() throws InterruptedException {
+		final SpscCoalescingBlockingQueue<String, Integer> q =
+			new SpscCoalescingBlockingQueue<String, Integer>(
+					4, new NeverCoalescePolicy(), new HashCodeRedirector(),
+					WaitStrategies.blocking());
+		final String[] taken = new String[1];
+		final Thread consumer = new Thread() {
+			public void run() {
+				try {
+					taken[0] = q.take();
+				} catch (final InterruptedException e) {
+					// no!
+				}
+			}
+		};
+		consumer.start();
+		Thread.sleep(20);
+		q.put("fool");
+		consumer.join(10000);
+		assertFalse(consumer.isAlive());
+		assertEquals("fool", taken[0]);
+	}
+
+	/**
+	 *
+	 */
+	public void testIdlersNoticeInterrupts() {
+		final WaitStrategy[] strategies = {
+				WaitStrategies.busySpin(),
+				WaitStrategies.spinThenPark(),
+				WaitStrategies.blocking() };
+		for (final WaitStrategy strategy : strategies) {
+			Thread.currentThread().interrupt();
+			try {
+				strategy.idle(0, NEVER, Long.MAX_VALUE);
+				fail();
+			} catch (final InterruptedException e) {
+				// good!
+			}
+		}
+	}
+
+	private static void handOver(final BlockingQueue<String> q) throws InterruptedException {
+		final Thread producer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < COUNT; ++i)
+						q.put(Integer.toString(i));
+				} catch (final InterruptedException e) {
+					// no!
+				}
+			}
+		};
+		producer.start();
+		for (int i = 0; i < COUNT; ++i)
+			assertEquals(Integer.toString(i), q.take());
+		producer.join();
+		assertNull(q.poll(1, TimeUnit.MILLISECONDS));
+	}
+
+	private class NeverCoalescePolicy implements CoalescingPolicy<String> {
+		public boolean shouldCoalesce(final String coalesceCandidate) {
+			return false;
+		}
+	}
+
+	private class HashCodeRedirector implements LockSmith<String, Integer> {
+		public Integer makeKey(final String toGenerateFrom) {
+			return Integer.valueOf(toGenerateFrom.hashCode());
+		}
+	}
+}